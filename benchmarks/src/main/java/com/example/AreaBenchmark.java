@@ -0,0 +1,119 @@
+package com.example;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Проверка точки: валидация, скомпилированная область (таблицы и общий путь) и прежняя ручная
+ * проверка для сравнения. Время - на одну точку.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AreaBenchmark {
+
+  private static final int POINTS = 1024;
+
+  private final double[] xs = new double[POINTS];
+  private final double[] ys = new double[POINTS];
+  private final double[] rs = new double[POINTS];
+  private final boolean[] out = new boolean[POINTS];
+  private CompiledArea area;
+
+  @Setup
+  public void setUp() {
+    double[] validX = CoordinatesValidator.validXValues();
+    double[] validR = CoordinatesValidator.validRValues();
+    Random random = new Random(42);
+    for (int i = 0; i < POINTS; i++) {
+      xs[i] = validX[random.nextInt(validX.length)];
+      ys[i] = random.nextDouble() * 10 - 5;
+      rs[i] = validR[random.nextInt(validR.length)];
+    }
+    area = AreaDefinition.parse(AreaDefinition.DEFAULT).compile(validX, validR);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public void checkData(Blackhole blackhole) {
+    for (int i = 0; i < POINTS; i++) {
+      blackhole.consume(new CoordinatesValidator(xs[i], ys[i], rs[i]).checkData());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public void isInArea(Blackhole blackhole) {
+    for (int i = 0; i < POINTS; i++) {
+      blackhole.consume(AreaChecker.isInArea(xs[i], ys[i], rs[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public boolean[] isInAreaBatch() {
+    AreaChecker.isInArea(xs, ys, rs, out, POINTS);
+    return out;
+  }
+
+  /** Прежний пакетный цикл ручной проверки без ветвлений - базовая линия пакетной проверки */
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public boolean[] handWrittenBatch() {
+    for (int i = 0; i < POINTS; i++) {
+      double x = xs[i];
+      double y = ys[i];
+      double r = rs[i];
+      double half = r / 2.0;
+
+      boolean circle = (x >= 0) & (y >= 0) & (x * x + y * y <= half * half);
+      boolean square = (x <= 0) & (y >= 0) & (x >= -r) & (y <= r);
+      boolean triangle = (x <= 0) & (y <= 0) & (y >= -x - r);
+      out[i] = circle | square | triangle;
+    }
+    return out;
+  }
+
+  /** Общий путь без таблиц: так проверяются точки с x или R вне дискретных наборов */
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public void evaluate(Blackhole blackhole) {
+    for (int i = 0; i < POINTS; i++) {
+      blackhole.consume(area.evaluate(xs[i], ys[i], rs[i]));
+    }
+  }
+
+  /** Прежняя ручная проверка области варианта - базовая линия */
+  @Benchmark
+  @OperationsPerInvocation(POINTS)
+  public void handWritten(Blackhole blackhole) {
+    for (int i = 0; i < POINTS; i++) {
+      blackhole.consume(handWritten(xs[i], ys[i], rs[i]));
+    }
+  }
+
+  private static boolean handWritten(double x, double y, double r) {
+    if (x >= 0 && y >= 0 && (x * x + y * y) <= (r / 2.0) * (r / 2.0)) {
+      return true;
+    }
+    if (x <= 0 && y >= 0 && x >= -r && y <= r) {
+      return true;
+    }
+    return x <= 0 && y <= 0 && y >= -x - r;
+  }
+}
@@ -0,0 +1,98 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Выдача истории: чтение страницы из сессии в памяти и запись JSON ответа. Сессия создается через
+ * SessionManager, поэтому ее журнал пишется в каталог sessions рабочего каталога и удаляется в
+ * конце.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+  /** Длина истории сессии */
+  @Param({"10", "1000", "100000"})
+  public int history;
+
+  private String sessionId;
+  private SessionManager.ResultPage page;
+  private ResponseWriter writer;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    sessionId = "bench_history_" + history + "_" + System.nanoTime();
+    Random random = new Random(42);
+    List<SessionManager.CalculationResult> results = new ArrayList<>(history);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < history; i++) {
+      results.add(
+          new SessionManager.CalculationResult(
+              random.nextInt(8) - 3,
+              // Y вводится с точностью до тысячных, время выполнения - наносекунды в мс
+              (random.nextInt(10_001) - 5000) / 1000.0,
+              random.nextInt(5) + 1,
+              random.nextBoolean(),
+              now - i,
+              random.nextInt(1_000_000) / 1_000_000.0));
+    }
+    SessionManager.addResults(sessionId, results);
+    page = readPage();
+    writer = ResponseWriter.acquire();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    SessionManager.clearSession(sessionId);
+  }
+
+  @Benchmark
+  public SessionManager.ResultPage readPage() {
+    return SessionManager.getResultsPage(sessionId, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /** JSON страницы в переиспользуемый буфер ответа; возвращает размер тела */
+  @Benchmark
+  public int writeJsonResponse() {
+    writer.reset();
+    FastCGIServer.writeJsonResponse(writer.body(), page);
+    return writer.size();
+  }
+
+  /** Та же страница по столбцам (format=columns) */
+  @Benchmark
+  public int writeColumnsResponse() {
+    writer.reset();
+    FastCGIServer.writeColumnsResponse(writer.body(), page);
+    return writer.size();
+  }
+
+  /** JSON страницы, сжатый gzip; возвращает размер сжатого тела */
+  @Benchmark
+  public int writeGzipResponse() {
+    writer.reset();
+    FastCGIServer.writeJsonResponse(writer.body(), page);
+    writer.compress("gzip");
+    return writer.size();
+  }
+}
@@ -0,0 +1,370 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный генератор, который говорит с сервером по FastCGI напрямую, без веб-сервера: каждый
+ * виртуальный клиент держит свое соединение и по кругу отправляет запросы (BEGIN_REQUEST, PARAMS,
+ * STDIN) из заданной смеси, как это делал бы nginx. В конце печатает пропускную способность и
+ * квантили задержки по типам запросов.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.example.LoadGenerator \
+ *     --port 9000 --clients 32 --duration 30 --warmup 5 --sessions 1000 \
+ *     --mix post=70,get=25,batch=0,delete=5 [--new-conn]
+ * </pre>
+ */
+public class LoadGenerator {
+
+  /** Типы запросов в смеси */
+  enum Operation {
+    POST,
+    GET,
+    BATCH,
+    DELETE
+  }
+
+  private static final String SCRIPT_NAME = "/fcgi-bin/app.jar";
+  private static final double[] VALID_X = {-3, -2, -1, 0, 1, 2, 3, 4};
+  private static final int[] VALID_R = {1, 2, 3, 4, 5};
+
+  private final String host;
+  private final int port;
+  private final int clients;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final int sessions;
+  private final int batchSize;
+  private final boolean newConnectionPerRequest;
+  private final String authorization;
+
+  /** Накопленные веса смеси: операция выбирается по случайному числу в [0, total) */
+  private final Operation[] mixOperations;
+
+  private final int[] mixThresholds;
+
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final LatencyHistogram overall = new LatencyHistogram();
+  private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+  private final LongAdder ioErrors = new LongAdder();
+
+  private volatile boolean measuring;
+  private volatile boolean stopped;
+
+  LoadGenerator(Map<String, String> options) {
+    host = options.getOrDefault("host", "127.0.0.1");
+    port = Integer.parseInt(options.getOrDefault("port", "9000"));
+    clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+    durationNanos = (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1e9);
+    warmupNanos = (long) (Double.parseDouble(options.getOrDefault("warmup", "5")) * 1e9);
+    sessions = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+    batchSize = Integer.parseInt(options.getOrDefault("batchSize", "100"));
+    newConnectionPerRequest = options.containsKey("new-conn");
+    String credentials =
+        options.getOrDefault("user", "admin") + ":" + options.getOrDefault("password", "password");
+    authorization =
+        "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+
+    List<Operation> operations = new ArrayList<>();
+    List<Integer> thresholds = new ArrayList<>();
+    int total = 0;
+    for (String part : options.getOrDefault("mix", "post=70,get=25,delete=5").split(",")) {
+      String[] weight = part.split("=", 2);
+      int value = Integer.parseInt(weight[1].trim());
+      if (value > 0) {
+        total += value;
+        operations.add(Operation.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)));
+        thresholds.add(total);
+      }
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("Traffic mix is empty");
+    }
+    mixOperations = operations.toArray(new Operation[0]);
+    mixThresholds = thresholds.stream().mapToInt(Integer::intValue).toArray();
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      String name = args[i].substring(2);
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        options.put(name, args[++i]);
+      } else {
+        options.put(name, "");
+      }
+    }
+    new LoadGenerator(options).run();
+  }
+
+  void run() throws InterruptedException {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread thread = new Thread(this::runClient, "load-client-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+
+    System.out.printf(
+        "%d clients against %s:%d, warmup %.0fs, measuring %.0fs%n",
+        clients, host, port, warmupNanos / 1e9, durationNanos / 1e9);
+    Thread.sleep(warmupNanos / 1_000_000);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(durationNanos / 1_000_000);
+    measuring = false;
+    long elapsed = System.nanoTime() - start;
+    stopped = true;
+    for (Thread thread : threads) {
+      thread.join(1000);
+    }
+    report(elapsed);
+  }
+
+  private void runClient() {
+    Connection connection = null;
+    int requestId = 1;
+    while (!stopped) {
+      Operation operation = nextOperation();
+      try {
+        if (connection == null) {
+          connection = new Connection(host, port);
+        }
+        long start = System.nanoTime();
+        String stdout =
+            connection.exchange(requestId, request(operation), !newConnectionPerRequest);
+        long latency = System.nanoTime() - start;
+        requestId = requestId % 0xFFFF + 1;
+
+        if (measuring) {
+          latencies.get(operation).record(latency);
+          overall.record(latency);
+          statuses.computeIfAbsent(statusOf(stdout), key -> new LongAdder()).increment();
+        }
+        if (newConnectionPerRequest) {
+          connection.close();
+          connection = null;
+        }
+      } catch (IOException e) {
+        if (measuring) {
+          ioErrors.increment();
+        }
+        if (connection != null) {
+          connection.close();
+          connection = null;
+        }
+      }
+    }
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  private Operation nextOperation() {
+    int roll = ThreadLocalRandom.current().nextInt(mixThresholds[mixThresholds.length - 1]);
+    for (int i = 0; i < mixThresholds.length; i++) {
+      if (roll < mixThresholds[i]) {
+        return mixOperations[i];
+      }
+    }
+    return mixOperations[mixOperations.length - 1];
+  }
+
+  /** Параметры и тело запроса для операции над случайной сессией */
+  private Request request(Operation operation) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Map<String, String> params = new LinkedHashMap<>();
+    params.put("SCRIPT_NAME", SCRIPT_NAME);
+    params.put("HTTP_AUTHORIZATION", authorization);
+    params.put("HTTP_COOKIE", "sessionId=load_" + random.nextInt(sessions));
+
+    String body = "";
+    switch (operation) {
+      case POST -> {
+        params.put("REQUEST_METHOD", "POST");
+        params.put("QUERY_STRING", "delta=1");
+        params.put("CONTENT_TYPE", "application/x-www-form-urlencoded");
+        body =
+            String.format(
+                Locale.US,
+                "xVal=%s&yVal=%.3f&rVal=%d",
+                (int) VALID_X[random.nextInt(VALID_X.length)],
+                random.nextDouble(-5, 5),
+                VALID_R[random.nextInt(VALID_R.length)]);
+      }
+      case BATCH -> {
+        params.put("REQUEST_METHOD", "POST");
+        params.put("QUERY_STRING", "action=batch");
+        params.put("CONTENT_TYPE", "text/csv");
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < batchSize; i++) {
+          csv.append((int) VALID_X[random.nextInt(VALID_X.length)]).append(',');
+          csv.append(String.format(Locale.US, "%.3f", random.nextDouble(-5, 5))).append(',');
+          csv.append(VALID_R[random.nextInt(VALID_R.length)]).append('\n');
+        }
+        body = csv.toString();
+      }
+      case GET -> {
+        params.put("REQUEST_METHOD", "GET");
+        params.put("QUERY_STRING", "limit=50");
+      }
+      case DELETE -> {
+        params.put("REQUEST_METHOD", "DELETE");
+        params.put("QUERY_STRING", "action=clear");
+      }
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    params.put("CONTENT_LENGTH", String.valueOf(bytes.length));
+    return new Request(params, bytes);
+  }
+
+  /** Код ответа из заголовка Status (200, если его нет) */
+  private static String statusOf(String stdout) {
+    if (stdout.startsWith("Status: ")) {
+      int end = stdout.indexOf(' ', "Status: ".length());
+      return stdout.substring("Status: ".length(), end > 0 ? end : stdout.length());
+    }
+    return "200";
+  }
+
+  private void report(long elapsedNanos) {
+    long total = overall.count();
+    System.out.printf(
+        "%nrequests: %d, throughput: %.1f req/s, I/O errors: %d%n",
+        total, total / (elapsedNanos / 1e9), ioErrors.sum());
+    System.out.print("statuses:");
+    statuses.forEach((status, count) -> System.out.print(" " + status + "=" + count.sum()));
+    System.out.println();
+
+    System.out.printf(
+        "%n%-8s %10s %10s %10s %10s %10s %10s%n",
+        "", "count", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms");
+    for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+      printRow(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+    }
+    printRow("all", overall);
+  }
+
+  private static void printRow(String name, LatencyHistogram histogram) {
+    long count = histogram.count();
+    if (count == 0) {
+      return;
+    }
+    System.out.printf(
+        Locale.US,
+        "%-8s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+        name,
+        count,
+        histogram.sumNanos() / 1e6 / count,
+        histogram.quantile(0.5) / 1e6,
+        histogram.quantile(0.99) / 1e6,
+        histogram.quantile(0.999) / 1e6,
+        histogram.quantile(1.0) / 1e6);
+  }
+
+  record Request(Map<String, String> params, byte[] body) {}
+
+  /** Соединение FastCGI с одним запросом в полете */
+  static final class Connection {
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+
+    Connection(String host, int port) throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port));
+      out = socket.getOutputStream();
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /** Отправляет запрос и возвращает FCGI_STDOUT после FCGI_END_REQUEST */
+    String exchange(int requestId, Request request, boolean keepConn) throws IOException {
+      ByteArrayOutputStream params = new ByteArrayOutputStream();
+      for (Map.Entry<String, String> param : request.params().entrySet()) {
+        FcgiServer.encodeParam(params, param.getKey(), param.getValue());
+      }
+      byte[] body = request.body();
+
+      int records =
+          5
+              + params.size() / FcgiServer.FCGI_MAX_CONTENT_LEN
+              + body.length / FcgiServer.FCGI_MAX_CONTENT_LEN;
+      ByteBuffer buffer =
+          ByteBuffer.allocate(
+              FcgiServer.FCGI_HEADER_LEN * (records + 1) + params.size() + body.length);
+      FcgiServer.putHeader(buffer, FcgiServer.FCGI_BEGIN_REQUEST, requestId, 8);
+      buffer.putShort((short) FcgiServer.FCGI_RESPONDER);
+      buffer.put((byte) (keepConn ? FcgiServer.FCGI_KEEP_CONN : 0));
+      buffer.put(new byte[5]);
+      putStream(buffer, FcgiServer.FCGI_PARAMS, requestId, params.toByteArray());
+      putStream(buffer, FcgiServer.FCGI_STDIN, requestId, body);
+      out.write(buffer.array(), 0, buffer.position());
+      out.flush();
+
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      byte[] header = new byte[FcgiServer.FCGI_HEADER_LEN];
+      while (true) {
+        try {
+          in.readFully(header);
+        } catch (EOFException e) {
+          throw new IOException("Connection closed before FCGI_END_REQUEST", e);
+        }
+        int type = header[1] & 0xFF;
+        int length = ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+        byte[] content = new byte[length];
+        in.readFully(content);
+        in.skipNBytes(header[6] & 0xFF);
+        if (type == FcgiServer.FCGI_STDOUT) {
+          stdout.write(content, 0, length);
+        } else if (type == FcgiServer.FCGI_END_REQUEST) {
+          return stdout.toString(StandardCharsets.UTF_8);
+        }
+      }
+    }
+
+    /** Поток записей с завершающей пустой записью */
+    private static void putStream(ByteBuffer buffer, int type, int requestId, byte[] data) {
+      for (int offset = 0; offset < data.length; offset += FcgiServer.FCGI_MAX_CONTENT_LEN) {
+        int length = Math.min(FcgiServer.FCGI_MAX_CONTENT_LEN, data.length - offset);
+        FcgiServer.putHeader(buffer, type, requestId, length);
+        buffer.put(data, offset, length);
+      }
+      FcgiServer.putHeader(buffer, type, requestId, 0);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // соединение уже закрыто
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.example;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Разбор запроса: query string, cookie и заголовок Basic-аутентификации */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+  /** Число параметров в query string */
+  @Param({"3", "20", "100"})
+  public int params;
+
+  private String queryString;
+  private byte[] queryBytes;
+  private FcgiRequest request;
+
+  @Setup
+  public void setUp() {
+    StringBuilder query = new StringBuilder("xVal=1&yVal=-2.5&rVal=3");
+    for (int i = 3; i < params; i++) {
+      query.append("&param").append(i).append("=value%20").append(i);
+    }
+    queryString = query.toString();
+    queryBytes = queryString.getBytes(StandardCharsets.UTF_8);
+
+    Map<String, String> cgiParams = new HashMap<>();
+    cgiParams.put("QUERY_STRING", queryString);
+    cgiParams.put(
+        "HTTP_COOKIE", "theme=dark; _ga=GA1.1.123456789.1700000000; sessionId=sess_1700000000_abc");
+    cgiParams.put(
+        "HTTP_AUTHORIZATION",
+        "Basic "
+            + Base64.getEncoder()
+                .encodeToString("admin:password".getBytes(StandardCharsets.UTF_8)));
+    request = new FcgiRequest(null, 1, cgiParams, new byte[0]);
+  }
+
+  @Benchmark
+  public Map<String, String> parseQueryString() {
+    return parseQueryString(queryString);
+  }
+
+  /** Прежний путь обработчика формы: карта строк и разбор чисел из подстрок */
+  @Benchmark
+  public double parseCoordinates() {
+    Map<String, String> form = parseQueryString(queryString);
+    return Double.parseDouble(form.get("xVal"))
+        + Double.parseDouble(form.get("yVal"))
+        + Double.parseDouble(form.get("rVal"));
+  }
+
+  /** Те же поля прямо из байтов; нужные ключи без %-кодов, поэтому массив не изменяется */
+  @Benchmark
+  public double formFields() {
+    FormFields form = new FormFields(queryBytes, 0, queryBytes.length);
+    return form.getDouble("xVal") + form.getDouble("yVal") + form.getDouble("rVal");
+  }
+
+  @Benchmark
+  public String getSessionIdFromCookies() {
+    return FastCGIServer.getSessionIdFromCookies(request);
+  }
+
+  @Benchmark
+  public boolean checkAuthentication() {
+    return FastCGIServer.checkAuthentication(request);
+  }
+
+  /**
+   * Прежний разбор query string из сервера, база для сравнения: split по '&' и '=', декодирование
+   * через URLDecoder
+   */
+  static Map<String, String> parseQueryString(String queryString) {
+    Map<String, String> params = new HashMap<>();
+    if (queryString == null || queryString.isEmpty()) {
+      return params;
+    }
+    for (String pair : queryString.split("&")) {
+      String[] keyValue = pair.split("=", 2);
+      if (keyValue.length == 2) {
+        try {
+          params.put(
+              URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+              URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+          // Пара с некорректным %-кодом пропускалась
+        }
+      }
+    }
+    return params;
+  }
+}
@@ -0,0 +1,220 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Бенчмарк холодного старта воркера: раз за разом запускает app.jar отдельным процессом, как это
+ * делает веб-сервер, и меряет время от запуска до первого ответа и задержки первых запросов после
+ * него. С архивом CDS из учебного прогона ({@code --train}) сравнивает обычный запуск и запуск с
+ * архивом, чередуя их, чтобы фон машины влиял на оба одинаково.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.example.StartupBenchmark \
+ *     --jar /fcgi-bin/app.jar --archive /fcgi-bin/app.jsa --runs 10 --requests 100
+ * </pre>
+ */
+public class StartupBenchmark {
+
+  private static final String SCRIPT_NAME = "/fcgi-bin/app.jar";
+
+  /** Как долго ждать, пока запущенный воркер начнет принимать соединения */
+  private static final long CONNECT_TIMEOUT_NANOS = 30_000_000_000L;
+
+  private final String jar;
+  private final String archive;
+  private final int runs;
+  private final int requests;
+  private final List<String> jvmOptions;
+  private final String authorization;
+
+  StartupBenchmark(Map<String, String> options) {
+    jar = Paths.get(options.getOrDefault("jar", "target/app.jar")).toAbsolutePath().toString();
+    archive = options.get("archive");
+    runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+    requests = Integer.parseInt(options.getOrDefault("requests", "100"));
+    jvmOptions =
+        options.containsKey("jvm-options")
+            ? List.of(options.get("jvm-options").trim().split("\\s+"))
+            : List.of();
+    String credentials =
+        options.getOrDefault("user", "admin") + ":" + options.getOrDefault("password", "password");
+    authorization =
+        "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      String name = args[i].substring(2);
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        options.put(name, args[++i]);
+      } else {
+        options.put(name, "");
+      }
+    }
+    new StartupBenchmark(options).run();
+  }
+
+  /** Результаты одного способа запуска по всем прогонам */
+  private record Mode(
+      String name,
+      List<String> options,
+      LatencyHistogram firstResponse,
+      LatencyHistogram firstRequests) {}
+
+  void run() throws IOException, InterruptedException {
+    List<Mode> modes = new ArrayList<>();
+    modes.add(new Mode("plain", List.of(), new LatencyHistogram(), new LatencyHistogram()));
+    if (archive != null) {
+      // -Xshare:on: если архив не подходит к jar, запуск падает, а не тихо идет без архива
+      modes.add(
+          new Mode(
+              "cds",
+              List.of("-Xshare:on", "-XX:SharedArchiveFile=" + archive),
+              new LatencyHistogram(),
+              new LatencyHistogram()));
+    }
+
+    System.out.printf("%d runs of %s, %d requests after start%n", runs, jar, requests);
+    for (int run = 0; run < runs; run++) {
+      for (Mode mode : modes) {
+        launch(mode);
+      }
+    }
+
+    System.out.printf(
+        "%n%-6s %12s %12s %12s %12s %12s %12s%n",
+        "",
+        "start p50 ms",
+        "start max ms",
+        "req mean ms",
+        "req p50 ms",
+        "req p99 ms",
+        "req max ms");
+    for (Mode mode : modes) {
+      LatencyHistogram start = mode.firstResponse();
+      LatencyHistogram first = mode.firstRequests();
+      System.out.printf(
+          Locale.US,
+          "%-6s %12.1f %12.1f %12.3f %12.3f %12.3f %12.3f%n",
+          mode.name(),
+          start.quantile(0.5) / 1e6,
+          start.quantile(1.0) / 1e6,
+          first.sumNanos() / 1e6 / Math.max(first.count(), 1),
+          first.quantile(0.5) / 1e6,
+          first.quantile(0.99) / 1e6,
+          first.quantile(1.0) / 1e6);
+    }
+  }
+
+  /**
+   * Запускает воркер в пустом каталоге (сессии создаются в рабочем каталоге), ждет первого ответа и
+   * отправляет еще requests запросов, чередуя проверку точки и чтение истории
+   */
+  private void launch(Mode mode) throws IOException, InterruptedException {
+    Path directory = Files.createTempDirectory("startup-benchmark");
+    int port = freePort();
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(jvmOptions);
+    command.addAll(mode.options());
+    command.add("-DFCGI_PORT=" + port);
+    command.add("-Dratelimit.session.perSecond=0");
+    command.add("-Dratelimit.user.perSecond=0");
+    command.add("-jar");
+    command.add(jar);
+
+    long start = System.nanoTime();
+    Process process =
+        new ProcessBuilder(command)
+            .directory(directory.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(directory.resolve("server.log").toFile())
+            .start();
+    try {
+      LoadGenerator.Connection connection = connect(port, start, process);
+      try {
+        connection.exchange(1, request(0), true);
+        mode.firstResponse().record(System.nanoTime() - start);
+        for (int i = 1; i <= requests; i++) {
+          long requestStart = System.nanoTime();
+          connection.exchange(i % 0xFFFF + 1, request(i), true);
+          mode.firstRequests().record(System.nanoTime() - requestStart);
+        }
+      } finally {
+        connection.close();
+      }
+    } finally {
+      process.destroy();
+      process.waitFor();
+      deleteRecursively(directory);
+    }
+  }
+
+  /** Подключается к воркеру, как только он откроет порт */
+  private static LoadGenerator.Connection connect(int port, long start, Process process)
+      throws IOException, InterruptedException {
+    while (true) {
+      try {
+        return new LoadGenerator.Connection("127.0.0.1", port);
+      } catch (IOException e) {
+        if (!process.isAlive()) {
+          throw new IOException("Worker exited with code " + process.exitValue(), e);
+        }
+        if (System.nanoTime() - start > CONNECT_TIMEOUT_NANOS) {
+          throw e;
+        }
+        Thread.sleep(1);
+      }
+    }
+  }
+
+  private LoadGenerator.Request request(int index) {
+    Map<String, String> params = new LinkedHashMap<>();
+    params.put("SCRIPT_NAME", SCRIPT_NAME);
+    params.put("HTTP_AUTHORIZATION", authorization);
+    params.put("HTTP_COOKIE", "sessionId=startup");
+    String body = "";
+    if (index % 2 == 1) {
+      params.put("REQUEST_METHOD", "POST");
+      params.put("QUERY_STRING", "delta=1");
+      params.put("CONTENT_TYPE", "application/x-www-form-urlencoded");
+      body = String.format(Locale.US, "xVal=%d&yVal=%.2f&rVal=%d", index % 8 - 3, 0.5, 2);
+    } else {
+      params.put("REQUEST_METHOD", "GET");
+      params.put("QUERY_STRING", "limit=50");
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    params.put("CONTENT_LENGTH", String.valueOf(bytes.length));
+    return new LoadGenerator.Request(params, bytes);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Хранение результатов: строка журнала в обе стороны и дозапись в журнал сессии (без ожидания fsync
+ * - его делает фоновый поток).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+  private final SessionManager.CalculationResult result =
+      new SessionManager.CalculationResult(-2, 1.25, 3, true, 1_700_000_000_000L, 0.0421);
+
+  private String line;
+
+  /** Файл сессии из 1000 строк */
+  private byte[] sessionFile;
+
+  private Path directory;
+  private SessionJournal journal;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    line = SessionManager.formatResult(result).trim();
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      lines.append(SessionManager.formatResult(result));
+    }
+    sessionFile = lines.toString().getBytes(StandardCharsets.UTF_8);
+    directory = Files.createTempDirectory("journal-bench");
+    journal = new SessionJournal(SegmentStore.open(directory));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    journal.flush();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public String formatResult() {
+    return SessionManager.formatResult(result);
+  }
+
+  @Benchmark
+  public SessionManager.CalculationResult parseResultFromLine() {
+    return SessionManager.parseResultFromLine(line);
+  }
+
+  /** Разбор файла сессии целиком, как при загрузке сессии */
+  @Benchmark
+  public int parseSessionFile() {
+    return SessionManager.parseSession(sessionFile).size();
+  }
+
+  @Benchmark
+  public long appendToJournal() {
+    return journal.append("bench", SessionManager.formatResult(result));
+  }
+}
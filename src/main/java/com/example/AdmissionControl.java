@@ -0,0 +1,176 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Допуск запросов к обработке. Запросы сверх admission.maxConcurrent одновременно обрабатываемых
+ * отклоняются сразу (503), а не копятся в очереди веб-сервера до таймаутов. Частота запросов
+ * ограничивается отдельно для каждой сессии и каждого пользователя (429), чтобы один клиент не
+ * занимал сервер целиком.
+ *
+ * <p>Неудачные попытки входа ограничиваются до проверки пароля, которая намеренно медленная:
+ * отдельно для пары логин и адрес клиента, для адреса и, мягче, для логина со всех адресов.
+ * Учитываются только отказы запросов с логином и паролем, а уже подтвержденный заголовок проверку
+ * не проходит вовсе, поэтому подбор чужого пароля не запирает настоящего пользователя.
+ */
+public class AdmissionControl {
+
+  /** Как часто удалять из памяти ключи простаивающих сессий и пользователей */
+  private static final long SWEEP_PERIOD_MS = 10_000;
+
+  /** Статистика: запросы в работе, отклоненные по перегрузке и по частоте, ключи в памяти */
+  public record Stats(
+      int inFlight,
+      long shed,
+      long throttledSessions,
+      long throttledUsers,
+      long throttledLogins,
+      int keys) {}
+
+  private final int maxConcurrent;
+  private final RateLimiter sessions;
+  private final RateLimiter users;
+  private final RateLimiter logins;
+  private final RateLimiter loginUsers;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder shed = new LongAdder();
+  private final LongAdder throttledSessions = new LongAdder();
+  private final LongAdder throttledUsers = new LongAdder();
+  private final LongAdder throttledLogins = new LongAdder();
+
+  /**
+   * @param maxConcurrent предел одновременных запросов; 0 - без предела
+   * @param logins неудачные попытки входа по паре логин и адрес клиента и по адресу
+   * @param loginUsers неудачные попытки входа по логину со всех адресов
+   */
+  public AdmissionControl(
+      int maxConcurrent,
+      RateLimiter sessions,
+      RateLimiter users,
+      RateLimiter logins,
+      RateLimiter loginUsers) {
+    this.maxConcurrent = maxConcurrent;
+    this.sessions = sessions;
+    this.users = users;
+    this.logins = logins;
+    this.loginUsers = loginUsers;
+
+    if (sessions.isEnabled() || users.isEnabled() || logins.isEnabled() || loginUsers.isEnabled()) {
+      Thread sweeper = new Thread(this::runSweeper, "admission-sweeper");
+      sweeper.setDaemon(true);
+      sweeper.start();
+    }
+  }
+
+  /**
+   * Предел из admission.maxConcurrent (512), частоты - ratelimit.session.* (20 в секунду, 40
+   * подряд), ratelimit.user.* (500 в секунду, 1000 подряд), ratelimit.login.* для неудачных попыток
+   * входа с одного адреса (1 в секунду, 10 подряд) и ratelimit.loginUser.* для неудачных попыток
+   * войти под одним логином со всех адресов (10 в секунду, 100 подряд)
+   */
+  public static AdmissionControl fromProperties() {
+    return new AdmissionControl(
+        Integer.getInteger("admission.maxConcurrent", 512),
+        RateLimiter.fromProperties("ratelimit.session", 20, 40),
+        RateLimiter.fromProperties("ratelimit.user", 500, 1000),
+        RateLimiter.fromProperties("ratelimit.login", 1, 10),
+        RateLimiter.fromProperties("ratelimit.loginUser", 10, 100));
+  }
+
+  /** Занимает место для запроса; false - сервер перегружен и запрос надо отклонить */
+  public boolean tryEnter() {
+    if (maxConcurrent > 0 && inFlight.incrementAndGet() > maxConcurrent) {
+      inFlight.decrementAndGet();
+      shed.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /** Освобождает место, занятое успешным {@link #tryEnter()} */
+  public void exit() {
+    if (maxConcurrent > 0) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Учитывает запрос сессии и пользователя (любой из них может быть null): 0, если запрос разрешен,
+   * иначе через сколько наносекунд повторить
+   */
+  public long throttle(String sessionId, String username) {
+    long now = System.nanoTime();
+    long wait = users.tryAcquire(username, now);
+    if (wait > 0) {
+      throttledUsers.increment();
+      return wait;
+    }
+    wait = sessions.tryAcquire(sessionId, now);
+    if (wait > 0) {
+      throttledSessions.increment();
+    }
+    return wait;
+  }
+
+  /**
+   * Проверяет до проверки пароля, не исчерпаны ли неудачные попытки входа под логином username с
+   * адреса client (адрес может быть null): 0, если проверять можно, иначе через сколько наносекунд
+   * повторить. Неудачу учитывает {@link #loginFailed(String, String)}
+   */
+  public long tryLogin(String username, String client) {
+    long now = System.nanoTime();
+    long wait =
+        Math.max(
+            Math.max(
+                logins.waitTime(pairKey(username, client), now),
+                logins.waitTime(clientKey(client), now)),
+            loginUsers.waitTime(username, now));
+    if (wait > 0) {
+      throttledLogins.increment();
+    }
+    return wait;
+  }
+
+  /** Учитывает неудачную попытку входа с логином и паролем */
+  public void loginFailed(String username, String client) {
+    long now = System.nanoTime();
+    logins.charge(pairKey(username, client), now);
+    logins.charge(clientKey(client), now);
+    loginUsers.charge(username, now);
+  }
+
+  /** Ключ пары: адрес без пробелов идет первым, поэтому логин с любыми символами не смешается */
+  private static String pairKey(String username, String client) {
+    return (client == null ? "" : client) + " " + username;
+  }
+
+  private static String clientKey(String client) {
+    return client == null ? null : "client:" + client;
+  }
+
+  public Stats stats() {
+    return new Stats(
+        inFlight.get(),
+        shed.sum(),
+        throttledSessions.sum(),
+        throttledUsers.sum(),
+        throttledLogins.sum(),
+        sessions.size() + users.size() + logins.size() + loginUsers.size());
+  }
+
+  private void runSweeper() {
+    while (true) {
+      try {
+        Thread.sleep(SWEEP_PERIOD_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      sessions.sweep();
+      users.sweep();
+      logins.sweep();
+      loginUsers.sweep();
+    }
+  }
+}
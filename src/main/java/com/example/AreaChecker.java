@@ -1,19 +1,23 @@
 package com.example;
 
-/** Класс для проверки попадания в область */
+/**
+ * Класс для проверки попадания в область. Область загружается при старте из описания {@link
+ * AreaDefinition} и компилируется в {@link CompiledArea} с таблицами для допустимых x и R.
+ */
 public class AreaChecker {
-  public static boolean isInArea(double x, double y, double r) {
-    // Четверть круга в первой четверти
-    if (x >= 0 && y >= 0 && (x * x + y * y) <= (r / 2.0) * (r / 2.0)) {
-      return true;
-    }
+  private static final CompiledArea AREA =
+      AreaDefinition.load()
+          .compile(CoordinatesValidator.validXValues(), CoordinatesValidator.validRValues());
+
+  /** Загружает область заранее, чтобы ошибка в описании обнаружилась при старте сервера */
+  public static void init() {}
 
-    // Квадрат во второй четверти
-    if (x <= 0 && y >= 0 && x >= -r && y <= r) {
-      return true;
-    }
+  public static boolean isInArea(double x, double y, double r) {
+    return AREA.contains(x, y, r);
+  }
 
-    // Треугольник в третьей четверти
-    return x <= 0 && y <= 0 && y >= -x - r;
+  /** Пакетная проверка первых count точек */
+  public static void isInArea(double[] xs, double[] ys, double[] rs, boolean[] out, int count) {
+    AREA.contains(xs, ys, rs, out, count);
   }
 }
@@ -0,0 +1,274 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Декларативное описание области из секторов круга, прямоугольников и выпуклых многоугольников. Все
+ * размеры задаются в долях R. Описание - текст, по одной фигуре на строку, # начинает комментарий:
+ *
+ * <pre>
+ * sector  cx cy radius fromDeg toDeg   сектор круга, угол не больше 180 (или ровно 360)
+ * rect    x0 y0 x1 y1                  прямоугольник со сторонами вдоль осей
+ * polygon x1 y1 x2 y2 x3 y3 ...        выпуклый многоугольник
+ * </pre>
+ *
+ * <p>Границы фигур входят в область. Каждая фигура сводится к пересечению полуплоскостей вида
+ * {@code b * y <= c * r - a * x} и, для сектора, круга; это представление и компилируется в {@link
+ * CompiledArea}.
+ */
+public class AreaDefinition {
+
+  /** Область по умолчанию: четверть круга, квадрат и треугольник текущего варианта */
+  static final String DEFAULT =
+      """
+      sector  0 0 0.5 0 90
+      rect    -1 0 0 1
+      polygon 0 0 -1 0 0 -1
+      """;
+
+  /** Фигура как пересечение полуплоскостей и, если circle, круга */
+  record Shape(
+      double[] a,
+      double[] b,
+      double[] c,
+      boolean circle,
+      double cx,
+      double cy,
+      double radius,
+      int quadrants) {}
+
+  private final List<Shape> shapes;
+
+  private AreaDefinition(List<Shape> shapes) {
+    this.shapes = shapes;
+  }
+
+  List<Shape> shapes() {
+    return shapes;
+  }
+
+  /**
+   * Загружает описание из файла, указанного в свойстве area.definition, или возвращает область по
+   * умолчанию
+   */
+  public static AreaDefinition load() {
+    String path = System.getProperty("area.definition");
+    if (path == null) {
+      return parse(DEFAULT);
+    }
+    try {
+      return parse(Files.readString(Path.of(path), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read area definition " + path, e);
+    }
+  }
+
+  /** Разбирает текстовое описание области */
+  public static AreaDefinition parse(String text) {
+    List<Shape> shapes = new ArrayList<>();
+    String[] lines = text.split("\n");
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i];
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      try {
+        double[] args = new double[parts.length - 1];
+        for (int j = 0; j < args.length; j++) {
+          args[j] = Double.parseDouble(parts[j + 1]);
+        }
+        shapes.add(
+            switch (parts[0].toLowerCase(Locale.ROOT)) {
+              case "sector" -> sector(args);
+              case "rect" -> rect(args);
+              case "polygon" -> polygon(args);
+              default -> throw new IllegalArgumentException("Unknown shape: " + parts[0]);
+            });
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Area definition, line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    if (shapes.isEmpty()) {
+      throw new IllegalArgumentException("Area definition is empty");
+    }
+    return new AreaDefinition(List.copyOf(shapes));
+  }
+
+  /** Компилирует описание; для пар (x, R) из дискретных наборов строятся таблицы интервалов y */
+  public CompiledArea compile(double[] tableXs, double[] tableRs) {
+    return new CompiledArea(shapes, tableXs, tableRs);
+  }
+
+  private static Shape sector(double[] args) {
+    expectArgs(args, 5, "sector cx cy radius fromDeg toDeg");
+    double cx = args[0];
+    double cy = args[1];
+    double radius = args[2];
+    double span = args[4] - args[3];
+    if (!(radius > 0)) {
+      throw new IllegalArgumentException("Sector radius must be positive");
+    }
+
+    PlaneBuilder planes = new PlaneBuilder();
+    if (span != 360) {
+      if (!(span > 0 && span <= 180)) {
+        throw new IllegalArgumentException(
+            "Sector angle must be in (0, 180] or exactly 360; split wider sectors");
+      }
+      // Точка внутри, если она левее начального луча и правее конечного
+      double fromX = cos(args[3]);
+      double fromY = sin(args[3]);
+      double toX = cos(args[4]);
+      double toY = sin(args[4]);
+      planes.add(fromY, -fromX, fromY * cx - fromX * cy);
+      planes.add(-toY, toX, -toY * cx + toX * cy);
+    }
+    return planes.build(true, cx, cy, radius, cx - radius, cy - radius, cx + radius, cy + radius);
+  }
+
+  private static Shape rect(double[] args) {
+    expectArgs(args, 4, "rect x0 y0 x1 y1");
+    double x0 = Math.min(args[0], args[2]);
+    double x1 = Math.max(args[0], args[2]);
+    double y0 = Math.min(args[1], args[3]);
+    double y1 = Math.max(args[1], args[3]);
+
+    PlaneBuilder planes = new PlaneBuilder();
+    planes.add(-1, 0, -x0);
+    planes.add(1, 0, x1);
+    planes.add(0, -1, -y0);
+    planes.add(0, 1, y1);
+    return planes.build(false, 0, 0, 0, x0, y0, x1, y1);
+  }
+
+  private static Shape polygon(double[] args) {
+    if (args.length < 6 || args.length % 2 != 0) {
+      throw new IllegalArgumentException("Usage: polygon x1 y1 x2 y2 x3 y3 ...");
+    }
+    int n = args.length / 2;
+
+    // Направление обхода определяется знаком площади
+    double area = 0;
+    for (int i = 0; i < n; i++) {
+      int j = (i + 1) % n;
+      area += args[2 * i] * args[2 * j + 1] - args[2 * j] * args[2 * i + 1];
+    }
+    if (area == 0) {
+      throw new IllegalArgumentException("Polygon is degenerate");
+    }
+    double orientation = Math.signum(area);
+
+    PlaneBuilder planes = new PlaneBuilder();
+    double minX = Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE;
+    double maxY = -Double.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      double px = args[2 * i];
+      double py = args[2 * i + 1];
+      int j = (i + 1) % n;
+      double dx = (args[2 * j] - px) * orientation;
+      double dy = (args[2 * j + 1] - py) * orientation;
+
+      int k = (i + 2) % n;
+      double turn = dx * (args[2 * k + 1] - py) - dy * (args[2 * k] - px);
+      if (turn < 0) {
+        throw new IllegalArgumentException("Polygon must be convex");
+      }
+
+      // Внутренняя сторона ребра - слева от него при обходе против часовой стрелки
+      planes.add(dy, -dx, dy * px - dx * py);
+      minX = Math.min(minX, px);
+      minY = Math.min(minY, py);
+      maxX = Math.max(maxX, px);
+      maxY = Math.max(maxY, py);
+    }
+    return planes.build(false, 0, 0, 0, minX, minY, maxX, maxY);
+  }
+
+  private static void expectArgs(double[] args, int count, String usage) {
+    if (args.length != count) {
+      throw new IllegalArgumentException("Usage: " + usage);
+    }
+  }
+
+  /** Косинус угла в градусах, точный для углов, кратных 90 */
+  private static double cos(double degrees) {
+    return snap(Math.cos(Math.toRadians(degrees)));
+  }
+
+  private static double sin(double degrees) {
+    return snap(Math.sin(Math.toRadians(degrees)));
+  }
+
+  private static double snap(double value) {
+    double rounded = Math.rint(value);
+    return Math.abs(value - rounded) < 1e-12 ? rounded : value;
+  }
+
+  /**
+   * Собирает полуплоскости a * x + b * y <= c * r, нормируя их так, чтобы |b| (или |a| при b = 0)
+   * был равен 1: тогда для осевых границ сравнение в {@link CompiledArea} выполняется без лишних
+   * округлений, точно как в ручной проверке
+   */
+  private static class PlaneBuilder {
+    private final List<double[]> planes = new ArrayList<>();
+
+    void add(double a, double b, double c) {
+      double scale = b != 0 ? Math.abs(b) : Math.abs(a);
+      if (scale == 0) {
+        throw new IllegalArgumentException("Degenerate edge");
+      }
+      planes.add(new double[] {a / scale, b / scale, c / scale});
+    }
+
+    Shape build(
+        boolean circle,
+        double cx,
+        double cy,
+        double radius,
+        double minX,
+        double minY,
+        double maxX,
+        double maxY) {
+      int size = planes.size();
+      double[] a = new double[size];
+      double[] b = new double[size];
+      double[] c = new double[size];
+      for (int i = 0; i < size; i++) {
+        a[i] = planes.get(i)[0];
+        b[i] = planes.get(i)[1];
+        c[i] = planes.get(i)[2];
+      }
+
+      // Четверти (с границами), которые задевает описанный прямоугольник фигуры
+      int quadrants = 0;
+      if (maxX >= 0 && maxY >= 0) {
+        quadrants |= CompiledArea.Q1;
+      }
+      if (minX <= 0 && maxY >= 0) {
+        quadrants |= CompiledArea.Q2;
+      }
+      if (minX <= 0 && minY <= 0) {
+        quadrants |= CompiledArea.Q3;
+      }
+      if (maxX >= 0 && minY <= 0) {
+        quadrants |= CompiledArea.Q4;
+      }
+      return new Shape(a, b, c, circle, cx, cy, radius, quadrants);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Проверка заголовка Basic-аутентификации с кэшем успешных проверок. Хеш пароля в хранилище
+ * намеренно медленный, поэтому подтвержденный заголовок запоминается на время жизни кэша, и
+ * повторный запрос проверяется одним поиском в {@link ConcurrentHashMap}. Ключ кэша - SHA-256
+ * заголовка, сам заголовок с паролем не хранится.
+ *
+ * <p>Если задан файл учетных данных, его время изменения и размер проверяются не чаще раза в
+ * секунду; при изменении хранилище перечитывается, а кэш очищается. Неудачные проверки не
+ * кэшируются, чтобы перебор паролей не вытеснял из кэша настоящих пользователей.
+ */
+public class Authenticator {
+
+  private static final String BASIC_PREFIX = "Basic ";
+
+  /** Как часто проверять, не изменился ли файл учетных данных */
+  private static final long FILE_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path credentialsFile;
+  private final int maxEntries;
+  private final long ttlNanos;
+
+  private volatile CredentialStore store;
+
+  /** Увеличивается при перечитывании хранилища; проверка по старому хранилищу не кэшируется */
+  private volatile long generation;
+
+  private volatile long nextFileCheck;
+  private long fileModified;
+  private long fileSize;
+
+  /** Ключ - SHA-256 заголовка, значение - момент истечения по System.nanoTime */
+  private final ConcurrentHashMap<Key, Long> verified = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /** Первые 16 байт SHA-256 заголовка */
+  private record Key(long high, long low) {}
+
+  /** Статистика кэша */
+  public record Stats(long hits, long misses, int entries) {}
+
+  /**
+   * @param credentialsFile файл для {@link FileCredentialStore} или null
+   * @param fallback хранилище, если файл не задан
+   */
+  public Authenticator(
+      Path credentialsFile, CredentialStore fallback, int maxEntries, long ttlMillis) {
+    this.credentialsFile = credentialsFile;
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    if (credentialsFile == null) {
+      store = fallback;
+    } else {
+      // Пока файл не прочитан, не пускаем никого
+      store = (username, password) -> false;
+      long now = System.nanoTime();
+      nextFileCheck = now;
+      reloadIfChanged(now);
+    }
+  }
+
+  /**
+   * Хранилище из файла, заданного свойством auth.credentials, или fallback; размер и время жизни
+   * кэша - свойства auth.cache.maxEntries и auth.cache.ttlMs
+   */
+  public static Authenticator fromProperties(CredentialStore fallback) {
+    String file = System.getProperty("auth.credentials");
+    return new Authenticator(
+        file == null || file.isEmpty() ? null : Paths.get(file),
+        fallback,
+        Integer.getInteger("auth.cache.maxEntries", 1024),
+        Long.getLong("auth.cache.ttlMs", 5 * 60 * 1000L));
+  }
+
+  /** Проверяет значение заголовка Authorization */
+  public boolean check(String authHeader) {
+    if (authHeader == null || !authHeader.startsWith(BASIC_PREFIX)) {
+      return false;
+    }
+
+    long now = System.nanoTime();
+    if (credentialsFile != null && now - nextFileCheck >= 0) {
+      reloadIfChanged(now);
+    }
+
+    Key key = keyOf(authHeader);
+    if (isCached(key, now)) {
+      hits.increment();
+      return true;
+    }
+    misses.increment();
+
+    long checkedGeneration = generation;
+    if (!verify(authHeader)) {
+      return false;
+    }
+    if (checkedGeneration == generation) {
+      if (verified.size() >= maxEntries) {
+        evictExpired(now);
+      }
+      if (verified.size() < maxEntries) {
+        verified.put(key, now + ttlNanos);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Подтвержден ли заголовок раньше, то есть пройдет ли {@link #check(String)} без проверки пароля;
+   * сам пароль здесь не проверяется
+   */
+  public boolean isVerified(String authHeader) {
+    if (authHeader == null || !authHeader.startsWith(BASIC_PREFIX)) {
+      return false;
+    }
+    long now = System.nanoTime();
+    if (credentialsFile != null && now - nextFileCheck >= 0) {
+      reloadIfChanged(now);
+    }
+    return isCached(keyOf(authHeader), now);
+  }
+
+  /** Есть ли в кэше неистекшая запись; истекшая удаляется */
+  private boolean isCached(Key key, long now) {
+    Long expires = verified.get(key);
+    if (expires == null) {
+      return false;
+    }
+    if (expires - now > 0) {
+      return true;
+    }
+    verified.remove(key, expires);
+    return false;
+  }
+
+  public Stats stats() {
+    return new Stats(hits.sum(), misses.sum(), verified.size());
+  }
+
+  /** Логин из заголовка Basic-аутентификации без проверки пароля или null */
+  public static String usernameOf(String authHeader) {
+    String credentials = decode(authHeader);
+    if (credentials == null) {
+      return null;
+    }
+    int colon = credentials.indexOf(':');
+    return colon < 0 ? null : credentials.substring(0, colon);
+  }
+
+  /** Декодирует заголовок и проверяет логин и пароль в хранилище */
+  private boolean verify(String authHeader) {
+    String credentials = decode(authHeader);
+    if (credentials == null) {
+      return false;
+    }
+
+    // Разделяем логин и пароль
+    int colon = credentials.indexOf(':');
+    if (colon < 0) {
+      return false;
+    }
+    return store.verify(credentials.substring(0, colon), credentials.substring(colon + 1));
+  }
+
+  /** Строка "логин:пароль" из заголовка или null, если заголовок не Basic или не Base64 */
+  private static String decode(String authHeader) {
+    if (authHeader == null || !authHeader.startsWith(BASIC_PREFIX)) {
+      return null;
+    }
+    try {
+      // Декодируем Base64
+      String base64Credentials = authHeader.substring(BASIC_PREFIX.length()).trim();
+      byte[] decodedBytes = Base64.getDecoder().decode(base64Credentials);
+      return new String(decodedBytes, StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      Log.warn("Error decoding authentication", "error", e.getMessage());
+      return null;
+    }
+  }
+
+  /** Удаляет истекшие записи; если кэш все равно полон, новые записи просто не добавляются */
+  private void evictExpired(long now) {
+    verified.values().removeIf(expires -> expires - now <= 0);
+  }
+
+  /** Перечитывает файл учетных данных, если изменились время изменения или размер */
+  private synchronized void reloadIfChanged(long now) {
+    if (now - nextFileCheck < 0) {
+      return;
+    }
+    nextFileCheck = now + FILE_CHECK_INTERVAL_NANOS;
+    try {
+      long modified = Files.getLastModifiedTime(credentialsFile).toMillis();
+      long size = Files.size(credentialsFile);
+      if (modified == fileModified && size == fileSize) {
+        return;
+      }
+      FileCredentialStore loaded = FileCredentialStore.load(credentialsFile);
+      fileModified = modified;
+      fileSize = size;
+      store = loaded;
+      generation++;
+      verified.clear();
+      Log.info("Loaded credentials", "users", loaded.size());
+    } catch (IOException | IllegalArgumentException e) {
+      // Остаемся на прежнем хранилище; файл проверится снова через секунду
+      Log.error("Could not load credentials", "error", e.getMessage());
+    }
+  }
+
+  private static Key keyOf(String authHeader) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(authHeader.getBytes(StandardCharsets.UTF_8));
+      ByteBuffer buffer = ByteBuffer.wrap(digest);
+      return new Key(buffer.getLong(), buffer.getLong());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
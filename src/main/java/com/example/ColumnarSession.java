@@ -0,0 +1,183 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Колоночное хранилище результатов одной сессии: каждое поле лежит в отдельном массиве примитивов,
+ * попадание в область - в битовом наборе, время - в миллисекундах эпохи. Объекты {@link
+ * SessionManager.CalculationResult} создаются только при чтении.
+ *
+ * <p>Данные хранятся блоками удваивающегося размера, которые никогда не перемещаются. Писатели
+ * сериализуются монитором сессии, а читатели работают без блокировок: запись сначала заполняет
+ * ячейку, затем публикует новый размер через volatile поле, поэтому {@link #snapshot()} всегда
+ * видит согласованный префикс истории, не копируя ее.
+ */
+public class ColumnarSession {
+
+  /** Размер первого блока; каждый следующий вдвое больше предыдущего */
+  private static final int FIRST_CHUNK_SHIFT = 4;
+
+  /** Байт на запись: x, y, r, время выполнения и метка времени по 8 байт плюс бит попадания */
+  public static final double BYTES_PER_ENTRY = 5 * Double.BYTES + 1.0 / Byte.SIZE;
+
+  /** Блок записей */
+  private static final class Chunk {
+    final double[] xs;
+    final double[] ys;
+    final double[] rs;
+    final double[] executionTimes;
+    final long[] timestamps;
+    final long[] inAreaBits;
+
+    Chunk(int capacity) {
+      xs = new double[capacity];
+      ys = new double[capacity];
+      rs = new double[capacity];
+      executionTimes = new double[capacity];
+      timestamps = new long[capacity];
+      inAreaBits = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+    }
+  }
+
+  /**
+   * Отпечаток первой записи в том виде, в каком она лежит в хранилище; 0, пока записей нет. История
+   * только дописывается, поэтому пара (отпечаток, размер) задает ее версию одинаково во всех
+   * процессах и после перечитывания из хранилища, а очищенная и начатая заново сессия получает
+   * другой отпечаток. Пишется до публикации размера
+   */
+  private long origin;
+
+  private volatile Chunk[] chunks = new Chunk[0];
+  private volatile int size;
+
+  /** Сессия вытеснена из кэша или очищена: дописывать в нее больше нельзя */
+  private boolean retired;
+
+  /** Сводка по записям, обновляется при добавлении под монитором сессии */
+  private final ResultStats stats = new ResultStats();
+
+  /** Неизменяемый снимок первых size записей сессии */
+  public static final class Snapshot {
+    private final long origin;
+    private final Chunk[] chunks;
+    private final int size;
+
+    private Snapshot(long origin, Chunk[] chunks, int size) {
+      this.origin = origin;
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /** Отпечаток первой записи сессии; вместе с размером задает версию истории */
+    public long origin() {
+      return origin;
+    }
+
+    /** Собирает результат с указанным номером */
+    public SessionManager.CalculationResult get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      int chunkIndex = chunkIndex(index);
+      Chunk chunk = chunks[chunkIndex];
+      int i = (int) (index - chunkStart(chunkIndex));
+      return new SessionManager.CalculationResult(
+          chunk.xs[i],
+          chunk.ys[i],
+          chunk.rs[i],
+          (chunk.inAreaBits[i >>> 6] & (1L << i)) != 0,
+          chunk.timestamps[i],
+          chunk.executionTimes[i]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Снимок текущей истории без копирования; безопасен для чтения из любого потока */
+  public Snapshot snapshot() {
+    // Сначала размер, затем блоки: блоки публикуются раньше размера, поэтому их хватит
+    int currentSize = size;
+    return new Snapshot(origin, chunks, currentSize);
+  }
+
+  /** Копия сводки по всем записям сессии */
+  public synchronized ResultStats stats() {
+    return stats.copy();
+  }
+
+  /** Проверяет, выведена ли сессия из оборота; вызывается под монитором сессии */
+  public boolean isRetired() {
+    return retired;
+  }
+
+  /** Выводит сессию из оборота; вызывается под монитором сессии */
+  void retire() {
+    retired = true;
+  }
+
+  /** Добавляет результат в конец и возвращает его номер; вызывается под монитором сессии */
+  public int append(SessionManager.CalculationResult result) {
+    int index = size;
+    int chunkIndex = chunkIndex(index);
+    Chunk[] current = chunks;
+    if (chunkIndex == current.length) {
+      current = Arrays.copyOf(current, chunkIndex + 1);
+      current[chunkIndex] = new Chunk(1 << (chunkIndex + FIRST_CHUNK_SHIFT));
+      chunks = current;
+    }
+
+    Chunk chunk = current[chunkIndex];
+    int i = (int) (index - chunkStart(chunkIndex));
+    chunk.xs[i] = result.x();
+    chunk.ys[i] = result.y();
+    chunk.rs[i] = result.r();
+    chunk.executionTimes[i] = result.executionTime();
+    chunk.timestamps[i] = result.timestamp();
+    if (result.isInArea()) {
+      chunk.inAreaBits[i >>> 6] |= 1L << i;
+    }
+    stats.add(result);
+    if (index == 0) {
+      origin = originOf(result);
+    }
+
+    // Публикация: после этой записи читатели увидят заполненную ячейку
+    size = index + 1;
+    return index;
+  }
+
+  /**
+   * Отпечаток записи по ее строке в хранилище: в памяти время точнее секунды, а числа - точнее
+   * шести знаков, но в хранилище и после перечитывания строка та же
+   */
+  private static long originOf(SessionManager.CalculationResult result) {
+    String line = SessionManager.formatResult(result);
+    CRC32C crc = new CRC32C();
+    crc.update(line.getBytes(StandardCharsets.UTF_8));
+    return (long) line.hashCode() << 32 | crc.getValue();
+  }
+
+  /** Объем, занятый блоками (с учетом незаполненного хвоста), в байтах */
+  public long footprintBytes() {
+    long capacity = chunkStart(chunks.length);
+    return capacity * 5 * Double.BYTES + capacity / Byte.SIZE;
+  }
+
+  /** Номер блока с записью: блок k хранит записи с 16 * (2^k - 1) по 16 * (2^(k+1) - 1) - 1 */
+  private static int chunkIndex(int index) {
+    return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_CHUNK_SHIFT) + 1);
+  }
+
+  /** Номер первой записи блока */
+  private static long chunkStart(int chunkIndex) {
+    return ((1L << chunkIndex) - 1) << FIRST_CHUNK_SHIFT;
+  }
+}
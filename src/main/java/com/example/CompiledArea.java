@@ -0,0 +1,350 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Скомпилированная область: фигуры {@link AreaDefinition} в плоских массивах с отбором по четвертям
+ * плоскости и таблицы интервалов y для пар (x, R) из дискретных наборов валидатора (для целых
+ * наборов - для всех целых между крайними значениями).
+ *
+ * <p>Для точки из таблицы проверка сводится к сравнению y с границами пары-тройки интервалов.
+ * Границы интервалов подбираются с точностью до ulp по самому вычислителю фигур, поэтому таблица и
+ * общий путь дают одинаковый ответ для любого y.
+ */
+public class CompiledArea {
+
+  static final int Q1 = 1;
+  static final int Q2 = 1 << 1;
+  static final int Q3 = 1 << 2;
+  static final int Q4 = 1 << 3;
+
+  /** Предел шагов уточнения границы интервала; аналитическая граница ошибается на единицы ulp */
+  private static final int MAX_REFINE_STEPS = 64;
+
+  private final int shapeCount;
+  private final int[] quadrants;
+  private final int[] planeStart;
+  private final double[] planeA;
+  private final double[] planeB;
+  private final double[] planeC;
+  private final boolean[] circle;
+  private final double[] circleX;
+  private final double[] circleY;
+  private final double[] circleRadius;
+
+  /** Значения x и R, для которых построены таблицы */
+  private final Axis xAxis;
+
+  private final Axis rAxis;
+
+  /**
+   * Границы интервалов y всех таблиц подряд в виде lo0, hi0, lo1, hi1, ...; у каждой пары (x, R)
+   * одинаковое число границ, недостающие интервалы - пустые [+inf, -inf]
+   */
+  private final double[] bounds;
+
+  /** Число границ на пару (x, R) */
+  private final int boundsPerPair;
+
+  CompiledArea(List<AreaDefinition.Shape> shapes, double[] tableXs, double[] tableRs) {
+    shapeCount = shapes.size();
+    quadrants = new int[shapeCount];
+    planeStart = new int[shapeCount + 1];
+    circle = new boolean[shapeCount];
+    circleX = new double[shapeCount];
+    circleY = new double[shapeCount];
+    circleRadius = new double[shapeCount];
+
+    int planes = 0;
+    for (AreaDefinition.Shape shape : shapes) {
+      planes += shape.a().length;
+    }
+    planeA = new double[planes];
+    planeB = new double[planes];
+    planeC = new double[planes];
+
+    int next = 0;
+    for (int s = 0; s < shapeCount; s++) {
+      AreaDefinition.Shape shape = shapes.get(s);
+      quadrants[s] = shape.quadrants();
+      planeStart[s] = next;
+      int count = shape.a().length;
+      System.arraycopy(shape.a(), 0, planeA, next, count);
+      System.arraycopy(shape.b(), 0, planeB, next, count);
+      System.arraycopy(shape.c(), 0, planeC, next, count);
+      next += count;
+      circle[s] = shape.circle();
+      circleX[s] = shape.cx();
+      circleY[s] = shape.cy();
+      circleRadius[s] = shape.radius();
+    }
+    planeStart[shapeCount] = next;
+
+    xAxis = Axis.of(tableXs);
+    rAxis = Axis.of(tableRs);
+
+    int pairs = xAxis.values.length * rAxis.values.length;
+    double[][] tables = new double[pairs][];
+    int width = 4;
+    for (int xi = 0; xi < xAxis.values.length; xi++) {
+      for (int ri = 0; ri < rAxis.values.length; ri++) {
+        int pair = xi * rAxis.values.length + ri;
+        tables[pair] = buildIntervals(xAxis.values[xi], rAxis.values[ri]);
+        width = Math.max(width, tables[pair].length);
+      }
+    }
+    boundsPerPair = width;
+    bounds = new double[pairs * width];
+    for (int pair = 0; pair < pairs; pair++) {
+      int from = pair * width;
+      for (int i = 0; i < width; i += 2) {
+        bounds[from + i] = Double.POSITIVE_INFINITY;
+        bounds[from + i + 1] = Double.NEGATIVE_INFINITY;
+      }
+      System.arraycopy(tables[pair], 0, bounds, from, tables[pair].length);
+    }
+  }
+
+  /** Проверяет попадание точки; для (x, R) из таблиц - поиском в интервалах */
+  public boolean contains(double x, double y, double r) {
+    int xi = xAxis.indexOf(x);
+    int ri = rAxis.indexOf(r);
+    if ((xi | ri) >= 0) {
+      int from = (xi * rAxis.values.length + ri) * boundsPerPair;
+      if (boundsPerPair == 4) {
+        double[] b = bounds;
+        return (y >= b[from]) & (y <= b[from + 1]) | (y >= b[from + 2]) & (y <= b[from + 3]);
+      }
+      return inIntervals(from, from + boundsPerPair, y);
+    }
+    return evaluate(x, y, r);
+  }
+
+  /**
+   * Пакетная проверка первых count точек. Когда обе оси плотные и у пары (x, R) не больше двух
+   * интервалов, номер таблицы и сравнение с ее границами считаются в одном цикле без ветвлений и
+   * вызовов; точки вне таблиц затем проверяет общий путь
+   */
+  public void contains(double[] xs, double[] ys, double[] rs, boolean[] out, int count) {
+    if (boundsPerPair != 4 || !xAxis.dense || !rAxis.dense) {
+      for (int i = 0; i < count; i++) {
+        out[i] = contains(xs[i], ys[i], rs[i]);
+      }
+      return;
+    }
+
+    double[] b = bounds;
+    int xBase = xAxis.base;
+    int xLength = xAxis.values.length;
+    int rBase = rAxis.base;
+    int rLength = rAxis.values.length;
+    boolean missed = false;
+    for (int i = 0; i < count; i++) {
+      double x = xs[i];
+      double y = ys[i];
+      double r = rs[i];
+      // Как Axis.indexOf, но без ветвлений: точка вне таблиц сравнивается с парой 0, а ее ответ
+      // затем заменяет общий путь
+      int xTruncated = (int) x;
+      int rTruncated = (int) r;
+      int xi = xTruncated - xBase;
+      int ri = rTruncated - rBase;
+      boolean tabled =
+          (xi >= 0)
+              & (xi < xLength)
+              & (xTruncated == x)
+              & (ri >= 0)
+              & (ri < rLength)
+              & (rTruncated == r);
+      int from = tabled ? (xi * rLength + ri) * 4 : 0;
+      out[i] = (y >= b[from]) & (y <= b[from + 1]) | (y >= b[from + 2]) & (y <= b[from + 3]);
+      missed |= !tabled;
+    }
+    if (missed) {
+      for (int i = 0; i < count; i++) {
+        if (xAxis.indexOf(xs[i]) < 0 || rAxis.indexOf(rs[i]) < 0) {
+          out[i] = evaluate(xs[i], ys[i], rs[i]);
+        }
+      }
+    }
+  }
+
+  private boolean inIntervals(int from, int to, double y) {
+    boolean inside = false;
+    for (int i = from; i < to; i += 2) {
+      inside |= (y >= bounds[i]) & (y <= bounds[i + 1]);
+    }
+    return inside;
+  }
+
+  /** Общий путь: фигуры, не задевающие четверть точки, пропускаются без вычислений */
+  boolean evaluate(double x, double y, double r) {
+    int pointQuadrants =
+        ((x >= 0) & (y >= 0) ? Q1 : 0)
+            | ((x <= 0) & (y >= 0) ? Q2 : 0)
+            | ((x <= 0) & (y <= 0) ? Q3 : 0)
+            | ((x >= 0) & (y <= 0) ? Q4 : 0);
+    for (int s = 0; s < shapeCount; s++) {
+      if ((quadrants[s] & pointQuadrants) != 0 && inShape(s, x, y, r)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean inShape(int s, double x, double y, double r) {
+    boolean inside = !circle[s] || inCircle(s, x, y, r);
+    for (int p = planeStart[s]; p < planeStart[s + 1]; p++) {
+      inside &= inPlane(p, x, y, r);
+    }
+    return inside;
+  }
+
+  private boolean inPlane(int p, double x, double y, double r) {
+    return planeB[p] * y <= planeC[p] * r - planeA[p] * x;
+  }
+
+  private boolean inCircle(int s, double x, double y, double r) {
+    double dx = x - circleX[s] * r;
+    double dy = y - circleY[s] * r;
+    double radius = circleRadius[s] * r;
+    return dx * dx + dy * dy <= radius * radius;
+  }
+
+  /**
+   * Значения одной оси таблиц. Если исходные значения целые, ось плотная: в нее входят все целые от
+   * наименьшего до наибольшего, и номер находится вычитанием без поиска
+   */
+  private static final class Axis {
+    private static final int MAX_DENSE = 1024;
+
+    final double[] values;
+    final int base;
+    final boolean dense;
+
+    private Axis(double[] values, int base, boolean dense) {
+      this.values = values;
+      this.base = base;
+      this.dense = dense;
+    }
+
+    static Axis of(double[] source) {
+      double[] sorted = source.clone();
+      Arrays.sort(sorted);
+      boolean integral = sorted.length > 0;
+      for (double value : sorted) {
+        integral &= value == Math.rint(value) && Math.abs(value) <= MAX_DENSE;
+      }
+      if (!integral || sorted[sorted.length - 1] - sorted[0] >= MAX_DENSE) {
+        return new Axis(sorted, 0, false);
+      }
+
+      int base = (int) sorted[0];
+      double[] values = new double[(int) sorted[sorted.length - 1] - base + 1];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = base + i;
+      }
+      return new Axis(values, base, true);
+    }
+
+    /** Номер значения на оси или -1 */
+    int indexOf(double value) {
+      if (!dense) {
+        return Math.max(Arrays.binarySearch(values, value), -1);
+      }
+      int truncated = (int) value;
+      int i = truncated - base;
+      return i >= 0 && i < values.length && truncated == value ? i : -1;
+    }
+  }
+
+  /** Строит объединение интервалов y, в которых точки (x, y) лежат в области */
+  private double[] buildIntervals(double x, double r) {
+    List<double[]> parts = new ArrayList<>();
+    for (int s = 0; s < shapeCount; s++) {
+      double[] part = shapeInterval(s, x, r);
+      if (part != null) {
+        parts.add(part);
+      }
+    }
+    parts.sort((p, q) -> Double.compare(p[0], q[0]));
+
+    List<double[]> merged = new ArrayList<>();
+    for (double[] part : parts) {
+      double[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && part[0] <= Math.nextUp(last[1])) {
+        last[1] = Math.max(last[1], part[1]);
+      } else {
+        merged.add(part.clone());
+      }
+    }
+
+    double[] bounds = new double[merged.size() * 2];
+    for (int i = 0; i < merged.size(); i++) {
+      bounds[2 * i] = merged.get(i)[0];
+      bounds[2 * i + 1] = merged.get(i)[1];
+    }
+    return bounds;
+  }
+
+  /**
+   * Интервал y фигуры на вертикали x или null. Полуплоскости дают границы теми же операциями, что и
+   * проверка, поэтому точно; границы круга считаются через корень и уточняются по ulp.
+   */
+  private double[] shapeInterval(int s, double x, double r) {
+    double lo = Double.NEGATIVE_INFINITY;
+    double hi = Double.POSITIVE_INFINITY;
+    for (int p = planeStart[s]; p < planeStart[s + 1]; p++) {
+      double bound = planeC[p] * r - planeA[p] * x;
+      if (planeB[p] > 0) {
+        hi = Math.min(hi, bound);
+      } else if (planeB[p] < 0) {
+        lo = Math.max(lo, -bound);
+      } else if (!(0 <= bound)) {
+        return null;
+      }
+    }
+
+    if (circle[s]) {
+      double dx = x - circleX[s] * r;
+      double radius = circleRadius[s] * r;
+      double rest = radius * radius - dx * dx;
+      if (rest < 0) {
+        return null;
+      }
+      double center = circleY[s] * r;
+      double half = Math.sqrt(rest);
+      double circleLo = refineLow(s, x, r, center - half, center);
+      double circleHi = refineHigh(s, x, r, center + half, center);
+      if (!inCircle(s, x, circleLo, r) || !inCircle(s, x, circleHi, r)) {
+        return null;
+      }
+      lo = Math.max(lo, circleLo);
+      hi = Math.min(hi, circleHi);
+    }
+    return lo <= hi ? new double[] {lo, hi} : null;
+  }
+
+  /** Сдвигает нижнюю границу круга по ulp до наименьшего y, который проверка считает внутри */
+  private double refineLow(int s, double x, double r, double y, double center) {
+    for (int i = 0; i < MAX_REFINE_STEPS && inCircle(s, x, Math.nextDown(y), r); i++) {
+      y = Math.nextDown(y);
+    }
+    for (int i = 0; i < MAX_REFINE_STEPS && y < center && !inCircle(s, x, y, r); i++) {
+      y = Math.nextUp(y);
+    }
+    return y;
+  }
+
+  private double refineHigh(int s, double x, double r, double y, double center) {
+    for (int i = 0; i < MAX_REFINE_STEPS && inCircle(s, x, Math.nextUp(y), r); i++) {
+      y = Math.nextUp(y);
+    }
+    for (int i = 0; i < MAX_REFINE_STEPS && y > center && !inCircle(s, x, y, r); i++) {
+      y = Math.nextDown(y);
+    }
+    return y;
+  }
+}
@@ -9,13 +9,25 @@ public class CoordinatesValidator {
   private final double y;
   private final double r;
 
-  private static final double Y_MIN = -5.0;
-  private static final double Y_MAX = 5.0;
+  /** Допустимый отрезок y */
+  static final double Y_MIN = -5.0;
+
+  static final double Y_MAX = 5.0;
 
   private static final double[] VALID_X_VALUES = {-3.0, -2.0, -1.0, 0.0, 1.0, 2.0, 3.0, 4.0};
 
   private static final double[] VALID_R_VALUES = {1.0, 2.0, 3.0, 4.0, 5.0};
 
+  /** Допустимые значения x; для них строятся таблицы {@link CompiledArea} */
+  static double[] validXValues() {
+    return VALID_X_VALUES.clone();
+  }
+
+  /** Допустимые значения R */
+  static double[] validRValues() {
+    return VALID_R_VALUES.clone();
+  }
+
   public boolean checkData() {
     return checkX() && checkY() && checkR();
   }
@@ -0,0 +1,8 @@
+package com.example;
+
+/** Хранилище учетных данных, проверяющее пару логин-пароль */
+public interface CredentialStore {
+
+  /** Верны ли логин и пароль; проверка может быть намеренно медленной */
+  boolean verify(String username, String password);
+}
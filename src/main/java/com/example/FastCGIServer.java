@@ -1,144 +1,528 @@
 package com.example;
 
-import com.fastcgi.FCGIInterface;
-import java.net.*;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Predicate;
 
 public class FastCGIServer {
   public static final String VALID_USERNAME = "admin";
   private static final String VALID_PASSWORD = "password";
   private static final String AUTH_REALM = "Area Checker API";
+  private static final String SESSION_COOKIE = "sessionId";
 
-  public static void main(String[] args) {
-    System.out.println("Starting FastCGI server...");
+  /** Результат {@link #login}: логин и пароль не подошли или их нет */
+  static final long LOGIN_DENIED = -1;
 
-    FCGIInterface fcgiInterface = new FCGIInterface();
-    while (fcgiInterface.FCGIaccept() >= 0) {
-      String method = FCGIInterface.request.params.getProperty("REQUEST_METHOD");
-      if (method == null) {
-        System.out.println(errorResult("Unsupported HTTP method: null"));
-        continue;
-      }
+  /**
+   * Пользователи из файла auth.credentials; без него - единственный встроенный пользователь, как
+   * раньше. Создаются при первой проверке, а не при загрузке класса, чтобы учебный прогон успел
+   * задать свой файл
+   */
+  private static final class Users {
+    static final Authenticator authenticator =
+        Authenticator.fromProperties(
+            (username, password) ->
+                VALID_USERNAME.equals(username) && VALID_PASSWORD.equals(password));
+  }
 
-      if (method.equals("GET")) {
-        handleGetRequest();
-        continue;
-      }
+  /** Постоянные части ответов, закодированные заранее */
+  private static final byte[] AUTH_CHALLENGE =
+      ascii("WWW-Authenticate: Basic realm=\"" + AUTH_REALM + "\", charset=\"UTF-8\"\r\n");
 
-      if (method.equals("POST")) {
-        handlePostRequest();
-        continue;
-      }
+  private static final byte[] AUTH_REQUIRED =
+      ascii(
+          "{\"error\": \"Authentication required\", \"message\": \"Please provide credentials\"}");
+  private static final byte[] EXPIRED_SESSION_COOKIE =
+      ascii("Set-Cookie: sessionId=; Path=/; Expires=Thu, 01 Jan 1970 00:00:00 GMT\r\n");
+  private static final byte[] SESSION_CLEARED =
+      ascii("{\"status\": \"success\", \"message\": \"Session cleared\"}");
+  private static final byte[] EMPTY_HISTORY = ascii("{\"results\": [], \"cursor\": 0}");
+  private static final byte[] EMPTY_COLUMNS =
+      ascii(
+          "{\"columns\": {\"x\": [], \"y\": [], \"r\": [], \"isInArea\": [], \"currentTime\": [],"
+              + " \"executionTime\": []}, \"cursor\": 0}");
+
+  /**
+   * Сколько держать запрос action=watch без изменений; меньше типичных таймаутов веб-сервера и
+   * прокси
+   */
+  private static final long WATCH_TIMEOUT_MS = Long.getLong("history.watch.timeoutMs", 25_000L);
+
+  /** Предел одновременных запросов и частоты запросов сессий и пользователей */
+  private static final AdmissionControl admission = AdmissionControl.fromProperties();
+
+  private static final byte[] SERVICE_UNAVAILABLE = ascii("{\"error\": \"Server is overloaded\"}");
+  private static final byte[] TOO_MANY_REQUESTS = ascii("{\"error\": \"Too many requests\"}");
+
+  /** Размер части выгрузки истории, после которой она отправляется веб-серверу */
+  private static final int EXPORT_CHUNK_BYTES = Integer.getInteger("export.chunkBytes", 32 * 1024);
+
+  /** Сколько ждать, пока веб-сервер примет очередную часть выгрузки, прежде чем прервать ее */
+  private static final long EXPORT_SEND_TIMEOUT_MS = Long.getLong("export.sendTimeoutMs", 30_000L);
+
+  private static final byte[] CSV_ATTACHMENT =
+      ascii("Content-Disposition: attachment; filename=\"history.csv\"\r\n");
+  private static final byte[] NDJSON_ATTACHMENT =
+      ascii("Content-Disposition: attachment; filename=\"history.ndjson\"\r\n");
+  private static final byte[] CSV_HEADER = ascii("x,y,r,isInArea,currentTime,executionTime\n");
+
+  /** ETag пустой истории: у нее нет экземпляра сессии, и она всегда одинакова */
+  private static final String EMPTY_ETAG = "W/\"empty\"";
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // Учебный прогон для архива CDS, см. Training
+    if (args.length > 0 && args[0].equals("--train")) {
+      Training.run();
+      return;
+    }
 
-      if (method.equals("DELETE")) {
-        handleGetRequest();
-        continue;
+    Log.info("Starting FastCGI server");
+    AreaChecker.init();
+    SessionManager.startPreload();
+    SessionManager.loadStats();
+
+    FcgiServer server =
+        new FcgiServer(FcgiServer.openServerChannel(), FastCGIServer::handleRequest);
+    server.serve();
+  }
+
+  /** Обрабатывает запрос и учитывает его в метриках: время отправки ответа и общее время */
+  static void handleRequest(FcgiRequest request) {
+    long startTime = System.nanoTime();
+    String method = request.getParam("REQUEST_METHOD");
+    FormFields query = FormFields.of(request.getParam("QUERY_STRING"));
+
+    // Сверх предела одновременных запросов сразу отвечаем 503, не начиная работу
+    boolean admitted = admission.tryEnter();
+    try {
+      ResponseWriter response = admitted ? route(request, method, query) : serviceUnavailable();
+
+      // null - запрос отложен и ответ отправится позже или ответ уже отправлен частями
+      if (response != null) {
+        long writeStart = System.nanoTime();
+        response.send(request);
+        Metrics.record(Metrics.Phase.WRITE, writeStart);
+        Metrics.recordResponse();
       }
+    } finally {
+      if (admitted) {
+        admission.exit();
+      }
+    }
+    Metrics.recordRequest(endpointOf(method, query.get("action")), startTime);
+  }
+
+  /** Маршрутизирует запрос по HTTP методу и возвращает готовый ответ */
+  private static ResponseWriter route(FcgiRequest request, String method, FormFields query) {
+    if (method == null) {
+      return errorResult("Unsupported HTTP method: null");
+    }
+
+    if (method.equals("GET")) {
+      return handleGetRequest(request, query);
+    }
 
-      System.out.println(errorResult("Unsupported HTTP method: " + method));
+    if (method.equals("POST")) {
+      return handlePostRequest(request, query);
     }
+
+    if (method.equals("DELETE")) {
+      return handleGetRequest(request, query);
+    }
+
+    return errorResult("Unsupported HTTP method: " + method);
   }
 
-  /** Обрабатывает GET запрос */
-  private static void handleGetRequest() {
-      // Проверка аутентификации в начале метода
-      if (!checkAuthentication()) {
-          System.out.println(sendAuthenticationRequest());
-          return;
+  /** Точка входа API для метрик */
+  private static Metrics.Endpoint endpointOf(String method, String action) {
+    if ("POST".equals(method)) {
+      return "batch".equals(action) ? Metrics.Endpoint.BATCH : Metrics.Endpoint.CHECK;
+    }
+    if ("DELETE".equals(method) && "clear".equals(action)) {
+      return Metrics.Endpoint.CLEAR;
+    }
+    if ("GET".equals(method)) {
+      if ("watch".equals(action)) {
+        return Metrics.Endpoint.WATCH;
+      }
+      if ("stats".equals(action)) {
+        return Metrics.Endpoint.STATS;
       }
+      if ("export".equals(action)) {
+        return Metrics.Endpoint.EXPORT;
+      }
+      return "metrics".equals(action) ? Metrics.Endpoint.METRICS : Metrics.Endpoint.HISTORY;
+    }
+    return Metrics.Endpoint.OTHER;
+  }
 
-    String queryString = FCGIInterface.request.params.getProperty("QUERY_STRING");
-    String scriptName = FCGIInterface.request.params.getProperty("SCRIPT_NAME");
-    String requestMethod = FCGIInterface.request.params.getProperty("REQUEST_METHOD");
+  /** Обрабатывает GET запрос */
+  private static ResponseWriter handleGetRequest(FcgiRequest request, FormFields params) {
+    // Проверка аутентификации в начале метода
+    ResponseWriter denied = authenticate(request);
+    if (denied != null) {
+      return denied;
+    }
+
+    String scriptName = request.getParam("SCRIPT_NAME");
+    String requestMethod = request.getParam("REQUEST_METHOD");
 
     // Проверяем, что это запрос к нашему скрипту
     if (scriptName == null || !scriptName.equals("/fcgi-bin/app.jar")) {
-      System.out.println(errorResult("Not Found"));
-      return;
+      return errorResult("Not Found");
     }
 
-    // Парсим параметры из query string
-    Map<String, String> params = parseQueryString(queryString);
     String action = params.get("action");
 
+    if ("GET".equals(requestMethod) && "metrics".equals(action)) {
+      return metricsResult();
+    }
+
     // Получаем sessionId из cookies
-    String sessionId = getSessionIdFromCookies();
+    String sessionId = getSessionIdFromCookies(request);
+
+    ResponseWriter throttled = throttle(request, sessionId);
+    if (throttled != null) {
+      return throttled;
+    }
+
+    if ("GET".equals(requestMethod) && "watch".equals(action)) {
+      return watchHistory(request, sessionId, params);
+    }
+
+    if ("GET".equals(requestMethod) && "stats".equals(action)) {
+      return statsResult(sessionId);
+    }
+
+    if ("GET".equals(requestMethod) && "export".equals(action)) {
+      return exportHistory(request, sessionId, params);
+    }
 
     if ("DELETE".equals(requestMethod) && "clear".equals(action)) {
       if (sessionId != null && !sessionId.trim().isEmpty()) {
         boolean deleted = SessionManager.clearSession(sessionId.trim());
         if (deleted) {
           // При очистке сессии удаляем cookie
-          String response =
-              "Set-Cookie: sessionId=; Path=/; Expires=Thu, 01 Jan 1970 00:00:00 GMT\r\n"
-                  + "Content-Type: application/json; charset=UTF-8\r\n"
-                  + "Content-Length: 46\r\n"
-                  + "\r\n"
-                  + "{\"status\": \"success\", \"message\": \"Session cleared\"}";
-          System.out.println(response);
+          return ResponseWriter.acquire()
+              .header(EXPIRED_SESSION_COOKIE)
+              .header(ResponseWriter.CONTENT_TYPE_JSON)
+              .body()
+              .raw(SESSION_CLEARED);
         } else {
-          System.out.println(errorResult("Session not found"));
+          return errorResult("Session not found");
         }
       } else {
-        System.out.println(errorResult("Missing sessionId parameter"));
+        return errorResult("Missing sessionId parameter");
       }
-      return;
     }
 
+    // Параметры постраничного чтения: since - нижняя граница (новые записи),
+    // cursor - верхняя граница (страница более старых записей), limit - размер страницы
+    int since = parseIntParam(params.get("since"), 0);
+    int cursor = parseIntParam(params.get("cursor"), Integer.MAX_VALUE);
+    int limit = parseIntParam(params.get("limit"), Integer.MAX_VALUE);
+    if (since < 0 || cursor < 0 || limit < 0) {
+      return errorResult("Invalid pagination parameters");
+    }
+    // format=columns - компактный вид: массив на каждое поле вместо объекта на каждую запись
+    String format = params.get("format");
+    boolean columns = "columns".equals(format);
+    if (format != null && !columns && !"rows".equals(format)) {
+      return errorResult("Unsupported format: " + format);
+    }
+
+    String ifNoneMatch = request.getParam("HTTP_IF_NONE_MATCH");
     if (sessionId != null && !sessionId.trim().isEmpty()) {
-      List<SessionManager.CalculationResult> allResults =
-          SessionManager.getResults(sessionId.trim());
-      String jsonResponse = buildJsonResponse(allResults);
-      System.out.println(successJsonResult(jsonResponse));
+      long phaseStart = System.nanoTime();
+      // Версия истории известна по снимку без копирования: если у клиента она уже есть, отвечаем
+      // 304 до чтения страницы и сериализации
+      ColumnarSession.Snapshot snapshot = SessionManager.getSnapshot(sessionId.trim());
+      if (snapshot == null) {
+        Metrics.record(Metrics.Phase.PERSIST, phaseStart);
+        return emptyHistory(ifNoneMatch, columns);
+      }
+      String etag = etagOf(snapshot);
+      if (etagMatches(ifNoneMatch, etag)) {
+        Metrics.record(Metrics.Phase.PERSIST, phaseStart);
+        return notModified(etag);
+      }
+
+      SessionManager.ResultPage page =
+          SessionManager.getResultsPage(snapshot, since, cursor, limit);
+      phaseStart = Metrics.record(Metrics.Phase.PERSIST, phaseStart);
+      ResponseWriter response = successJsonResult(null, etag);
+      if (columns) {
+        writeColumnsResponse(response, page);
+      } else {
+        writeJsonResponse(response, page);
+      }
+      Metrics.record(Metrics.Phase.SERIALIZE, phaseStart);
+      return response;
     } else {
       // Если нет sessionId - возвращаем пустой результат
-      System.out.println(successJsonResult("{\"results\": []}"));
+      return emptyHistory(ifNoneMatch, columns);
     }
   }
 
-  /** Обрабатывает POST запрос */
-  private static void handlePostRequest() {
-      // Проверка аутентификации в начале метода
-      if (!checkAuthentication()) {
-          System.out.println(sendAuthenticationRequest());
-          return;
+  /**
+   * Long-poll: отвечает записями с номерами от since, как только они появятся, а по таймауту -
+   * пустым ответом или 304. Если передан If-None-Match, изменением считается любая смена ETag,
+   * иначе - смена числа записей. Пока изменений нет, запрос ждет в {@link HistoryWatch} и не
+   * занимает поток.
+   *
+   * @return null - запрос отложен
+   */
+  private static ResponseWriter watchHistory(
+      FcgiRequest request, String sessionId, FormFields params) {
+    int since = parseIntParam(params.get("since"), 0);
+    if (since < 0) {
+      return errorResult("Invalid pagination parameters");
+    }
+    String id = sessionId == null ? "" : sessionId.trim();
+    String ifNoneMatch = request.getParam("HTTP_IF_NONE_MATCH");
+
+    request.suspend();
+    SessionManager.watch(
+        id,
+        new HistoryWatch.Waiter() {
+          @Override
+          public boolean tryComplete(boolean force) {
+            if (!request.isAborted()) {
+              ResponseWriter response = historyChange(id, since, ifNoneMatch, force);
+              if (response == null) {
+                return false;
+              }
+              response.send(request);
+            }
+            request.finish();
+            return true;
+          }
+
+          @Override
+          public boolean isCancelled() {
+            return request.isAborted();
+          }
+        },
+        WATCH_TIMEOUT_MS);
+    return null;
+  }
+
+  /**
+   * Ответ на action=watch или null, если история не изменилась и force = false. Если сессию
+   * пересоздали (ETag клиента с другим отпечатком первой записи), отдается вся история, и клиент
+   * увидит расхождение по cursor.
+   */
+  private static ResponseWriter historyChange(
+      String sessionId, int since, String ifNoneMatch, boolean force) {
+    ColumnarSession.Snapshot snapshot =
+        sessionId.isEmpty() ? null : SessionManager.getSnapshot(sessionId);
+    String etag = snapshot == null ? EMPTY_ETAG : etagOf(snapshot);
+    int size = snapshot == null ? 0 : snapshot.size();
+    boolean unchanged = ifNoneMatch != null ? etagMatches(ifNoneMatch, etag) : size == since;
+    if (unchanged && !force) {
+      return null;
+    }
+    if (unchanged && ifNoneMatch != null) {
+      return notModified(etag);
+    }
+    if (snapshot == null) {
+      return successJsonResult(null, EMPTY_ETAG).raw(EMPTY_HISTORY);
+    }
+
+    boolean sameSession =
+        ifNoneMatch == null
+            || ifNoneMatch.contains("\"" + Long.toString(snapshot.origin(), 36) + "-");
+    SessionManager.ResultPage page =
+        SessionManager.getResultsPage(
+            snapshot, sameSession ? since : 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    ResponseWriter response = successJsonResult(null, etag);
+    writeJsonResponse(response, page);
+    return response;
+  }
+
+  /**
+   * Выгрузка истории в CSV или NDJSON от старых записей к новым, по желанию только за [from, to)
+   * (миллисекунды эпохи) и только попадания или промахи (inArea). Сессия из кэша читается по снимку
+   * без блокировок, а сессия, которой в кэше нет, - из хранилища частями, не загружаясь в кэш и не
+   * вытесняя из него другие. Записи уходят частями по export.chunkBytes; следующая часть пишется,
+   * когда веб-сервер принял предыдущую, поэтому память на запрос не зависит от длины истории, а
+   * заголовки клиент получает сразу.
+   *
+   * @return null - ответ отправлен частями
+   */
+  private static ResponseWriter exportHistory(
+      FcgiRequest request, String sessionId, FormFields params) {
+    String format = params.get("format");
+    boolean csv = format == null || "csv".equals(format);
+    if (!csv && !"ndjson".equals(format)) {
+      return errorResult("Unsupported format: " + format);
+    }
+    long from;
+    long to;
+    try {
+      from = parseLongParam(params.get("from"), Long.MIN_VALUE);
+      to = parseLongParam(params.get("to"), Long.MAX_VALUE);
+    } catch (NumberFormatException e) {
+      return errorResult("Invalid time range");
+    }
+    String inArea = params.get("inArea");
+    if (inArea != null && !"true".equals(inArea) && !"false".equals(inArea)) {
+      return errorResult("Invalid inArea filter");
+    }
+    boolean filterArea = inArea != null;
+    boolean hits = "true".equals(inArea);
+
+    String id = sessionId == null ? "" : sessionId.trim();
+    ResponseWriter response =
+        ResponseWriter.acquire()
+            .header(csv ? ResponseWriter.CONTENT_TYPE_CSV : ResponseWriter.CONTENT_TYPE_NDJSON)
+            .header(csv ? CSV_ATTACHMENT : NDJSON_ATTACHMENT)
+            .header(ResponseWriter.CORS)
+            .stream(request);
+    // false - веб-сервер не принял данные вовремя, выгрузка прекращается
+    Predicate<SessionManager.CalculationResult> row =
+        result -> {
+          if (result.timestamp() < from
+              || result.timestamp() >= to
+              || (filterArea && result.isInArea() != hits)) {
+            return true;
+          }
+          if (csv) {
+            writeCsvRow(response, result);
+          } else {
+            writeResult(response, result);
+            response.ascii('\n');
+          }
+          if (response.size() >= EXPORT_CHUNK_BYTES) {
+            response.flush(request);
+            return request.awaitSent(EXPORT_CHUNK_BYTES, EXPORT_SEND_TIMEOUT_MS);
+          }
+          return true;
+        };
+    try {
+      if (csv) {
+        response.raw(CSV_HEADER);
       }
-      
-    String contentType = FCGIInterface.request.params.getProperty("CONTENT_TYPE");
-    String scriptName = FCGIInterface.request.params.getProperty("SCRIPT_NAME");
+      ColumnarSession.Snapshot snapshot = id.isEmpty() ? null : SessionManager.cachedSnapshot(id);
+      if (snapshot != null) {
+        int size = snapshot.size();
+        for (int i = 0; i < size; i++) {
+          if (!row.test(snapshot.get(i))) {
+            return null;
+          }
+        }
+      } else if (!id.isEmpty()) {
+        // Холодная сессия читается из хранилища частями и в кэш не попадает
+        try {
+          if (!SessionManager.forEachStored(id, EXPORT_CHUNK_BYTES, row)) {
+            return null;
+          }
+        } catch (IOException e) {
+          Log.warn("Could not export session", "sessionId", id, "error", e.getMessage());
+        }
+      }
+      response.flush(request);
+      Metrics.recordResponse();
+    } finally {
+      response.release();
+    }
+    return null;
+  }
+
+  /** Строка CSV: те же поля, что в JSON, время - без кавычек, так как в нем нет запятых */
+  private static void writeCsvRow(ResponseWriter csv, SessionManager.CalculationResult result) {
+    csv.number(result.x()).ascii(',');
+    csv.number(result.y()).ascii(',');
+    csv.number(result.r()).ascii(',');
+    csv.bool(result.isInArea()).ascii(',');
+    csv.time(result.timestamp()).ascii(',');
+    csv.number(result.executionTime()).ascii('\n');
+  }
+
+  /** Пустая история для неизвестной или очищенной сессии: постоянный ответ или 304 */
+  private static ResponseWriter emptyHistory(String ifNoneMatch, boolean columns) {
+    if (etagMatches(ifNoneMatch, EMPTY_ETAG)) {
+      return notModified(EMPTY_ETAG);
+    }
+    return successJsonResult(null, EMPTY_ETAG).raw(columns ? EMPTY_COLUMNS : EMPTY_HISTORY);
+  }
+
+  /**
+   * ETag истории: отпечаток первой записи сессии и число записей в ней, поэтому он одинаков у всех
+   * воркеров и не меняется, когда сессию перечитывают из хранилища. Слабый, так как байты ответа
+   * зависят еще от формата и сжатия
+   */
+  private static String etagOf(ColumnarSession.Snapshot snapshot) {
+    return "W/\"" + Long.toString(snapshot.origin(), 36) + "-" + snapshot.size() + "\"";
+  }
+
+  /** Есть ли etag среди значений If-None-Match (слабое сравнение, как требует RFC 9110) */
+  private static boolean etagMatches(String ifNoneMatch, String etag) {
+    return ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag));
+  }
+
+  /** Ответ 304: у клиента уже есть эта версия истории */
+  private static ResponseWriter notModified(String etag) {
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.STATUS_NOT_MODIFIED)
+        .etag(etag)
+        .header(ResponseWriter.CORS)
+        .noContent();
+  }
+
+  /** Обрабатывает POST запрос */
+  private static ResponseWriter handlePostRequest(FcgiRequest request, FormFields query) {
+    // Проверка аутентификации в начале метода
+    ResponseWriter denied = authenticate(request);
+    if (denied != null) {
+      return denied;
+    }
+
+    ResponseWriter throttled = throttle(request, getSessionIdFromCookies(request));
+    if (throttled != null) {
+      return throttled;
+    }
+
+    String contentType = request.getParam("CONTENT_TYPE");
+    String scriptName = request.getParam("SCRIPT_NAME");
 
     // Проверяем, что это запрос к нашему скрипту
     if (scriptName == null || !scriptName.equals("/fcgi-bin/app.jar")) {
-      System.out.println(errorResult("Not Found"));
-      return;
+      return errorResult("Not Found");
     }
 
     if (contentType == null) {
-      System.out.println(errorResult("Content-Type is null"));
-      return;
+      return errorResult("Content-Type is null");
+    }
+
+    // Пакетная проверка точек
+    if ("batch".equals(query.get("action"))) {
+      return handleBatchRequest(request, contentType);
     }
 
     if (!contentType.equals("application/x-www-form-urlencoded")) {
-      System.out.println(errorResult("Content-Type is not supported"));
-      return;
+      return errorResult("Content-Type is not supported");
     }
 
-    Map<String, String> requestBody = parseFormUrlEncoded(readRequestBody());
-    String xStr = requestBody.get("xVal");
-    String yStr = requestBody.get("yVal");
-    String rStr = requestBody.get("rVal");
+    long phaseStart = System.nanoTime();
+    // Поля формы ищутся прямо в байтах тела, без промежуточных строк
+    FormFields form = new FormFields(request.getBody(), 0, bodyLength(request));
 
-    String sessionId = getSessionIdFromCookies();
+    String sessionId = getSessionIdFromCookies(request);
 
-    if (xStr == null || yStr == null || rStr == null) {
-      System.out.println(errorResult("Missing required parameters"));
-      return;
+    if (!form.contains("xVal") || !form.contains("yVal") || !form.contains("rVal")) {
+      return errorResult("Missing required parameters");
+    }
+
+    // Какую часть истории вернуть: delta - только новый результат, since - записи начиная с номера,
+    // по умолчанию - всю историю. Поля формы важнее одноименных параметров query string
+    String deltaValue = formOrQuery(form, query, "delta");
+    boolean delta = "true".equals(deltaValue) || "1".equals(deltaValue);
+    int since = parseIntParam(formOrQuery(form, query, "since"), 0);
+    if (since < 0) {
+      return errorResult("Invalid pagination parameters");
     }
 
     long startTime = System.nanoTime();
@@ -146,30 +530,30 @@ public class FastCGIServer {
     // Парсинг и валидация координат
     double x, y, r;
     try {
-      x = Double.parseDouble(xStr);
-      y = Double.parseDouble(yStr);
-      r = Double.parseDouble(rStr);
+      x = form.getDouble("xVal");
+      y = form.getDouble("yVal");
+      r = form.getDouble("rVal");
     } catch (NumberFormatException e) {
-      System.out.println(errorResult("Invalid number format"));
-      return;
+      return errorResult("Invalid number format");
     }
+    phaseStart = Metrics.record(Metrics.Phase.PARSE, phaseStart);
 
     // Валидация координат
     CoordinatesValidator validator = new CoordinatesValidator(x, y, r);
     if (!validator.checkData()) {
-      System.out.println(errorResult("Invalid data, try again"));
-      return;
+      return errorResult("Invalid data, try again");
     }
+    phaseStart = Metrics.record(Metrics.Phase.VALIDATE, phaseStart);
 
     // Проверяем попадание точки в область
     boolean isInArea = AreaChecker.isInArea(x, y, r);
+    phaseStart = Metrics.record(Metrics.Phase.CHECK, phaseStart);
 
     // Вычисляем время выполнения
-    double executionTime = (System.nanoTime() - startTime) / 1_000_000.0;
+    double executionTime = (phaseStart - startTime) / 1_000_000.0;
 
     // Получаем текущее время
-    String currentTime =
-        LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    long currentTime = System.currentTimeMillis();
 
     // Создаем результат
     SessionManager.CalculationResult result =
@@ -177,203 +561,493 @@ public class FastCGIServer {
 
     // Проверка наличия sessionId
     if (sessionId == null || sessionId.trim().isEmpty()) {
-      sessionId =
-          "sess_"
-              + System.currentTimeMillis()
-              + "_"
-              + Integer.toHexString((int) (Math.random() * 1000000));
-      System.err.println("Generated new sessionId: " + sessionId);
+      sessionId = generateSessionId();
     }
 
     // Добавляем в сессию
-    SessionManager.addResult(sessionId.trim(), result);
-
-    // Получаем все результаты для этой сессии
-    List<SessionManager.CalculationResult> allResults = SessionManager.getResults(sessionId.trim());
+    int index = SessionManager.addResult(sessionId.trim(), result);
+    phaseStart = Metrics.record(Metrics.Phase.PERSIST, phaseStart);
 
-    // Строим и отправляем JSON ответ
-    String jsonResponse = buildJsonResponse(allResults);
-    System.out.println(successJsonResult(jsonResponse, sessionId));
+    // Получаем результаты для этой сессии, начиная с запрошенного номера; ETag - версия истории,
+    // которую клиент получит, дописав эти записи к своим
+    ColumnarSession.Snapshot snapshot = SessionManager.getSnapshot(sessionId.trim());
+    SessionManager.ResultPage page =
+        snapshot == null
+            ? new SessionManager.ResultPage(List.of(), 0, -1)
+            : SessionManager.getResultsPage(
+                snapshot, delta ? index : since, Integer.MAX_VALUE, Integer.MAX_VALUE);
 
-    System.err.printf(
-        "Processed request: x=%f, y=%f, r=%f, result=%b, time=%fms\n",
-        x, y, r, isInArea, executionTime);
+    // Строим JSON ответ
+    ResponseWriter response =
+        successJsonResult(sessionId, snapshot == null ? null : etagOf(snapshot));
+    writeJsonResponse(response, page);
+    Metrics.record(Metrics.Phase.SERIALIZE, phaseStart);
+    return response;
   }
 
-  /** Читает тело запроса */
-  private static String readRequestBody() {
+  /**
+   * Обрабатывает пакетный POST (action=batch): точки в JSON или CSV проверяются одним проходом,
+   * корректные сохраняются в сессию одной записью журнала, в ответе - вердикт по каждой точке
+   */
+  private static ResponseWriter handleBatchRequest(FcgiRequest request, String contentType) {
+    long phaseStart = System.nanoTime();
+    PointBatch batch;
     try {
-      String contentLengthStr = FCGIInterface.request.params.getProperty("CONTENT_LENGTH");
-      if (contentLengthStr == null) {
-        return "";
-      }
+      batch = PointBatch.parse(readRequestBody(request), contentType);
+    } catch (IllegalArgumentException e) {
+      return errorResult(e.getMessage());
+    }
 
-      int contentLength = Integer.parseInt(contentLengthStr);
-      if (contentLength <= 0) {
-        return "";
-      }
+    long startTime = Metrics.record(Metrics.Phase.PARSE, phaseStart);
+    int count = batch.size();
+    double[] xs = batch.xs();
+    double[] ys = batch.ys();
+    double[] rs = batch.rs();
 
-      byte[] body = new byte[contentLength];
-      int totalRead = 0;
-      while (totalRead < contentLength) {
-        int read = System.in.read(body, totalRead, contentLength - totalRead);
-        if (read == -1) break;
-        totalRead += read;
-      }
+    boolean[] valid = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      valid[i] = new CoordinatesValidator(xs[i], ys[i], rs[i]).checkData();
+    }
+    phaseStart = Metrics.record(Metrics.Phase.VALIDATE, startTime);
 
-      return new String(body, 0, totalRead, StandardCharsets.UTF_8);
-    } catch (Exception e) {
-      System.out.println("Error reading request body: " + e);
-      return "";
+    boolean[] inArea = new boolean[count];
+    AreaChecker.isInArea(xs, ys, rs, inArea, count);
+    phaseStart = Metrics.record(Metrics.Phase.CHECK, phaseStart);
+
+    // Время выполнения делится поровну между точками пачки
+    double executionTime = (phaseStart - startTime) / 1_000_000.0 / Math.max(count, 1);
+    long currentTime = System.currentTimeMillis();
+
+    List<SessionManager.CalculationResult> accepted = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (valid[i]) {
+        accepted.add(
+            new SessionManager.CalculationResult(
+                xs[i], ys[i], rs[i], inArea[i], currentTime, executionTime));
+      }
     }
-  }
 
-  /** Парсит query string */
-  private static Map<String, String> parseQueryString(String queryString) {
-    Map<String, String> params = new HashMap<>();
-    if (queryString == null || queryString.isEmpty()) {
-      return params;
+    String sessionId = getSessionIdFromCookies(request);
+    if (sessionId == null || sessionId.trim().isEmpty()) {
+      sessionId = generateSessionId();
     }
+    int cursor = SessionManager.addResults(sessionId.trim(), accepted) + accepted.size();
+    phaseStart = Metrics.record(Metrics.Phase.PERSIST, phaseStart);
 
-    String[] pairs = queryString.split("&");
-    for (String pair : pairs) {
-      String[] keyValue = pair.split("=", 2);
-      if (keyValue.length == 2) {
-        try {
-          String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
-          String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-          params.put(key, value);
-        } catch (Exception e) {
-          System.out.println("Error parsing parameter: " + pair);
-        }
+    ResponseWriter json = successJsonResult(sessionId);
+    json.ascii("{\"results\": [");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) json.ascii(',');
+      if (valid[i]) {
+        json.ascii("{\"x\": ").number(xs[i]);
+        json.ascii(",\"y\": ").number(ys[i]);
+        json.ascii(",\"r\": ").number(rs[i]);
+        json.ascii(",\"isInArea\": ").bool(inArea[i]).ascii('}');
+      } else {
+        json.ascii("{\"error\": \"Invalid data\"}");
       }
     }
-    return params;
+    json.ascii("], \"accepted\": ").number(accepted.size());
+    json.ascii(", \"rejected\": ").number(count - accepted.size());
+    json.ascii(", \"cursor\": ").number(cursor).ascii('}');
+
+    Metrics.record(Metrics.Phase.SERIALIZE, phaseStart);
+    return json;
   }
 
-  /** Парсит form-urlencoded данные */
-  private static Map<String, String> parseFormUrlEncoded(String body) {
-    return parseQueryString(body);
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
   }
 
-  /** Создает успешный JSON ответ */
-  private static String successJsonResult(String jsonBody, String sessionId) {
-    String cookieHeader = "";
-    if (sessionId != null && !sessionId.trim().isEmpty()) {
-      cookieHeader =
-          "Set-Cookie: sessionId=" + sessionId + "; Path=/; HttpOnly; SameSite=Strict\r\n";
+  /** Генерирует идентификатор новой сессии */
+  private static String generateSessionId() {
+    String sessionId =
+        "sess_"
+            + System.currentTimeMillis()
+            + "_"
+            + Integer.toHexString((int) (Math.random() * 1000000));
+    Log.debug("Generated new session", "sessionId", sessionId);
+    return sessionId;
+  }
+
+  /** Читает тело запроса */
+  private static String readRequestBody(FcgiRequest request) {
+    return new String(request.getBody(), 0, bodyLength(request), StandardCharsets.UTF_8);
+  }
+
+  /** Длина тела запроса: CONTENT_LENGTH, но не больше полученных байтов */
+  private static int bodyLength(FcgiRequest request) {
+    try {
+      String contentLengthStr = request.getParam("CONTENT_LENGTH");
+      if (contentLengthStr == null) {
+        return 0;
+      }
+
+      int contentLength = Integer.parseInt(contentLengthStr);
+      return Math.max(Math.min(contentLength, request.getBody().length), 0);
+    } catch (Exception e) {
+      Log.warn("Error reading request body", "error", e);
+      return 0;
     }
+  }
+
+  /** Параметр из тела формы или, если его там нет, из query string */
+  private static String formOrQuery(FormFields form, FormFields query, String name) {
+    String value = form.get(name);
+    return value != null ? value : query.get(name);
+  }
 
-    return "Content-Type: application/json; charset=UTF-8\r\n"
-        + cookieHeader
-        + "Content-Length: "
-        + jsonBody.getBytes(StandardCharsets.UTF_8).length
-        + "\r\n"
-        + "Access-Control-Allow-Origin: *\r\n"
-        + "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n"
-        + "Access-Control-Allow-Headers: Content-Type\r\n"
-        + "\r\n"
-        + jsonBody;
+  /** Начинает успешный JSON ответ: заголовки записаны, дальше пишется тело */
+  private static ResponseWriter successJsonResult(String sessionId) {
+    return successJsonResult(sessionId, null);
   }
 
-  /** Перегруженная версия без sessionId */
-  private static String successJsonResult(String jsonBody) {
-    return successJsonResult(jsonBody, null);
+  /** Начинает успешный JSON ответ с версией истории в ETag, если она задана */
+  private static ResponseWriter successJsonResult(String sessionId, String etag) {
+    ResponseWriter response = ResponseWriter.acquire().header(ResponseWriter.CONTENT_TYPE_JSON);
+    if (sessionId != null && !sessionId.trim().isEmpty()) {
+      response.sessionCookie(sessionId);
+    }
+    if (etag != null) {
+      response.etag(etag);
+    }
+    return response.header(ResponseWriter.CORS).body();
   }
 
   /** Получает sessionId из cookies */
-  private static String getSessionIdFromCookies() {
-    String cookieHeader = FCGIInterface.request.params.getProperty("HTTP_COOKIE");
+  static String getSessionIdFromCookies(FcgiRequest request) {
+    String cookieHeader = request.getParam("HTTP_COOKIE");
     if (cookieHeader == null) {
       return null;
     }
 
-    String[] cookies = cookieHeader.split(";");
-    for (String cookie : cookies) {
-      String[] parts = cookie.trim().split("=", 2);
-      if (parts.length == 2 && "sessionId".equals(parts[0].trim())) {
-        return parts[1].trim();
+    // Ищем "sessionId" среди пар "имя=значение" через ';' без разбиения строки: создается только
+    // строка самого значения
+    int start = 0;
+    while (start <= cookieHeader.length()) {
+      int end = cookieHeader.indexOf(';', start);
+      if (end < 0) {
+        end = cookieHeader.length();
       }
+      int equals = cookieHeader.indexOf('=', start);
+      if (equals >= 0 && equals < end && isSessionIdName(cookieHeader, start, equals)) {
+        return cookieHeader.substring(equals + 1, end).trim();
+      }
+      start = end + 1;
     }
 
     return null;
   }
 
-  /** Создает ответ с ошибкой в JSON формате */
-  private static String errorResult(String message) {
-    String jsonBody = "{\"error\": \"" + message + "\"}";
-    return "Status: 400 Bad Request\r\n"
-        + "Content-Type: application/json; charset=UTF-8\r\n"
-        + "Content-Length: "
-        + jsonBody.getBytes(StandardCharsets.UTF_8).length
-        + "\r\n"
-        + "\r\n"
-        + jsonBody;
+  /** Совпадает ли имя cookie в [start, end) без пробельных символов по краям с "sessionId" */
+  private static boolean isSessionIdName(String header, int start, int end) {
+    while (start < end && header.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && header.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return end - start == SESSION_COOKIE.length()
+        && header.regionMatches(start, SESSION_COOKIE, 0, SESSION_COOKIE.length());
   }
 
-  /** Строит JSON ответ с результатами */
-  private static String buildJsonResponse(
-      java.util.List<SessionManager.CalculationResult> results) {
-    StringBuilder json = new StringBuilder();
-    json.append("{\"results\": [");
+  /** Создает ответ с метриками в текстовом формате Prometheus */
+  private static ResponseWriter metricsResult() {
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.CONTENT_TYPE_METRICS)
+        .body()
+        .text(Metrics.render());
+  }
 
-    for (int i = 0; i < results.size(); i++) {
-      SessionManager.CalculationResult result = results.get(i);
-      if (i > 0) json.append(",");
+  /** Создает ответ с ошибкой в JSON формате и учитывает ошибку в метриках */
+  private static ResponseWriter errorResult(String message) {
+    Metrics.recordError(message);
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.STATUS_BAD_REQUEST)
+        .header(ResponseWriter.CONTENT_TYPE_JSON)
+        .body()
+        .ascii("{\"error\": ")
+        .jsonString(message)
+        .ascii('}');
+  }
+
+  /**
+   * Ответ на action=stats: сводки сессии и всех сессий, которые поддерживаются при добавлении
+   * записей; историю читает только сводка сессии, которой нет в памяти. Сводка неизвестной сессии
+   * пустая
+   */
+  private static ResponseWriter statsResult(String sessionId) {
+    ResultStats session =
+        sessionId == null || sessionId.trim().isEmpty()
+            ? null
+            : SessionManager.sessionStats(sessionId.trim());
+    ResponseWriter json = successJsonResult(null);
+    json.ascii("{\"session\": ");
+    writeStats(json, session == null ? new ResultStats() : session);
+    json.ascii(", \"global\": ");
+    writeStats(json, SessionManager.globalStats());
+    return json.ascii('}');
+  }
+
+  /**
+   * Пишет сводку: {@code {"count", "hits", "hitRate", "executionTime": {"min", "max", "mean"},
+   * "byR": [...], "byXR": [...], "y": [...]}}. В byXR только непустые ячейки, корзины y - с левой
+   * границей from и шириной 1
+   */
+  static void writeStats(ResponseWriter json, ResultStats stats) {
+    json.ascii("{\"count\": ").number(stats.count());
+    json.ascii(", \"hits\": ").number(stats.hits());
+    json.ascii(", \"hitRate\": ").number(stats.hitRate());
+    json.ascii(", \"executionTime\": {\"min\": ");
+    writeNullable(json, stats.minExecutionTime());
+    json.ascii(", \"max\": ");
+    writeNullable(json, stats.maxExecutionTime());
+    json.ascii(", \"mean\": ");
+    writeNullable(json, stats.meanExecutionTime());
 
-      json.append("{");
-      json.append("\"x\": ").append(result.x()).append(",");
-      json.append("\"y\": ").append(result.y()).append(",");
-      json.append("\"r\": ").append(result.r()).append(",");
-      json.append("\"isInArea\": ").append(result.isInArea()).append(",");
-      json.append("\"currentTime\": \"").append(result.currentTime()).append("\",");
-      json.append("\"executionTime\": ").append(result.executionTime());
-      json.append("}");
+    double[] xs = ResultStats.xValues();
+    double[] rs = ResultStats.rValues();
+    json.ascii("}, \"byR\": [");
+    for (int r = 0; r < rs.length; r++) {
+      if (r > 0) json.ascii(',');
+      json.ascii("{\"r\": ").number(rs[r]);
+      json.ascii(", \"count\": ").number(stats.countByR(r));
+      json.ascii(", \"hits\": ").number(stats.hitsByR(r));
+      json.ascii('}');
     }
+    json.ascii("], \"byXR\": [");
+    boolean first = true;
+    for (int x = 0; x < xs.length; x++) {
+      for (int r = 0; r < rs.length; r++) {
+        if (stats.count(x, r) == 0) {
+          continue;
+        }
+        if (!first) json.ascii(',');
+        first = false;
+        json.ascii("{\"x\": ").number(xs[x]);
+        json.ascii(", \"r\": ").number(rs[r]);
+        json.ascii(", \"count\": ").number(stats.count(x, r));
+        json.ascii(", \"hits\": ").number(stats.hits(x, r));
+        json.ascii('}');
+      }
+    }
+    json.ascii("], \"y\": [");
+    for (int bin = 0; bin < ResultStats.yBins(); bin++) {
+      if (bin > 0) json.ascii(',');
+      json.ascii("{\"from\": ").number(ResultStats.yBinStart(bin));
+      json.ascii(", \"count\": ").number(stats.yCount(bin));
+      json.ascii(", \"hits\": ").number(stats.yHits(bin));
+      json.ascii('}');
+    }
+    json.ascii("]}");
+  }
 
-    json.append("]}");
-    return json.toString();
+  /** Число или null вместо NaN */
+  private static void writeNullable(ResponseWriter json, double value) {
+    if (Double.isNaN(value)) {
+      json.ascii("null");
+    } else {
+      json.number(value);
+    }
   }
 
-    /** Отправляет запрос на аутентификацию */
-    private static String sendAuthenticationRequest() {
-        return "Status: 401 Unauthorized\r\n" +
-                "WWW-Authenticate: Basic realm=\"" + AUTH_REALM + "\", charset=\"UTF-8\"\r\n" +
-                "Content-Type: application/json; charset=UTF-8\r\n" +
-                "Content-Length: 72\r\n" +
-                "\r\n" +
-                "{\"error\": \"Authentication required\", \"message\": \"Please provide credentials\"}";
+  /** Пишет JSON со страницей результатов и курсорами */
+  static void writeJsonResponse(ResponseWriter json, SessionManager.ResultPage page) {
+    json.ascii("{\"results\": ");
+    writeResults(json, page.results());
+    json.ascii(", \"cursor\": ").number(page.cursor());
+    if (page.nextCursor() >= 0) {
+      json.ascii(", \"nextCursor\": ").number(page.nextCursor());
     }
+    json.ascii('}');
+  }
 
-  /** Проверяет аутентификационные данные */
-  private static boolean checkAuthentication() {
-    String authHeader = FCGIInterface.request.params.getProperty("HTTP_AUTHORIZATION");
+  /**
+   * Страница истории по столбцам: {@code {"columns": {"x": [...], ...}, "cursor": N}}. Порядок
+   * записей тот же, что в results, а имена полей не повторяются в каждой записи
+   */
+  static void writeColumnsResponse(ResponseWriter json, SessionManager.ResultPage page) {
+    List<SessionManager.CalculationResult> results = page.results();
+    json.ascii("{\"columns\": {\"x\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.number(results.get(i).x());
+    }
+    json.ascii("], \"y\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.number(results.get(i).y());
+    }
+    json.ascii("], \"r\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.number(results.get(i).r());
+    }
+    json.ascii("], \"isInArea\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.bool(results.get(i).isInArea());
+    }
+    json.ascii("], \"currentTime\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.jsonTime(results.get(i).timestamp());
+    }
+    json.ascii("], \"executionTime\": [");
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      json.number(results.get(i).executionTime());
+    }
+    json.ascii("]}, \"cursor\": ").number(page.cursor());
+    if (page.nextCursor() >= 0) {
+      json.ascii(", \"nextCursor\": ").number(page.nextCursor());
+    }
+    json.ascii('}');
+  }
 
-    if (authHeader == null || !authHeader.startsWith("Basic ")) {
-      return false;
+  /** Пишет JSON массив результатов */
+  private static void writeResults(
+      ResponseWriter json, List<SessionManager.CalculationResult> results) {
+    json.ascii('[');
+
+    for (int i = 0; i < results.size(); i++) {
+      if (i > 0) json.ascii(',');
+      writeResult(json, results.get(i));
     }
 
+    json.ascii(']');
+  }
+
+  /** Пишет результат JSON объектом */
+  private static void writeResult(ResponseWriter json, SessionManager.CalculationResult result) {
+    json.ascii("{\"x\": ").number(result.x());
+    json.ascii(",\"y\": ").number(result.y());
+    json.ascii(",\"r\": ").number(result.r());
+    json.ascii(",\"isInArea\": ").bool(result.isInArea());
+    json.ascii(",\"currentTime\": ").jsonTime(result.timestamp());
+    json.ascii(",\"executionTime\": ").number(result.executionTime());
+    json.ascii('}');
+  }
+
+  /** Читает неотрицательный целый параметр: значение по умолчанию, если его нет, -1 при ошибке */
+  private static int parseIntParam(String value, int defaultValue) {
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
     try {
-      // Декодируем Base64
-      String base64Credentials = authHeader.substring("Basic ".length()).trim();
-      byte[] decodedBytes = Base64.getDecoder().decode(base64Credentials);
-      String credentials = new String(decodedBytes, StandardCharsets.UTF_8);
-
-      // Разделяем логин и пароль
-      String[] values = credentials.split(":", 2);
-      if (values.length != 2) {
-        return false;
-      }
+      return Math.max(Integer.parseInt(value.trim()), -1);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
 
-      String username = values[0];
-      String password = values[1];
+  /** Читает целый параметр или значение по умолчанию, если его нет */
+  private static long parseLongParam(String value, long defaultValue) {
+    return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value.trim());
+  }
 
-      // Проверяем валидность
-      return VALID_USERNAME.equals(username) && VALID_PASSWORD.equals(password);
+  /** 429, если сессия или пользователь превысили частоту запросов, иначе null */
+  private static ResponseWriter throttle(FcgiRequest request, String sessionId) {
+    long waitNanos =
+        admission.throttle(
+            sessionId, Authenticator.usernameOf(request.getParam("HTTP_AUTHORIZATION")));
+    return waitNanos == 0 ? null : tooManyRequests(waitNanos);
+  }
 
-    } catch (Exception e) {
-      System.err.println("Error decoding authentication: " + e.getMessage());
-      return false;
+  /** 429 с Retry-After: через сколько секунд повторить */
+  private static ResponseWriter tooManyRequests(long waitNanos) {
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.STATUS_TOO_MANY_REQUESTS)
+        .retryAfter(Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000))
+        .header(ResponseWriter.CONTENT_TYPE_JSON)
+        .body()
+        .raw(TOO_MANY_REQUESTS);
+  }
+
+  /** 503 для запроса сверх предела одновременных запросов */
+  private static ResponseWriter serviceUnavailable() {
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.STATUS_SERVICE_UNAVAILABLE)
+        .retryAfter(1)
+        .header(ResponseWriter.CONTENT_TYPE_JSON)
+        .body()
+        .raw(SERVICE_UNAVAILABLE);
+  }
+
+  /** Статистика допуска запросов */
+  static AdmissionControl.Stats admissionStats() {
+    return admission.stats();
+  }
+
+  /** Отправляет запрос на аутентификацию */
+  private static ResponseWriter sendAuthenticationRequest() {
+    return ResponseWriter.acquire()
+        .header(ResponseWriter.STATUS_UNAUTHORIZED)
+        .header(AUTH_CHALLENGE)
+        .header(ResponseWriter.CONTENT_TYPE_JSON)
+        .body()
+        .raw(AUTH_REQUIRED);
+  }
+
+  /**
+   * Проверяет аутентификацию, учитывая отказы в метриках: null, если запрос аутентифицирован, иначе
+   * 401 или 429, если с этим логином с этого адреса было слишком много неудачных попыток
+   */
+  private static ResponseWriter authenticate(FcgiRequest request) {
+    long result =
+        login(
+            Users.authenticator,
+            admission,
+            request.getParam("HTTP_AUTHORIZATION"),
+            request.getParam("REMOTE_ADDR"));
+    if (result == LOGIN_DENIED) {
+      Metrics.recordError("Authentication required");
+      return sendAuthenticationRequest();
+    }
+    if (result > 0) {
+      Metrics.recordError("Too many failed logins");
+      return tooManyRequests(result);
     }
+    return null;
+  }
+
+  /**
+   * Вход по заголовку Authorization: 0, если он принят, {@link #LOGIN_DENIED} или через сколько
+   * наносекунд повторить, если неудачных попыток было слишком много - тогда пароль даже не
+   * проверяется. Уже подтвержденный заголовок ограничение не проходит, а отказ учитывается только у
+   * запроса с логином и паролем: первый запрос браузера приходит без них
+   */
+  static long login(
+      Authenticator authenticator, AdmissionControl admission, String authHeader, String client) {
+    if (authenticator.isVerified(authHeader)) {
+      return 0;
+    }
+    String username = Authenticator.usernameOf(authHeader);
+    if (username == null) {
+      return LOGIN_DENIED;
+    }
+    long waitNanos = admission.tryLogin(username, client);
+    if (waitNanos > 0) {
+      return waitNanos;
+    }
+
+    long startTime = System.nanoTime();
+    boolean authenticated = authenticator.check(authHeader);
+    Metrics.record(Metrics.Phase.AUTH, startTime);
+    if (!authenticated) {
+      admission.loginFailed(username, client);
+      return LOGIN_DENIED;
+    }
+    return 0;
+  }
+
+  /** Проверяет аутентификационные данные */
+  static boolean checkAuthentication(FcgiRequest request) {
+    return Users.authenticator.check(request.getParam("HTTP_AUTHORIZATION"));
+  }
+
+  /** Статистика кэша проверок аутентификации */
+  static Authenticator.Stats authStats() {
+    return Users.authenticator.stats();
   }
 }
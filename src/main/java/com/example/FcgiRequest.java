@@ -0,0 +1,134 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/** Контекст одного FastCGI запроса: параметры, тело и буфер ответа */
+public class FcgiRequest {
+
+  private final FcgiServer.Connection connection;
+  private final int requestId;
+  private final Map<String, String> params;
+  private final byte[] body;
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private volatile boolean aborted;
+  private boolean finished;
+  private boolean suspended;
+
+  FcgiRequest(
+      FcgiServer.Connection connection, int requestId, Map<String, String> params, byte[] body) {
+    this.connection = connection;
+    this.requestId = requestId;
+    this.params = params;
+    this.body = body;
+  }
+
+  /** Возвращает CGI-параметр запроса (REQUEST_METHOD, QUERY_STRING, HTTP_COOKIE и т.д.) */
+  public String getParam(String name) {
+    return params.get(name);
+  }
+
+  /** Тело запроса (FCGI_STDIN) */
+  public byte[] getBody() {
+    return body;
+  }
+
+  int getRequestId() {
+    return requestId;
+  }
+
+  /** Был ли запрос отменен веб-сервером или закрыто соединение */
+  public boolean isAborted() {
+    return aborted;
+  }
+
+  void abort() {
+    aborted = true;
+  }
+
+  /**
+   * Оставляет запрос открытым после возврата из обработчика: ответ отправит и запрос завершит
+   * другой поток вызовом {@link #finish()}
+   */
+  public synchronized void suspend() {
+    suspended = true;
+  }
+
+  synchronized boolean isSuspended() {
+    return suspended;
+  }
+
+  /** Дописывает строку в ответ */
+  public void print(String text) {
+    write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Дописывает строку и перевод строки в ответ */
+  public void println(String text) {
+    print(text + "\n");
+  }
+
+  /** Дописывает байты в ответ */
+  public synchronized void write(byte[] bytes) {
+    write(bytes, 0, bytes.length);
+  }
+
+  /** Дописывает часть массива байтов в ответ */
+  public synchronized void write(byte[] bytes, int offset, int length) {
+    if (!finished) {
+      out.write(bytes, offset, length);
+    }
+  }
+
+  /**
+   * Отправляет готовую часть ответа сразу, без копирования в буфер запроса; накопленное ранее
+   * уходит первым
+   */
+  public synchronized void send(byte[] bytes, int offset, int length) {
+    if (finished) {
+      return;
+    }
+    flush();
+    if (!aborted && length > 0) {
+      connection.sendStdout(requestId, bytes, offset, length);
+    }
+  }
+
+  /**
+   * Ждет, пока веб-сервер примет отправленное так, что в очереди соединения останется не больше
+   * maxBytes байт: длинный ответ, отправляемый частями, не копится в памяти, если его читают
+   * медленнее, чем пишут. Возвращает false, если запрос отменен, соединение закрыто или очередь не
+   * разошлась за timeoutMillis
+   */
+  public boolean awaitSent(long maxBytes, long timeoutMillis) {
+    try {
+      return connection.awaitQueued(maxBytes, timeoutMillis) && !aborted;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Отправляет накопленную часть ответа веб-серверу, не завершая запрос */
+  public synchronized void flush() {
+    if (finished || out.size() == 0) {
+      return;
+    }
+    if (!aborted) {
+      connection.sendStdout(requestId, out.toByteArray());
+    }
+    out.reset();
+  }
+
+  /** Отправляет остаток ответа и завершает запрос (FCGI_END_REQUEST) */
+  public synchronized void finish() {
+    if (finished) {
+      return;
+    }
+    flush();
+    finished = true;
+    connection.endRequest(this);
+  }
+}
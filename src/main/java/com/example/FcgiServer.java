@@ -0,0 +1,606 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FastCGI сервер на NIO. Один поток-селектор принимает соединения и разбирает записи протокола,
+ * каждый собранный запрос выполняется в отдельном виртуальном потоке. Поддерживаются
+ * мультиплексирование запросов в одном соединении (FCGI_MPXS_CONNS) и постоянные соединения
+ * (FCGI_KEEP_CONN).
+ */
+public class FcgiServer {
+
+  /**
+   * Обработчик запроса; после возврата из него запрос завершается, если обработчик не отложил это
+   * через {@link FcgiRequest#suspend()}
+   */
+  public interface Handler {
+    void handle(FcgiRequest request);
+  }
+
+  static final int FCGI_VERSION_1 = 1;
+  static final int FCGI_HEADER_LEN = 8;
+  static final int FCGI_MAX_CONTENT_LEN = 65535;
+
+  static final int FCGI_BEGIN_REQUEST = 1;
+  static final int FCGI_ABORT_REQUEST = 2;
+  static final int FCGI_END_REQUEST = 3;
+  static final int FCGI_PARAMS = 4;
+  static final int FCGI_STDIN = 5;
+  static final int FCGI_STDOUT = 6;
+  static final int FCGI_DATA = 8;
+  static final int FCGI_GET_VALUES = 9;
+  static final int FCGI_GET_VALUES_RESULT = 10;
+  static final int FCGI_UNKNOWN_TYPE = 11;
+
+  static final int FCGI_RESPONDER = 1;
+  static final int FCGI_KEEP_CONN = 1;
+
+  static final int FCGI_REQUEST_COMPLETE = 0;
+  static final int FCGI_UNKNOWN_ROLE = 3;
+
+  private static final int MAX_CONNS = Integer.getInteger("fcgi.maxConns", 1024);
+  private static final int MAX_REQS = Integer.getInteger("fcgi.maxReqs", 10_000);
+  private static final int MAX_BODY_BYTES = Integer.getInteger("fcgi.maxBodyBytes", 16 << 20);
+  private static final int MAX_PARAMS_BYTES = Integer.getInteger("fcgi.maxParamsBytes", 1 << 20);
+
+  private final ServerSocketChannel serverChannel;
+  private final Handler handler;
+  private final Selector selector;
+  private final ExecutorService workers = newWorkerExecutor();
+
+  /** Соединения, которым нужно включить ожидание готовности на запись */
+  private final Queue<Connection> writeInterest = new ConcurrentLinkedQueue<>();
+
+  public FcgiServer(ServerSocketChannel serverChannel, Handler handler) throws IOException {
+    this.serverChannel = serverChannel;
+    this.handler = handler;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Открывает слушающий сокет: порт из системного свойства FCGI_PORT, иначе сокет, унаследованный
+   * от веб-сервера через stdin (как у FCGIInterface).
+   */
+  public static ServerSocketChannel openServerChannel() throws IOException {
+    String port = System.getProperty("FCGI_PORT");
+    if (port != null) {
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      channel.bind(new InetSocketAddress(Integer.parseInt(port)));
+      return channel;
+    }
+
+    Channel inherited = System.inheritedChannel();
+    if (inherited instanceof ServerSocketChannel) {
+      return (ServerSocketChannel) inherited;
+    }
+    throw new IOException("FCGI_PORT is not set and stdin is not a listening socket");
+  }
+
+  /** Виртуальные потоки, если они есть в JDK, иначе обычный пул */
+  private static ExecutorService newWorkerExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /** Цикл селектора; не возвращает управление, пока сокет открыт */
+  public void serve() throws IOException {
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+    while (serverChannel.isOpen()) {
+      selector.select();
+
+      Connection pending;
+      while ((pending = writeInterest.poll()) != null) {
+        SelectionKey key = pending.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+
+        try {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          if (key.isReadable()) {
+            connection.onReadable();
+          }
+          if (key.isValid() && key.isWritable()) {
+            connection.onWritable(key);
+          }
+        } catch (IOException | CancelledKeyException e) {
+          // Ключ отменен, если соединение закрыл другой поток или drain() после последнего ответа
+          if (key.attachment() instanceof Connection connection) {
+            connection.close();
+          }
+        } catch (RuntimeException e) {
+          // Ошибка разбора одного соединения не должна останавливать цикл для остальных
+          Log.error("Error handling FastCGI connection", "error", e);
+          if (key.attachment() instanceof Connection connection) {
+            connection.close();
+          }
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      // Ответ уходит несколькими записями (STDOUT, END_REQUEST): без TCP_NODELAY алгоритм Нейгла
+      // задерживает последнюю до подтверждения предыдущей, и каждый запрос ждет delayed ACK
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Connection connection = new Connection(channel);
+      channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+  }
+
+  /** Соединение с веб-сервером; разбор входящих записей выполняется только в потоке селектора */
+  class Connection {
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(FCGI_HEADER_LEN + FCGI_MAX_CONTENT_LEN + 255);
+
+    /**
+     * Запросы, для которых еще не получен весь FCGI_STDIN; только для потока селектора, другие
+     * потоки видят их через {@link #inProgress}
+     */
+    private final Map<Integer, RequestBuilder> building = new HashMap<>();
+
+    /** Запросы, переданные обработчикам; под монитором соединения */
+    private final Map<Integer, FcgiRequest> running = new HashMap<>();
+
+    /** Начатые и еще не завершенные запросы, собираемые и выполняемые; под монитором соединения */
+    private int inProgress;
+
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /** Байт в outbound, еще не записанных в сокет */
+    private long queuedBytes;
+
+    private boolean keepConn = true;
+    private boolean closeWhenDrained;
+    private boolean closed;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void onReadable() throws IOException {
+      int read = channel.read(in);
+      if (read < 0) {
+        close();
+        return;
+      }
+
+      in.flip();
+      while (in.remaining() >= FCGI_HEADER_LEN) {
+        int start = in.position();
+        int type = in.get(start + 1) & 0xFF;
+        int requestId = ((in.get(start + 2) & 0xFF) << 8) | (in.get(start + 3) & 0xFF);
+        int contentLength = ((in.get(start + 4) & 0xFF) << 8) | (in.get(start + 5) & 0xFF);
+        int paddingLength = in.get(start + 6) & 0xFF;
+
+        int recordLength = FCGI_HEADER_LEN + contentLength + paddingLength;
+        if (in.remaining() < recordLength) {
+          break;
+        }
+
+        byte[] content = new byte[contentLength];
+        in.position(start + FCGI_HEADER_LEN);
+        in.get(content);
+        in.position(start + recordLength);
+
+        onRecord(type, requestId, content);
+      }
+      in.compact();
+    }
+
+    private void onRecord(int type, int requestId, byte[] content) throws IOException {
+      switch (type) {
+        case FCGI_BEGIN_REQUEST -> {
+          if (content.length < 8) {
+            throw new IOException("Truncated FCGI_BEGIN_REQUEST: " + content.length + " bytes");
+          }
+          int role = ((content[0] & 0xFF) << 8) | (content[1] & 0xFF);
+          synchronized (this) {
+            keepConn = (content[2] & FCGI_KEEP_CONN) != 0;
+          }
+          if (role != FCGI_RESPONDER) {
+            sendEndRequest(requestId, FCGI_UNKNOWN_ROLE);
+            return;
+          }
+          // Повторный BEGIN_REQUEST того же запроса начинает его заново, а не еще один
+          if (building.put(requestId, new RequestBuilder()) == null) {
+            synchronized (this) {
+              inProgress++;
+            }
+          }
+        }
+        case FCGI_PARAMS -> {
+          RequestBuilder builder = building.get(requestId);
+          if (builder == null) {
+            return;
+          }
+          if (builder.params.size() + content.length > MAX_PARAMS_BYTES) {
+            throw new IOException("FCGI_PARAMS exceed " + MAX_PARAMS_BYTES + " bytes");
+          }
+          builder.params.write(content, 0, content.length);
+        }
+        case FCGI_STDIN -> {
+          RequestBuilder builder = building.get(requestId);
+          if (builder == null) {
+            return;
+          }
+          if (content.length > 0) {
+            if (builder.stdin.size() + content.length > MAX_BODY_BYTES) {
+              building.remove(requestId);
+              rejectTooLarge(requestId);
+              return;
+            }
+            builder.stdin.write(content, 0, content.length);
+            return;
+          }
+          building.remove(requestId);
+          dispatch(requestId, builder);
+        }
+        case FCGI_DATA -> {
+          // Роль FILTER не поддерживается, данные игнорируются
+        }
+        case FCGI_ABORT_REQUEST -> {
+          if (building.remove(requestId) != null) {
+            synchronized (this) {
+              inProgress--;
+            }
+            sendEndRequest(requestId, FCGI_REQUEST_COMPLETE);
+            return;
+          }
+          FcgiRequest request;
+          synchronized (this) {
+            request = running.get(requestId);
+          }
+          if (request != null) {
+            request.abort();
+          }
+        }
+        case FCGI_GET_VALUES -> sendGetValuesResult(content);
+        default -> sendUnknownType(type);
+      }
+    }
+
+    /**
+     * Отвечает 413 на запрос с телом больше fcgi.maxBodyBytes, не передавая его обработчику;
+     * оставшиеся записи FCGI_STDIN запроса игнорируются
+     */
+    private void rejectTooLarge(int requestId) {
+      FcgiRequest request = new FcgiRequest(this, requestId, Map.of(), new byte[0]);
+      ResponseWriter.acquire()
+          .header(ResponseWriter.STATUS_PAYLOAD_TOO_LARGE)
+          .header(ResponseWriter.CONTENT_TYPE_JSON)
+          .body()
+          .ascii("{\"error\": \"Request body too large\"}")
+          .send(request);
+      request.finish();
+    }
+
+    private void dispatch(int requestId, RequestBuilder builder) throws IOException {
+      FcgiRequest request =
+          new FcgiRequest(
+              this,
+              requestId,
+              decodeParams(builder.params.toByteArray()),
+              builder.stdin.toByteArray());
+      synchronized (this) {
+        running.put(requestId, request);
+      }
+
+      workers.execute(
+          () -> {
+            try {
+              handler.handle(request);
+            } catch (RuntimeException e) {
+              Log.error("Error handling request", "error", e);
+            } finally {
+              if (!request.isSuspended()) {
+                request.finish();
+              }
+            }
+          });
+    }
+
+    /** Отправляет часть ответа записями FCGI_STDOUT */
+    void sendStdout(int requestId, byte[] data) {
+      sendStdout(requestId, data, 0, data.length);
+    }
+
+    /** Отправляет часть массива записями FCGI_STDOUT */
+    void sendStdout(int requestId, byte[] data, int offset, int length) {
+      ByteBuffer buffer =
+          ByteBuffer.allocate(length + FCGI_HEADER_LEN * (length / FCGI_MAX_CONTENT_LEN + 1));
+      for (int sent = 0; sent < length; sent += FCGI_MAX_CONTENT_LEN) {
+        int chunk = Math.min(FCGI_MAX_CONTENT_LEN, length - sent);
+        putHeader(buffer, FCGI_STDOUT, requestId, chunk);
+        buffer.put(data, offset + sent, chunk);
+      }
+      buffer.flip();
+      enqueue(buffer);
+    }
+
+    /** Завершает запрос: пустой FCGI_STDOUT и FCGI_END_REQUEST */
+    void endRequest(FcgiRequest request) {
+      synchronized (this) {
+        // Запрос 413 не попадает в running, но учтен в inProgress
+        running.remove(request.getRequestId());
+        inProgress--;
+        if (closed) {
+          return;
+        }
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(FCGI_HEADER_LEN * 3);
+      putHeader(buffer, FCGI_STDOUT, request.getRequestId(), 0);
+      putEndRequestBody(buffer, request.getRequestId(), FCGI_REQUEST_COMPLETE);
+      buffer.flip();
+      enqueue(buffer, true);
+    }
+
+    private void sendEndRequest(int requestId, int protocolStatus) {
+      ByteBuffer buffer = ByteBuffer.allocate(FCGI_HEADER_LEN * 2);
+      putEndRequestBody(buffer, requestId, protocolStatus);
+      buffer.flip();
+      enqueue(buffer, true);
+    }
+
+    private void putEndRequestBody(ByteBuffer buffer, int requestId, int protocolStatus) {
+      putHeader(buffer, FCGI_END_REQUEST, requestId, 8);
+      buffer.putInt(0);
+      buffer.put((byte) protocolStatus);
+      buffer.put(new byte[3]);
+    }
+
+    /** Сообщает веб-серверу возможности приложения */
+    private void sendGetValuesResult(byte[] content) throws IOException {
+      Map<String, String> requested = decodeParams(content);
+      ByteArrayOutputStream values = new ByteArrayOutputStream();
+      for (String name : requested.keySet()) {
+        String value =
+            switch (name) {
+              case "FCGI_MAX_CONNS" -> String.valueOf(MAX_CONNS);
+              case "FCGI_MAX_REQS" -> String.valueOf(MAX_REQS);
+              case "FCGI_MPXS_CONNS" -> "1";
+              default -> null;
+            };
+        if (value != null) {
+          encodeParam(values, name, value);
+        }
+      }
+
+      byte[] body = values.toByteArray();
+      ByteBuffer buffer = ByteBuffer.allocate(FCGI_HEADER_LEN + body.length);
+      putHeader(buffer, FCGI_GET_VALUES_RESULT, 0, body.length);
+      buffer.put(body);
+      buffer.flip();
+      enqueue(buffer);
+    }
+
+    private void sendUnknownType(int type) {
+      ByteBuffer buffer = ByteBuffer.allocate(FCGI_HEADER_LEN * 2);
+      putHeader(buffer, FCGI_UNKNOWN_TYPE, 0, 8);
+      buffer.put((byte) type);
+      buffer.put(new byte[7]);
+      buffer.flip();
+      enqueue(buffer);
+    }
+
+    /** Ставит данные в очередь на отправку и пытается сразу записать их в сокет */
+    private void enqueue(ByteBuffer buffer) {
+      enqueue(buffer, false);
+    }
+
+    /**
+     * То же; endsRequest - в buffer FCGI_END_REQUEST. Без FCGI_KEEP_CONN соединение закрывается
+     * только после него, когда других запросов не осталось: ответ запроса, которого уже нет среди
+     * собираемых и еще нет среди выполняемых (413), не должен закрыть соединение до своего конца
+     */
+    private void enqueue(ByteBuffer buffer, boolean endsRequest) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        outbound.add(buffer);
+        queuedBytes += buffer.remaining();
+        if (endsRequest && !keepConn && inProgress == 0) {
+          closeWhenDrained = true;
+        }
+      }
+
+      try {
+        if (!drain()) {
+          writeInterest.add(this);
+          selector.wakeup();
+        }
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void onWritable(SelectionKey key) throws IOException {
+      if (drain() && key.isValid()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    /** Пишет очередь в сокет; возвращает true, если очередь опустела */
+    private synchronized boolean drain() throws IOException {
+      long before = queuedBytes;
+      try {
+        while (!outbound.isEmpty()) {
+          ByteBuffer head = outbound.peek();
+          queuedBytes -= channel.write(head);
+          if (head.hasRemaining()) {
+            return false;
+          }
+          outbound.poll();
+        }
+      } finally {
+        if (queuedBytes < before) {
+          notifyAll();
+        }
+      }
+      if (closeWhenDrained) {
+        close();
+      }
+      return true;
+    }
+
+    /**
+     * Ждет, пока в очереди на отправку останется не больше maxBytes байт. Возвращает false, если
+     * соединение закрыто; если очередь не разошлась за timeoutMillis, веб-сервер считается зависшим
+     * и соединение закрывается, чтобы он не получил обрезанный ответ как полный
+     */
+    synchronized boolean awaitQueued(long maxBytes, long timeoutMillis)
+        throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!closed && queuedBytes > maxBytes) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          close();
+          return false;
+        }
+        wait(remaining);
+      }
+      return !closed;
+    }
+
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      outbound.clear();
+      queuedBytes = 0;
+      notifyAll();
+      for (FcgiRequest request : running.values()) {
+        request.abort();
+      }
+      running.clear();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // Соединение уже разорвано
+      }
+    }
+  }
+
+  /** Запрос, собираемый из записей FCGI_PARAMS и FCGI_STDIN */
+  private static class RequestBuilder {
+    final ByteArrayOutputStream params = new ByteArrayOutputStream();
+    final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+  }
+
+  static void putHeader(ByteBuffer buffer, int type, int requestId, int contentLength) {
+    buffer.put((byte) FCGI_VERSION_1);
+    buffer.put((byte) type);
+    buffer.putShort((short) requestId);
+    buffer.putShort((short) contentLength);
+    buffer.put((byte) 0);
+    buffer.put((byte) 0);
+  }
+
+  /**
+   * Декодирует пары имя-значение FastCGI; длина, выходящая за конец данных, - ошибка протокола, и
+   * соединение закрывается
+   */
+  static Map<String, String> decodeParams(byte[] data) throws IOException {
+    Map<String, String> params = new HashMap<>();
+    int pos = 0;
+    while (pos < data.length) {
+      int nameLength = readLength(data, pos);
+      pos += (data[pos] & 0x80) != 0 ? 4 : 1;
+      int valueLength = readLength(data, pos);
+      pos += (data[pos] & 0x80) != 0 ? 4 : 1;
+
+      if ((long) pos + nameLength + valueLength > data.length) {
+        throw new IOException("FastCGI name-value pair exceeds " + data.length + " bytes");
+      }
+      String name = new String(data, pos, nameLength, StandardCharsets.ISO_8859_1);
+      pos += nameLength;
+      String value = new String(data, pos, valueLength, StandardCharsets.UTF_8);
+      pos += valueLength;
+      params.put(name, value);
+    }
+    return params;
+  }
+
+  /** Длина в один байт или, если старший бит установлен, в четыре */
+  private static int readLength(byte[] data, int pos) throws IOException {
+    if (pos >= data.length) {
+      throw new IOException("Truncated FastCGI name-value pair");
+    }
+    if ((data[pos] & 0x80) == 0) {
+      return data[pos];
+    }
+    if (pos + 4 > data.length) {
+      throw new IOException("Truncated FastCGI name-value pair");
+    }
+    return ((data[pos] & 0x7F) << 24)
+        | ((data[pos + 1] & 0xFF) << 16)
+        | ((data[pos + 2] & 0xFF) << 8)
+        | (data[pos + 3] & 0xFF);
+  }
+
+  /** Кодирует пару имя-значение FastCGI */
+  static void encodeParam(ByteArrayOutputStream out, String name, String value) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    writeLength(out, nameBytes.length);
+    writeLength(out, valueBytes.length);
+    out.write(nameBytes, 0, nameBytes.length);
+    out.write(valueBytes, 0, valueBytes.length);
+  }
+
+  private static void writeLength(ByteArrayOutputStream out, int length) {
+    if (length < 0x80) {
+      out.write(length);
+      return;
+    }
+    out.write((length >>> 24) | 0x80);
+    out.write(length >>> 16);
+    out.write(length >>> 8);
+    out.write(length);
+  }
+}
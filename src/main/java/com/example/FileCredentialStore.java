@@ -0,0 +1,143 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Пользователи из локального файла с паролями, захешированными PBKDF2-HMAC-SHA256 с солью. Строка
+ * файла: {@code логин:итерации:соль:хеш} (соль и хеш в Base64); пустые строки и строки с '#'
+ * пропускаются. Строку для нового пользователя печатает {@link #main(String[])}.
+ */
+public class FileCredentialStore implements CredentialStore {
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int HASH_BITS = 256;
+  private static final int SALT_BYTES = 16;
+
+  /** Число итераций для новых паролей (рекомендация OWASP для PBKDF2-HMAC-SHA256) */
+  private static final int DEFAULT_ITERATIONS = 600_000;
+
+  private record Credential(int iterations, byte[] salt, byte[] hash) {}
+
+  private final Map<String, Credential> users;
+
+  /** Запись для неизвестного логина: хеш считается все равно, чтобы время ответа его не выдавало */
+  private final Credential dummy;
+
+  private FileCredentialStore(Map<String, Credential> users) {
+    this.users = users;
+    this.dummy = new Credential(DEFAULT_ITERATIONS, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+  }
+
+  /**
+   * Читает файл учетных данных
+   *
+   * @throws IllegalArgumentException если строка файла некорректна
+   */
+  public static FileCredentialStore load(Path file) throws IOException {
+    Map<String, Credential> users = new HashMap<>();
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split(":");
+      try {
+        if (parts.length != 4) {
+          throw new IllegalArgumentException("expected login:iterations:salt:hash");
+        }
+        int iterations = Integer.parseInt(parts[1]);
+        if (iterations <= 0) {
+          throw new IllegalArgumentException("iterations must be positive");
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        users.put(
+            parts[0], new Credential(iterations, base64.decode(parts[2]), base64.decode(parts[3])));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Invalid credentials line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+    return new FileCredentialStore(users);
+  }
+
+  /** Число пользователей в файле */
+  public int size() {
+    return users.size();
+  }
+
+  @Override
+  public boolean verify(String username, String password) {
+    Credential credential = users.get(username);
+    Credential expected = credential != null ? credential : dummy;
+    byte[] actual = hash(password, expected.salt(), expected.iterations());
+    return MessageDigest.isEqual(actual, expected.hash()) && credential != null;
+  }
+
+  /** Строка файла для пользователя с новой случайной солью */
+  public static String entry(String username, String password, int iterations) {
+    byte[] salt = new byte[SALT_BYTES];
+    new SecureRandom().nextBytes(salt);
+    Base64.Encoder base64 = Base64.getEncoder();
+    return username
+        + ":"
+        + iterations
+        + ":"
+        + base64.encodeToString(salt)
+        + ":"
+        + base64.encodeToString(hash(password, salt, iterations));
+  }
+
+  private static byte[] hash(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("PBKDF2 is not available", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Печатает строку файла учетных данных: {@code FileCredentialStore <логин> [итерации]}. Пароль
+   * читается с консоли без эха или из первой строки stdin, чтобы не попасть в список процессов.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args[0].isEmpty() || args[0].contains(":")) {
+      System.err.println("Usage: FileCredentialStore <login without ':'> [iterations]");
+      System.exit(2);
+    }
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+    String password;
+    Console console = System.console();
+    if (console != null) {
+      char[] chars = console.readPassword("Password for %s: ", args[0]);
+      password = chars == null ? null : new String(chars);
+    } else {
+      password =
+          new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+    }
+    if (password == null || password.isEmpty()) {
+      System.err.println("Empty password");
+      System.exit(2);
+    }
+    System.out.println(entry(args[0], password, iterations));
+  }
+}
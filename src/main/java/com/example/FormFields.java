@@ -0,0 +1,261 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Поля application/x-www-form-urlencoded (тело формы или query string), разбираемые прямо в массиве
+ * байтов. При создании запоминаются только границы пар; ключ и значение декодируются на месте,
+ * когда их запрашивают, поэтому поиск нескольких нужных полей не создает промежуточных строк.
+ *
+ * <p>Семантика совпадает с разбором через {@link java.net.URLDecoder} в карту: пары без '='
+ * пропускаются, пара с некорректным %-кодом пропускается целиком, при повторе ключа побеждает
+ * последнее значение.
+ */
+public class FormFields {
+
+  private static final int STRIDE = 4;
+
+  private static final int RAW = 0;
+  private static final int DECODED = 1;
+  private static final int MALFORMED = 2;
+
+  /** Число значащих цифр, при котором мантисса еще точно представима в double */
+  private static final int MAX_FAST_DIGITS = 15;
+
+  /** Точно представимые степени десяти */
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+    1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private static final FormFields EMPTY = new FormFields(new byte[0], 0, 0);
+
+  private final byte[] data;
+
+  /** Для каждой пары: начало ключа, конец ключа ('='), конец значения и состояние */
+  private final int[] pairs;
+
+  private final int count;
+
+  /** Разбирает байты data[offset, offset + length); массив изменяется при декодировании */
+  public FormFields(byte[] data, int offset, int length) {
+    this.data = data;
+    int end = offset + length;
+
+    int separators = 0;
+    for (int i = offset; i < end; i++) {
+      if (data[i] == '&') {
+        separators++;
+      }
+    }
+
+    int[] pairs = new int[(separators + 1) * STRIDE];
+    int count = 0;
+    int start = offset;
+    while (start <= end) {
+      int pairEnd = start;
+      int equals = -1;
+      while (pairEnd < end && data[pairEnd] != '&') {
+        if (equals < 0 && data[pairEnd] == '=') {
+          equals = pairEnd;
+        }
+        pairEnd++;
+      }
+      if (equals >= 0) {
+        pairs[count * STRIDE] = start;
+        pairs[count * STRIDE + 1] = equals;
+        pairs[count * STRIDE + 2] = pairEnd;
+        pairs[count * STRIDE + 3] = RAW;
+        count++;
+      }
+      start = pairEnd + 1;
+    }
+    this.pairs = pairs;
+    this.count = count;
+  }
+
+  /** Разбирает query string */
+  public static FormFields of(String queryString) {
+    if (queryString == null || queryString.isEmpty()) {
+      return EMPTY;
+    }
+    byte[] bytes = queryString.getBytes(StandardCharsets.UTF_8);
+    return new FormFields(bytes, 0, bytes.length);
+  }
+
+  /** Есть ли корректное поле с ключом key */
+  public boolean contains(String key) {
+    return find(key) >= 0;
+  }
+
+  /** Значение поля или null, если поля нет */
+  public String get(String key) {
+    int pair = find(key);
+    if (pair < 0) {
+      return null;
+    }
+    int start = pairs[pair * STRIDE + 1] + 1;
+    return new String(data, start, pairs[pair * STRIDE + 2] - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Значение поля как число, разобранное без создания строки; результат совпадает с {@link
+   * Double#parseDouble}
+   *
+   * @throws NumberFormatException если поля нет или это не число
+   */
+  public double getDouble(String key) {
+    int pair = find(key);
+    if (pair < 0) {
+      throw new NumberFormatException("Missing field: " + key);
+    }
+    return parseDouble(data, pairs[pair * STRIDE + 1] + 1, pairs[pair * STRIDE + 2]);
+  }
+
+  /** Номер последней корректной пары с ключом key или -1 */
+  private int find(String key) {
+    for (int pair = count - 1; pair >= 0; pair--) {
+      int base = pair * STRIDE;
+      if (pairs[base + 3] == RAW) {
+        // Ключ без %-кодов, не совпавший с искомым, не нужно декодировать вовсе
+        if (!needsDecoding(pairs[base], pairs[base + 1])
+            && !keyEquals(pairs[base], pairs[base + 1], key)) {
+          continue;
+        }
+        decode(base);
+      }
+      if (pairs[base + 3] == DECODED && keyEquals(pairs[base], pairs[base + 1], key)) {
+        return pair;
+      }
+    }
+    return -1;
+  }
+
+  /** Декодирует ключ и значение пары на месте; значение сдвигается вслед за ключом */
+  private void decode(int base) {
+    int keyEnd = decode(pairs[base], pairs[base + 1], pairs[base]);
+    int valueEnd = keyEnd < 0 ? -1 : decode(pairs[base + 1] + 1, pairs[base + 2], keyEnd + 1);
+    if (valueEnd < 0) {
+      pairs[base + 3] = MALFORMED;
+      return;
+    }
+    pairs[base + 1] = keyEnd;
+    pairs[base + 2] = valueEnd;
+    pairs[base + 3] = DECODED;
+  }
+
+  /**
+   * Декодирует data[from, to) в data[target...) и возвращает конец результата или -1 при
+   * некорректном %-коде. target не больше from, поэтому запись не обгоняет чтение.
+   */
+  private int decode(int from, int to, int target) {
+    int out = target;
+    for (int i = from; i < to; i++) {
+      byte b = data[i];
+      if (b == '+') {
+        b = ' ';
+      } else if (b == '%') {
+        int high = i + 2 < to ? hexDigit(data[i + 1]) : -1;
+        int low = high < 0 ? -1 : hexDigit(data[i + 2]);
+        if (low < 0) {
+          return -1;
+        }
+        b = (byte) (high << 4 | low);
+        i += 2;
+      }
+      data[out++] = b;
+    }
+    return out;
+  }
+
+  private boolean needsDecoding(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (data[i] == '%' || data[i] == '+') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Сравнивает байты с ASCII-ключом */
+  private boolean keyEquals(int from, int to, String key) {
+    if (to - from != key.length()) {
+      return false;
+    }
+    for (int i = 0; i < key.length(); i++) {
+      if (data[from + i] != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hexDigit(byte b) {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    if (b >= 'A' && b <= 'F') {
+      return b - 'A' + 10;
+    }
+    return -1;
+  }
+
+  /**
+   * Разбирает число из data[start, end). Десятичная запись без экспоненты с не более чем 15
+   * значащими цифрами и 22 знаками после точки считается одним точным делением (мантисса и степень
+   * десяти точно представимы, поэтому округление совпадает с {@link Double#parseDouble}); все
+   * остальное передается в {@link Double#parseDouble}.
+   */
+  static double parseDouble(byte[] data, int start, int end) {
+    int from = start;
+    int to = end;
+    // Как String.trim в Double.parseDouble
+    while (from < to && (data[from] & 0xff) <= ' ') {
+      from++;
+    }
+    while (to > from && (data[to - 1] & 0xff) <= ' ') {
+      to--;
+    }
+
+    int i = from;
+    boolean negative = false;
+    if (i < to && (data[i] == '-' || data[i] == '+')) {
+      negative = data[i] == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = 0;
+    boolean point = false;
+    boolean fast = i < to;
+    boolean anyDigit = false;
+    for (; i < to && fast; i++) {
+      byte b = data[i];
+      if (b >= '0' && b <= '9') {
+        anyDigit = true;
+        if (mantissa != 0 || b != '0') {
+          digits++;
+        }
+        mantissa = mantissa * 10 + (b - '0');
+        if (point) {
+          fraction++;
+        }
+        fast = digits <= MAX_FAST_DIGITS && fraction < POWERS_OF_TEN.length;
+      } else if (b == '.' && !point) {
+        point = true;
+      } else {
+        fast = false;
+      }
+    }
+
+    if (!fast || !anyDigit) {
+      return Double.parseDouble(new String(data, start, end - start, StandardCharsets.UTF_8));
+    }
+    double value = (double) mantissa / POWERS_OF_TEN[fraction];
+    return negative ? -value : value;
+  }
+}
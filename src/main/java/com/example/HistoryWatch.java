@@ -0,0 +1,137 @@
+package com.example;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Запросы, ожидающие изменения истории сессии (long-poll). Ожидающий запрос не занимает поток: он
+ * хранится здесь, пока {@link #changed(String)} или таймаут не разбудят его, и ответ отправляется
+ * из потока, который добавил запись, или из потока проверки таймаутов.
+ */
+public class HistoryWatch {
+
+  /** Как часто проверять таймауты и отмененные запросы */
+  private static final long SWEEP_PERIOD_MS = 500;
+
+  /** Ожидающий запрос */
+  public interface Waiter {
+
+    /**
+     * Пробует ответить. При force = false можно вернуть false, если для этого запроса история еще
+     * не изменилась; тогда ожидание продолжается. При force = true (таймаут или отмена) ответ
+     * обязателен.
+     */
+    boolean tryComplete(boolean force);
+
+    /** Отменен ли запрос веб-сервером; такой запрос завершается при ближайшей проверке */
+    boolean isCancelled();
+  }
+
+  private static final class Entry {
+    final Waiter waiter;
+    final long deadline;
+    boolean done;
+
+    Entry(Waiter waiter, long deadline) {
+      this.waiter = waiter;
+      this.deadline = deadline;
+    }
+
+    /** Вызывает waiter не более одного раза с положительным результатом */
+    synchronized boolean tryComplete(boolean force) {
+      if (!done) {
+        done = waiter.tryComplete(force);
+      }
+      return done;
+    }
+  }
+
+  private final Map<String, Set<Entry>> waiters = new ConcurrentHashMap<>();
+  private final AtomicInteger count = new AtomicInteger();
+
+  public HistoryWatch() {
+    Thread sweeper = new Thread(this::runSweeper, "history-watch-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Ставит запрос в ожидание изменений сессии не дольше timeoutMillis. Сразу после постановки
+   * waiter вызывается один раз, чтобы не потерять изменение, случившееся до нее.
+   */
+  public void watch(String sessionId, Waiter waiter, long timeoutMillis) {
+    Entry entry =
+        new Entry(waiter, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    waiters.compute(
+        sessionId,
+        (key, set) -> {
+          Set<Entry> entries = set != null ? set : ConcurrentHashMap.newKeySet();
+          entries.add(entry);
+          return entries;
+        });
+    count.incrementAndGet();
+
+    if (entry.tryComplete(false)) {
+      remove(sessionId, entry);
+    }
+  }
+
+  /** Будит запросы, ожидающие изменений сессии */
+  public void changed(String sessionId) {
+    Set<Entry> entries = waiters.get(sessionId);
+    if (entries == null) {
+      return;
+    }
+    for (Entry entry : entries) {
+      if (entry.tryComplete(false)) {
+        remove(sessionId, entry);
+      }
+    }
+  }
+
+  /** Число ожидающих запросов */
+  public int size() {
+    return count.get();
+  }
+
+  private void remove(String sessionId, Entry entry) {
+    waiters.computeIfPresent(
+        sessionId,
+        (key, set) -> {
+          if (set.remove(entry)) {
+            count.decrementAndGet();
+          }
+          return set.isEmpty() ? null : set;
+        });
+  }
+
+  /** Отвечает на запросы с истекшим таймаутом и завершает отмененные */
+  private void sweep() {
+    long now = System.nanoTime();
+    for (Map.Entry<String, Set<Entry>> session : waiters.entrySet()) {
+      for (Entry entry : session.getValue()) {
+        if ((now - entry.deadline >= 0 || entry.waiter.isCancelled()) && entry.tryComplete(true)) {
+          remove(session.getKey(), entry);
+        }
+      }
+    }
+  }
+
+  private void runSweeper() {
+    while (true) {
+      try {
+        Thread.sleep(SWEEP_PERIOD_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        sweep();
+      } catch (RuntimeException e) {
+        Log.error("Error completing watchers", "error", e);
+      }
+    }
+  }
+}
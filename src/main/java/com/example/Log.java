@@ -0,0 +1,241 @@
+package com.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронный журнал диагностики. Вызывающий поток только кладет событие в ограниченный кольцевой
+ * буфер: сообщение и до двух полей ключ-значение без форматирования. Форматирует и пишет в stderr
+ * фоновый поток. Если буфер полон, событие отбрасывается и учитывается в {@link #dropped()}, а
+ * вызывающий поток не блокируется. В stdout журнал не пишет никогда.
+ *
+ * <p>Уровень задается свойством log.level (DEBUG, INFO, WARN, ERROR; по умолчанию INFO), размер
+ * буфера - свойством log.bufferSize.
+ */
+public class Log {
+
+  /** Уровни важности */
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+  }
+
+  private static final int THRESHOLD =
+      Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase(Locale.ROOT)).ordinal();
+
+  private static final int CAPACITY =
+      Integer.highestOneBit(Math.max(Integer.getInteger("log.bufferSize", 8192), 2));
+  private static final int MASK = CAPACITY - 1;
+
+  /** Сколько ждет фоновый поток, если буфер пуст */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /** Ячейка буфера; переиспользуется, поэтому запись события не выделяет память */
+  private static final class Event {
+    Level level;
+    long timeMillis;
+    String thread;
+    String message;
+    String key1;
+    Object value1;
+    String key2;
+    Object value2;
+  }
+
+  private static final Event[] SLOTS = new Event[CAPACITY];
+
+  /**
+   * Номера ячеек для ограниченной очереди многих писателей и одного читателя: ячейка свободна для
+   * позиции p, если ее номер равен p, и заполнена, если он равен p + 1
+   */
+  private static final AtomicLongArray SEQUENCES = new AtomicLongArray(CAPACITY);
+
+  private static final AtomicLong TAIL = new AtomicLong();
+  private static final LongAdder DROPPED = new LongAdder();
+
+  /** Позиция чтения; меняется только фоновым потоком */
+  private static long head;
+
+  private static final Writer OUT =
+      new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), 1 << 16);
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      SLOTS[i] = new Event();
+      SEQUENCES.set(i, i);
+    }
+    Thread writer = new Thread(Log::runWriter, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-shutdown"));
+  }
+
+  private Log() {}
+
+  public static boolean isEnabled(Level level) {
+    return level.ordinal() >= THRESHOLD;
+  }
+
+  /** Число событий, отброшенных из-за переполнения буфера */
+  public static long dropped() {
+    return DROPPED.sum();
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message, null, null, null, null);
+  }
+
+  public static void debug(String message, String key, Object value) {
+    log(Level.DEBUG, message, key, value, null, null);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message, null, null, null, null);
+  }
+
+  public static void info(String message, String key, Object value) {
+    log(Level.INFO, message, key, value, null, null);
+  }
+
+  public static void info(String message, String key1, Object value1, String key2, Object value2) {
+    log(Level.INFO, message, key1, value1, key2, value2);
+  }
+
+  public static void warn(String message, String key, Object value) {
+    log(Level.WARN, message, key, value, null, null);
+  }
+
+  public static void warn(String message, String key1, Object value1, String key2, Object value2) {
+    log(Level.WARN, message, key1, value1, key2, value2);
+  }
+
+  public static void error(String message, String key, Object value) {
+    log(Level.ERROR, message, key, value, null, null);
+  }
+
+  public static void error(String message, String key1, Object value1, String key2, Object value2) {
+    log(Level.ERROR, message, key1, value1, key2, value2);
+  }
+
+  /** Кладет событие в буфер или отбрасывает его, если буфер полон */
+  public static void log(
+      Level level, String message, String key1, Object value1, String key2, Object value2) {
+    if (level.ordinal() < THRESHOLD) {
+      return;
+    }
+
+    long position = TAIL.get();
+    while (true) {
+      int index = (int) position & MASK;
+      long available = SEQUENCES.get(index) - position;
+      if (available == 0) {
+        if (TAIL.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = TAIL.get();
+      } else if (available < 0) {
+        DROPPED.increment();
+        return;
+      } else {
+        position = TAIL.get();
+      }
+    }
+
+    Event event = SLOTS[(int) position & MASK];
+    event.level = level;
+    event.timeMillis = System.currentTimeMillis();
+    event.thread = Thread.currentThread().getName();
+    event.message = message;
+    event.key1 = key1;
+    event.value1 = value1;
+    event.key2 = key2;
+    event.value2 = value2;
+    SEQUENCES.set((int) position & MASK, position + 1);
+  }
+
+  private static void runWriter() {
+    long reportedDrops = 0;
+    while (true) {
+      if (!drain()) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+
+      long drops = DROPPED.sum();
+      if (drops != reportedDrops) {
+        log(Level.WARN, "Log buffer overflow", "dropped", drops - reportedDrops, null, null);
+        reportedDrops = drops;
+      }
+    }
+  }
+
+  /** Пишет все накопленные события; возвращает false, если буфер был пуст */
+  private static synchronized boolean drain() {
+    boolean any = false;
+    StringBuilder line = new StringBuilder(256);
+    try {
+      while (true) {
+        int index = (int) head & MASK;
+        if (SEQUENCES.get(index) != head + 1) {
+          break;
+        }
+        Event event = SLOTS[index];
+        line.setLength(0);
+        format(line, event);
+        OUT.append(line);
+
+        event.thread = null;
+        event.message = null;
+        event.key1 = null;
+        event.value1 = null;
+        event.key2 = null;
+        event.value2 = null;
+        SEQUENCES.set(index, head + CAPACITY);
+        head++;
+        any = true;
+      }
+      if (any) {
+        OUT.flush();
+      }
+    } catch (IOException e) {
+      // stderr недоступен: писать ошибку некуда
+    }
+    return any;
+  }
+
+  private static void format(StringBuilder line, Event event) {
+    line.append(Instant.ofEpochMilli(event.timeMillis)).append(' ');
+    line.append(event.level).append(' ');
+    line.append('[').append(event.thread).append("] ");
+    line.append(event.message);
+    appendField(line, event.key1, event.value1);
+    appendField(line, event.key2, event.value2);
+    line.append(System.lineSeparator());
+  }
+
+  private static void appendField(StringBuilder line, String key, Object value) {
+    if (key == null) {
+      return;
+    }
+    line.append(' ').append(key).append('=');
+    String text = String.valueOf(value);
+    if (text.isEmpty() || text.chars().anyMatch(c -> c <= ' ' || c == '"' || c == '=')) {
+      line.append('"');
+      line.append(text.replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r"));
+      line.append('"');
+    } else {
+      line.append(text);
+    }
+  }
+}
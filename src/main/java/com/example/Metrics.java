@@ -0,0 +1,256 @@
+package com.example;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики сервера: гистограммы задержек по фазам обработки и по точкам входа, счетчики запросов и
+ * ошибок. Запись не берет блокировок; {@link #render()} отдает все в текстовом формате Prometheus.
+ */
+public class Metrics {
+
+  /** Фазы обработки запроса */
+  public enum Phase {
+    AUTH,
+    PARSE,
+    VALIDATE,
+    CHECK,
+    PERSIST,
+    SERIALIZE,
+    WRITE
+  }
+
+  /** Точки входа API */
+  public enum Endpoint {
+    CHECK,
+    BATCH,
+    HISTORY,
+    WATCH,
+    CLEAR,
+    STATS,
+    EXPORT,
+    METRICS,
+    OTHER
+  }
+
+  /** Границы корзин гистограмм в выдаче, в секундах */
+  private static final double[] BUCKET_BOUNDS = {
+    0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+    0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+
+  private static final Map<Phase, LatencyHistogram> PHASES = new EnumMap<>(Phase.class);
+  private static final Map<Endpoint, LatencyHistogram> ENDPOINTS = new EnumMap<>(Endpoint.class);
+  private static final Map<Endpoint, LongAdder> REQUESTS = new EnumMap<>(Endpoint.class);
+  private static final Map<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+
+  /** Старт процесса в мс эпохи; если ОС его не сообщает - загрузка этого класса */
+  private static final long PROCESS_START_MILLIS =
+      ProcessHandle.current()
+          .info()
+          .startInstant()
+          .map(Instant::toEpochMilli)
+          .orElseGet(System::currentTimeMillis);
+
+  /** Время от старта процесса до первого ответа в мс или -1, пока ответа не было */
+  private static volatile long firstResponseMillis = -1;
+
+  static {
+    for (Phase phase : Phase.values()) {
+      PHASES.put(phase, new LatencyHistogram());
+    }
+    for (Endpoint endpoint : Endpoint.values()) {
+      ENDPOINTS.put(endpoint, new LatencyHistogram());
+      REQUESTS.put(endpoint, new LongAdder());
+    }
+  }
+
+  private Metrics() {}
+
+  /**
+   * Записывает длительность фазы, начатой в startNanos, и возвращает текущее время для следующей
+   */
+  public static long record(Phase phase, long startNanos) {
+    long now = System.nanoTime();
+    PHASES.get(phase).record(now - startNanos);
+    return now;
+  }
+
+  /** Учитывает завершенный запрос к точке входа */
+  public static void recordRequest(Endpoint endpoint, long startNanos) {
+    REQUESTS.get(endpoint).increment();
+    ENDPOINTS.get(endpoint).record(System.nanoTime() - startNanos);
+  }
+
+  /** Отмечает отправленный ответ; первый после старта записывается в лог и в метрики */
+  public static void recordResponse() {
+    if (firstResponseMillis < 0) {
+      recordFirstResponse();
+    }
+  }
+
+  private static synchronized void recordFirstResponse() {
+    if (firstResponseMillis < 0) {
+      firstResponseMillis = System.currentTimeMillis() - PROCESS_START_MILLIS;
+      Log.info("First response", "sinceStartMs", firstResponseMillis);
+    }
+  }
+
+  /**
+   * Учитывает ошибку. Тип - текст сообщения до двоеточия, чтобы подробности вроде номера строки не
+   * размножали ряды
+   */
+  public static void recordError(String message) {
+    if (message == null) {
+      message = "Unknown error";
+    }
+    int colon = message.indexOf(':');
+    String type = colon >= 0 ? message.substring(0, colon) : message;
+    ERRORS.computeIfAbsent(type, key -> new LongAdder()).increment();
+  }
+
+  /** Все метрики в текстовом формате Prometheus (version 0.0.4) */
+  public static String render() {
+    StringBuilder out = new StringBuilder(8192);
+
+    out.append("# HELP app_phase_duration_seconds Time spent in each request phase.\n");
+    out.append("# TYPE app_phase_duration_seconds histogram\n");
+    for (Map.Entry<Phase, LatencyHistogram> entry : PHASES.entrySet()) {
+      appendHistogram(
+          out, "app_phase_duration_seconds", "phase", label(entry.getKey()), entry.getValue());
+    }
+
+    out.append("# HELP app_request_duration_seconds Total handling time per endpoint.\n");
+    out.append("# TYPE app_request_duration_seconds histogram\n");
+    for (Map.Entry<Endpoint, LatencyHistogram> entry : ENDPOINTS.entrySet()) {
+      appendHistogram(
+          out, "app_request_duration_seconds", "endpoint", label(entry.getKey()), entry.getValue());
+    }
+
+    out.append("# HELP app_requests_total Requests handled per endpoint.\n");
+    out.append("# TYPE app_requests_total counter\n");
+    for (Map.Entry<Endpoint, LongAdder> entry : REQUESTS.entrySet()) {
+      out.append("app_requests_total{endpoint=\"").append(label(entry.getKey())).append("\"} ");
+      out.append(entry.getValue().sum()).append('\n');
+    }
+
+    out.append("# HELP app_errors_total Error responses per error type.\n");
+    out.append("# TYPE app_errors_total counter\n");
+    for (Map.Entry<String, LongAdder> entry : ERRORS.entrySet()) {
+      out.append("app_errors_total{type=\"").append(escape(entry.getKey())).append("\"} ");
+      out.append(entry.getValue().sum()).append('\n');
+    }
+
+    appendCounter(
+        out, "app_log_dropped_total", "Log events dropped on buffer overflow.", Log.dropped());
+
+    if (firstResponseMillis >= 0) {
+      out.append("# HELP app_startup_first_response_seconds")
+          .append(" Time from process start to the first response.\n");
+      out.append("# TYPE app_startup_first_response_seconds gauge\n");
+      out.append("app_startup_first_response_seconds ")
+          .append(firstResponseMillis / 1000.0)
+          .append('\n');
+    }
+
+    appendGauge(
+        out,
+        "app_history_watchers",
+        "Requests waiting for history changes.",
+        SessionManager.watcherCount());
+
+    SessionCache.Stats cache = SessionManager.cacheStats();
+    appendGauge(out, "app_session_cache_sessions", "Sessions held in memory.", cache.sessions());
+    appendGauge(out, "app_session_cache_entries", "Results held in memory.", cache.entries());
+    appendGauge(
+        out, "app_session_cache_bytes", "Memory used by cached results.", cache.footprintBytes());
+    appendCounter(out, "app_session_cache_hits_total", "Session cache hits.", cache.hits());
+    appendCounter(out, "app_session_cache_misses_total", "Session cache misses.", cache.misses());
+    appendCounter(
+        out, "app_session_cache_evictions_total", "Session cache evictions.", cache.evictions());
+
+    SegmentStore.Stats store = SessionManager.storeStats();
+    appendGauge(out, "app_session_segments", "Session segment files.", store.segments());
+    appendGauge(out, "app_session_segment_bytes", "Size of session segments.", store.bytes());
+    appendGauge(
+        out,
+        "app_session_segment_live_bytes",
+        "Segment records still referenced by sessions.",
+        store.liveBytes());
+
+    AdmissionControl.Stats admission = FastCGIServer.admissionStats();
+    appendGauge(out, "app_requests_in_flight", "Requests being processed.", admission.inFlight());
+    appendCounter(
+        out,
+        "app_requests_shed_total",
+        "Requests rejected with 503 on overload.",
+        admission.shed());
+    out.append("# HELP app_requests_throttled_total Requests rejected with 429 by rate limits.\n");
+    out.append("# TYPE app_requests_throttled_total counter\n");
+    out.append("app_requests_throttled_total{scope=\"session\"} ")
+        .append(admission.throttledSessions())
+        .append('\n');
+    out.append("app_requests_throttled_total{scope=\"user\"} ")
+        .append(admission.throttledUsers())
+        .append('\n');
+    out.append("app_requests_throttled_total{scope=\"login\"} ")
+        .append(admission.throttledLogins())
+        .append('\n');
+    appendGauge(
+        out,
+        "app_rate_limit_keys",
+        "Sessions, users and login sources tracked by rate limits.",
+        admission.keys());
+
+    Authenticator.Stats auth = FastCGIServer.authStats();
+    appendCounter(
+        out, "app_auth_cache_hits_total", "Credentials accepted from the cache.", auth.hits());
+    appendCounter(
+        out,
+        "app_auth_cache_misses_total",
+        "Credentials checked against the store.",
+        auth.misses());
+    return out.toString();
+  }
+
+  private static void appendHistogram(
+      StringBuilder out, String name, String labelName, String labelValue, LatencyHistogram h) {
+    String labels = labelName + "=\"" + labelValue + "\"";
+    for (double bound : BUCKET_BOUNDS) {
+      out.append(name).append("_bucket{").append(labels).append(",le=\"");
+      out.append(BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString());
+      out.append("\"} ").append(h.countAtOrBelow((long) (bound * 1e9))).append('\n');
+    }
+    long count = h.count();
+    out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ");
+    out.append(count).append('\n');
+    out.append(name).append("_sum{").append(labels).append("} ");
+    out.append(h.sumNanos() / 1e9).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+  }
+
+  private static void appendGauge(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" gauge\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void appendCounter(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static String label(Enum<?> value) {
+    return value.name().toLowerCase(Locale.ROOT);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
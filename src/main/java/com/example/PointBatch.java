@@ -0,0 +1,189 @@
+package com.example;
+
+import java.util.Arrays;
+
+/** Пачка точек (x, y, r) в виде параллельных массивов для пакетной проверки */
+public class PointBatch {
+
+  private static final int MAX_POINTS = Integer.getInteger("batch.maxPoints", 100_000);
+
+  private double[] xs = new double[16];
+  private double[] ys = new double[16];
+  private double[] rs = new double[16];
+  private int size;
+
+  public int size() {
+    return size;
+  }
+
+  public double[] xs() {
+    return xs;
+  }
+
+  public double[] ys() {
+    return ys;
+  }
+
+  public double[] rs() {
+    return rs;
+  }
+
+  private void add(double x, double y, double r) {
+    if (size == MAX_POINTS) {
+      throw new IllegalArgumentException("Too many points in batch");
+    }
+    if (size == xs.length) {
+      int capacity = Math.min(size * 2, MAX_POINTS);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+      rs = Arrays.copyOf(rs, capacity);
+    }
+    xs[size] = x;
+    ys[size] = y;
+    rs[size] = r;
+    size++;
+  }
+
+  /** Разбирает тело запроса в зависимости от Content-Type (JSON или CSV) */
+  public static PointBatch parse(String body, String contentType) {
+    if (contentType != null && contentType.startsWith("application/json")) {
+      return fromJson(body);
+    }
+    if (contentType != null && contentType.startsWith("text/csv")) {
+      return fromCsv(body);
+    }
+    throw new IllegalArgumentException("Content-Type is not supported");
+  }
+
+  /** Разбирает CSV: по одной точке "x,y,r" на строку, пустые строки пропускаются */
+  public static PointBatch fromCsv(String body) {
+    PointBatch batch = new PointBatch();
+    for (String line : body.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] parts = line.split(",");
+      if (parts.length != 3) {
+        throw new IllegalArgumentException("Invalid CSV line: " + line);
+      }
+      batch.add(parseNumber(parts[0]), parseNumber(parts[1]), parseNumber(parts[2]));
+    }
+    return batch;
+  }
+
+  /**
+   * Разбирает JSON массив точек: объекты {"x": 1, "y": 2, "r": 3} или тройки [1, 2, 3]. Разбор
+   * ограничен этими двумя формами и не требует JSON библиотеки.
+   */
+  public static PointBatch fromJson(String body) {
+    JsonCursor cursor = new JsonCursor(body);
+    PointBatch batch = new PointBatch();
+
+    cursor.expect('[');
+    if (cursor.tryConsume(']')) {
+      return batch;
+    }
+    do {
+      if (cursor.tryConsume('[')) {
+        double x = cursor.number();
+        cursor.expect(',');
+        double y = cursor.number();
+        cursor.expect(',');
+        double r = cursor.number();
+        cursor.expect(']');
+        batch.add(x, y, r);
+      } else {
+        cursor.expect('{');
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double r = Double.NaN;
+        do {
+          String key = cursor.string();
+          cursor.expect(':');
+          double value = cursor.number();
+          switch (key) {
+            case "x" -> x = value;
+            case "y" -> y = value;
+            case "r" -> r = value;
+            default -> throw new IllegalArgumentException("Unknown field: " + key);
+          }
+        } while (cursor.tryConsume(','));
+        cursor.expect('}');
+        batch.add(x, y, r);
+      }
+    } while (cursor.tryConsume(','));
+    cursor.expect(']');
+    cursor.expectEnd();
+    return batch;
+  }
+
+  private static double parseNumber(String value) {
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number format");
+    }
+  }
+
+  /** Минимальный лексер JSON: пробелы, символы-разделители, строки без экранирования и числа */
+  private static class JsonCursor {
+    private final String text;
+    private int pos;
+
+    JsonCursor(String text) {
+      this.text = text;
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    boolean tryConsume(char c) {
+      skipWhitespace();
+      if (pos < text.length() && text.charAt(pos) == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    void expect(char c) {
+      if (!tryConsume(c)) {
+        throw new IllegalArgumentException("Invalid JSON: expected '" + c + "' at " + pos);
+      }
+    }
+
+    void expectEnd() {
+      skipWhitespace();
+      if (pos != text.length()) {
+        throw new IllegalArgumentException("Invalid JSON: unexpected data at " + pos);
+      }
+    }
+
+    String string() {
+      expect('"');
+      int end = text.indexOf('"', pos);
+      if (end < 0) {
+        throw new IllegalArgumentException("Invalid JSON: unterminated string");
+      }
+      String value = text.substring(pos, end);
+      pos = end + 1;
+      return value;
+    }
+
+    double number() {
+      skipWhitespace();
+      int start = pos;
+      while (pos < text.length() && "+-.eE0123456789".indexOf(text.charAt(pos)) >= 0) {
+        pos++;
+      }
+      if (start == pos) {
+        throw new IllegalArgumentException("Invalid JSON: expected number at " + pos);
+      }
+      return parseNumber(text.substring(start, pos));
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение частоты запросов по ключу (сессия, пользователь): rate запросов в секунду с запасом
+ * burst подряд. Это token bucket в форме GCRA: на ключ хранится одно число - момент, когда ведро
+ * снова станет полным, и запрос проверяется одним compareAndSet без блокировок.
+ *
+ * <p>Ключ, ведро которого уже полное, ничем не отличается от отсутствующего, поэтому {@link
+ * #sweep()} такие ключи удаляет, и в памяти остаются только недавно активные.
+ */
+public class RateLimiter {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+
+  /** Момент по System.nanoTime, когда ведро ключа станет полным */
+  private final Map<String, AtomicLong> fullAt = new ConcurrentHashMap<>();
+
+  /**
+   * @param perSecond запросов в секунду; 0 - без ограничения
+   * @param burst сколько запросов можно сделать подряд после простоя
+   */
+  public RateLimiter(double perSecond, int burst) {
+    this.intervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+    this.burstNanos = intervalNanos * Math.max(burst, 1);
+  }
+
+  /** Ограничение из свойств {@code <prefix>.perSecond} и {@code <prefix>.burst} */
+  public static RateLimiter fromProperties(String prefix, double perSecond, int burst) {
+    return new RateLimiter(
+        Double.parseDouble(System.getProperty(prefix + ".perSecond", String.valueOf(perSecond))),
+        Integer.getInteger(prefix + ".burst", burst));
+  }
+
+  public boolean isEnabled() {
+    return intervalNanos > 0;
+  }
+
+  /** Учитывает запрос: 0, если он разрешен, иначе сколько наносекунд ждать до следующего */
+  public long tryAcquire(String key, long now) {
+    if (intervalNanos == 0 || key == null) {
+      return 0;
+    }
+    AtomicLong state = fullAt.get(key);
+    if (state == null) {
+      AtomicLong created = new AtomicLong(now);
+      state = fullAt.putIfAbsent(key, created);
+      if (state == null) {
+        state = created;
+      }
+    }
+    while (true) {
+      long current = state.get();
+      long next = Math.max(current, now) + intervalNanos;
+      if (next - now > burstNanos) {
+        return next - now - burstNanos;
+      }
+      if (state.compareAndSet(current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Сколько наносекунд ждать до следующего запроса ключа (0 - можно сейчас); ничего не учитывает
+   */
+  public long waitTime(String key, long now) {
+    if (intervalNanos == 0 || key == null) {
+      return 0;
+    }
+    AtomicLong state = fullAt.get(key);
+    if (state == null) {
+      return 0;
+    }
+    long next = Math.max(state.get(), now) + intervalNanos;
+    return Math.max(next - now - burstNanos, 0);
+  }
+
+  /**
+   * Учитывает запрос, даже если запас исчерпан: так считаются события, о которых узнают после
+   * проверки {@link #waitTime(String, long)}
+   */
+  public void charge(String key, long now) {
+    if (intervalNanos == 0 || key == null) {
+      return;
+    }
+    fullAt
+        .computeIfAbsent(key, k -> new AtomicLong(now))
+        .getAndUpdate(current -> Math.max(current, now) + intervalNanos);
+  }
+
+  /** Удаляет ключи с полным ведром */
+  public void sweep() {
+    long now = System.nanoTime();
+    fullAt.entrySet().removeIf(entry -> entry.getValue().get() - now <= 0);
+  }
+
+  /** Число ключей в памяти */
+  public int size() {
+    return fullAt.size();
+  }
+}
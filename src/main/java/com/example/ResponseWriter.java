@@ -0,0 +1,580 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Ответ, собираемый сразу в байты: CGI-заголовки из заранее закодированных фрагментов и тело (JSON
+ * или текст). Content-Length считается по фактическому размеру тела при отправке, и весь ответ
+ * уходит веб-серверу одной записью. Буферы переиспользуются через небольшой пул.
+ *
+ * <p>Тело от response.compression.minBytes байт сжимается gzip или deflate, если клиент принимает
+ * их по Accept-Encoding. {@link Deflater} берутся из пула, сжатое тело пишется в буфер ответа.
+ *
+ * <p>Порядок: {@link #acquire()}, заголовки, {@link #body()}, тело, {@link #send(FcgiRequest)}.
+ * Длинный ответ можно отправлять частями: {@link #acquire()}, заголовки, {@link
+ * #stream(FcgiRequest)}, затем части тела через {@link #flush(FcgiRequest)} и {@link #release()}.
+ */
+public class ResponseWriter {
+
+  public static final byte[] STATUS_BAD_REQUEST = encode("Status: 400 Bad Request\r\n");
+  public static final byte[] STATUS_NOT_MODIFIED = encode("Status: 304 Not Modified\r\n");
+  public static final byte[] STATUS_UNAUTHORIZED = encode("Status: 401 Unauthorized\r\n");
+  public static final byte[] STATUS_PAYLOAD_TOO_LARGE = encode("Status: 413 Payload Too Large\r\n");
+  public static final byte[] STATUS_TOO_MANY_REQUESTS = encode("Status: 429 Too Many Requests\r\n");
+  public static final byte[] STATUS_SERVICE_UNAVAILABLE =
+      encode("Status: 503 Service Unavailable\r\n");
+  public static final byte[] CONTENT_TYPE_JSON =
+      encode("Content-Type: application/json; charset=UTF-8\r\n");
+  public static final byte[] CONTENT_TYPE_CSV = encode("Content-Type: text/csv; charset=UTF-8\r\n");
+  public static final byte[] CONTENT_TYPE_NDJSON =
+      encode("Content-Type: application/x-ndjson; charset=UTF-8\r\n");
+  public static final byte[] CONTENT_TYPE_METRICS =
+      encode("Content-Type: text/plain; version=0.0.4; charset=UTF-8\r\n");
+  public static final byte[] CORS =
+      encode(
+          "Access-Control-Allow-Origin: *\r\n"
+              + "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n"
+              + "Access-Control-Allow-Headers: Content-Type, If-None-Match\r\n"
+              + "Access-Control-Expose-Headers: ETag\r\n");
+
+  private static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+  private static final byte[] ETAG = encode("ETag: ");
+  private static final byte[] RETRY_AFTER = encode("Retry-After: ");
+  private static final byte[] SESSION_COOKIE = encode("Set-Cookie: sessionId=");
+  private static final byte[] SESSION_COOKIE_ATTRIBUTES =
+      encode("; Path=/; HttpOnly; SameSite=Strict\r\n");
+
+  private static final byte[] CONTENT_ENCODING_GZIP = encode("Content-Encoding: gzip\r\n");
+  private static final byte[] CONTENT_ENCODING_DEFLATE = encode("Content-Encoding: deflate\r\n");
+  private static final byte[] VARY_ACCEPT_ENCODING = encode("Vary: Accept-Encoding\r\n");
+
+  /**
+   * Место между заголовками и телом под Content-Encoding, Vary, строку Content-Length и пустую
+   * строку
+   */
+  private static final int LENGTH_RESERVE =
+      CONTENT_ENCODING_DEFLATE.length
+          + VARY_ACCEPT_ENCODING.length
+          + CONTENT_LENGTH.length
+          + 10
+          + 4;
+
+  private static final int IDENTITY = 0;
+  private static final int GZIP = 1;
+  private static final int DEFLATE = 2;
+
+  /** Тела меньше этого размера не сжимаются: выигрыш меньше затрат */
+  private static final int COMPRESSION_MIN_BYTES =
+      Integer.getInteger("response.compression.minBytes", 1024);
+
+  private static final int COMPRESSION_LEVEL = Integer.getInteger("response.compression.level", 1);
+
+  /** Заголовок gzip (RFC 1952): без имени файла и времени, ОС неизвестна */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  /**
+   * Deflater без обертки для gzip (заголовок и CRC пишутся вручную) и с оберткой zlib для deflate
+   */
+  private static final ArrayBlockingQueue<Deflater> RAW_DEFLATERS =
+      new ArrayBlockingQueue<>(Integer.getInteger("response.poolSize", 64));
+
+  private static final ArrayBlockingQueue<Deflater> ZLIB_DEFLATERS =
+      new ArrayBlockingQueue<>(Integer.getInteger("response.poolSize", 64));
+
+  private static final int INITIAL_CAPACITY = 8192;
+
+  /** Буферы больше этого размера не возвращаются в пул, чтобы редкий огромный ответ не держался */
+  private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+  private static final ArrayBlockingQueue<ResponseWriter> POOL =
+      new ArrayBlockingQueue<>(Integer.getInteger("response.poolSize", 64));
+
+  /** Точно представимые степени десяти для форматирования чисел */
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  /** Мантиссы не длиннее 15 цифр форматируются без Double.toString */
+  private static final long MAX_FAST_MANTISSA = 1_000_000_000_000_000L;
+
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private int size;
+
+  /** Начало тела или -1, пока пишутся заголовки */
+  private int bodyStart = -1;
+
+  /** Ответ без тела (304): Content-Length не пишется */
+  private boolean noContent;
+
+  /** Кодирование, которым сжато тело, или IDENTITY */
+  private int contentEncoding;
+
+  /** Тело могло быть сжато, и ответ зависит от Accept-Encoding */
+  private boolean vary;
+
+  /** Буфер для сжатого тела; переиспользуется вместе с ответом */
+  private byte[] compressed;
+
+  private final CRC32 crc = new CRC32();
+
+  /** Последняя отформатированная секунда: записи истории часто сделаны в одну и ту же секунду */
+  private long cachedSecond = Long.MIN_VALUE;
+
+  private byte[] cachedTime;
+
+  /** Берет буфер из пула или создает новый */
+  public static ResponseWriter acquire() {
+    ResponseWriter writer = POOL.poll();
+    return writer != null ? writer : new ResponseWriter();
+  }
+
+  /** Возвращает буфер в пул; после этого писать в него нельзя */
+  public void release() {
+    reset();
+    if (compressed != null && compressed.length > MAX_POOLED_CAPACITY) {
+      compressed = null;
+    }
+    if (buffer.length <= MAX_POOLED_CAPACITY) {
+      POOL.offer(this);
+    }
+  }
+
+  /** Очищает буфер для нового ответа */
+  public void reset() {
+    size = 0;
+    bodyStart = -1;
+    noContent = false;
+    contentEncoding = IDENTITY;
+    vary = false;
+  }
+
+  /** Размер тела в байтах (или заголовков, если тело еще не начато) */
+  public int size() {
+    return bodyStart < 0 ? size : size - bodyStart;
+  }
+
+  /** Дописывает заранее закодированную строку заголовка (с \r\n) */
+  public ResponseWriter header(byte[] line) {
+    return raw(line);
+  }
+
+  /** Заголовок Set-Cookie с идентификатором сессии */
+  public ResponseWriter sessionCookie(String sessionId) {
+    raw(SESSION_COOKIE);
+    ascii(sessionId);
+    return raw(SESSION_COOKIE_ATTRIBUTES);
+  }
+
+  /** Заголовок ETag; значение - в кавычках, как в If-None-Match */
+  public ResponseWriter etag(String value) {
+    raw(ETAG);
+    ascii(value);
+    return ascii("\r\n");
+  }
+
+  /** Заголовок Retry-After: через сколько секунд повторить запрос */
+  public ResponseWriter retryAfter(long seconds) {
+    raw(RETRY_AFTER);
+    number(seconds);
+    return ascii("\r\n");
+  }
+
+  /**
+   * Заканчивает заголовки ответа без тела, например 304: для него Content-Length, если есть, должен
+   * совпадать с длиной полного ответа, поэтому не пишется вовсе
+   */
+  public ResponseWriter noContent() {
+    body();
+    noContent = true;
+    return this;
+  }
+
+  /** Заканчивает заголовки; дальше пишется тело */
+  public ResponseWriter body() {
+    ensureCapacity(LENGTH_RESERVE);
+    size += LENGTH_RESERVE;
+    bodyStart = size;
+    return this;
+  }
+
+  /**
+   * Сжимает тело, если клиент это принимает, вписывает Content-Length перед телом и отправляет
+   * ответ одной записью, после чего возвращает буфер в пул
+   */
+  public void send(FcgiRequest request) {
+    compress(request.getParam("HTTP_ACCEPT_ENCODING"));
+    int start = finish();
+    request.send(buffer, start, size - start);
+    release();
+  }
+
+  /**
+   * Отправляет заголовки ответа без Content-Length, и дальше тело уходит частями: веб-сервер
+   * передает его клиенту по мере получения (в HTTP/1.1 - chunked). Такой ответ не сжимается
+   */
+  public ResponseWriter stream(FcgiRequest request) {
+    ascii("\r\n");
+    request.send(buffer, 0, size);
+    size = 0;
+    bodyStart = 0;
+    return this;
+  }
+
+  /** Отправляет написанную часть тела потокового ответа и освобождает буфер под следующую */
+  public void flush(FcgiRequest request) {
+    request.send(buffer, 0, size);
+    size = 0;
+  }
+
+  /**
+   * Сжимает тело кодированием, предпочтенным в заголовке Accept-Encoding: gzip, затем deflate. Тело
+   * меньше порога или не ставшее меньше после сжатия остается как есть.
+   */
+  public void compress(String acceptEncoding) {
+    if (bodyStart < 0 || noContent || size - bodyStart < COMPRESSION_MIN_BYTES) {
+      return;
+    }
+    vary = true;
+    int encoding = negotiate(acceptEncoding);
+    if (encoding == IDENTITY) {
+      return;
+    }
+
+    ArrayBlockingQueue<Deflater> pool = encoding == GZIP ? RAW_DEFLATERS : ZLIB_DEFLATERS;
+    Deflater deflater = pool.poll();
+    if (deflater == null) {
+      deflater = new Deflater(COMPRESSION_LEVEL, encoding == GZIP);
+    }
+    try {
+      int length = deflate(deflater, encoding);
+      if (length < 0) {
+        return;
+      }
+      System.arraycopy(compressed, 0, buffer, bodyStart, length);
+      size = bodyStart + length;
+      contentEncoding = encoding;
+    } finally {
+      deflater.reset();
+      if (!pool.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /** Сжимает тело в compressed и возвращает длину результата или -1, если он не меньше тела */
+  private int deflate(Deflater deflater, int encoding) {
+    int length = size - bodyStart;
+    if (compressed == null || compressed.length < length) {
+      compressed = new byte[Math.max(length, INITIAL_CAPACITY)];
+    }
+    int pos = 0;
+    if (encoding == GZIP) {
+      System.arraycopy(GZIP_HEADER, 0, compressed, 0, GZIP_HEADER.length);
+      pos = GZIP_HEADER.length;
+    }
+    deflater.setInput(buffer, bodyStart, length);
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (pos >= length) {
+        return -1;
+      }
+      pos += deflater.deflate(compressed, pos, length - pos);
+    }
+    if (encoding == GZIP) {
+      if (pos + 8 >= length) {
+        return -1;
+      }
+      crc.reset();
+      crc.update(buffer, bodyStart, length);
+      pos = putIntLittleEndian(pos, (int) crc.getValue());
+      pos = putIntLittleEndian(pos, length);
+    }
+    return pos;
+  }
+
+  private int putIntLittleEndian(int pos, int value) {
+    compressed[pos] = (byte) value;
+    compressed[pos + 1] = (byte) (value >>> 8);
+    compressed[pos + 2] = (byte) (value >>> 16);
+    compressed[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+
+  /**
+   * Выбирает кодирование по Accept-Encoding: gzip или deflate, если они (или *) приняты с q > 0,
+   * иначе IDENTITY
+   */
+  static int negotiate(String acceptEncoding) {
+    if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+      return IDENTITY;
+    }
+    boolean gzip = false;
+    boolean deflate = false;
+    boolean gzipRefused = false;
+    boolean deflateRefused = false;
+    boolean any = false;
+    for (String item : acceptEncoding.split(",")) {
+      int semicolon = item.indexOf(';');
+      String coding = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+      boolean accepted = semicolon < 0 || !isZeroQuality(item.substring(semicolon + 1));
+      if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+        gzip |= accepted;
+        gzipRefused |= !accepted;
+      } else if (coding.equalsIgnoreCase("deflate")) {
+        deflate |= accepted;
+        deflateRefused |= !accepted;
+      } else if (coding.equals("*")) {
+        any = accepted;
+      }
+    }
+    if (gzip || (any && !gzipRefused)) {
+      return GZIP;
+    }
+    if (deflate || (any && !deflateRefused)) {
+      return DEFLATE;
+    }
+    return IDENTITY;
+  }
+
+  /** Параметры вида "q=0", "q=0.0", "q=0.000" */
+  private static boolean isZeroQuality(String parameters) {
+    String q = parameters.trim();
+    if (!q.startsWith("q=") && !q.startsWith("Q=")) {
+      return false;
+    }
+    try {
+      return Double.parseDouble(q.substring(2).trim()) == 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Дописывает перед телом Content-Encoding, Vary, Content-Length и пустую строку, сдвигая
+   * заголовки вплотную к телу, и возвращает начало готового ответа в буфере
+   */
+  int finish() {
+    if (bodyStart < 0) {
+      body();
+    }
+    int pos = bodyStart - LENGTH_RESERVE;
+    if (!noContent) {
+      if (contentEncoding != IDENTITY) {
+        pos = put(pos, contentEncoding == GZIP ? CONTENT_ENCODING_GZIP : CONTENT_ENCODING_DEFLATE);
+      }
+      if (vary) {
+        pos = put(pos, VARY_ACCEPT_ENCODING);
+      }
+      pos = put(pos, CONTENT_LENGTH);
+      pos = putLong(pos, size - bodyStart);
+      buffer[pos++] = '\r';
+      buffer[pos++] = '\n';
+    }
+    buffer[pos++] = '\r';
+    buffer[pos++] = '\n';
+
+    int start = bodyStart - pos;
+    System.arraycopy(buffer, 0, buffer, start, pos);
+    return start;
+  }
+
+  private int put(int pos, byte[] bytes) {
+    System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+    return pos + bytes.length;
+  }
+
+  /** Готовый ответ в виде строки; для отладки и бенчмарков */
+  @Override
+  public String toString() {
+    byte[] saved = buffer.clone();
+    int start = finish();
+    String text = new String(buffer, start, size - start, StandardCharsets.UTF_8);
+    buffer = saved;
+    return text;
+  }
+
+  /** Дописывает байты как есть */
+  public ResponseWriter raw(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+    return this;
+  }
+
+  /** Дописывает одиночный ASCII-символ */
+  public ResponseWriter ascii(char c) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) c;
+    return this;
+  }
+
+  /** Дописывает строку из ASCII-символов без кодирования */
+  public ResponseWriter ascii(String text) {
+    int length = text.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        return text(text.substring(i));
+      }
+      buffer[size++] = (byte) c;
+    }
+    return this;
+  }
+
+  /** Дописывает строку в UTF-8 */
+  public ResponseWriter text(String text) {
+    return raw(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Дописывает строку JSON в кавычках, экранируя кавычки, обратную косую черту и управляющие */
+  public ResponseWriter jsonString(String text) {
+    ascii('"');
+    int from = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\' || c < ' ') {
+        ascii(text.substring(from, i));
+        if (c == '"' || c == '\\') {
+          ascii('\\').ascii(c);
+        } else {
+          ascii("\\u00")
+              .ascii(Character.forDigit(c >> 4, 16))
+              .ascii(Character.forDigit(c & 15, 16));
+        }
+        from = i + 1;
+      }
+    }
+    ascii(from == 0 ? text : text.substring(from));
+    return ascii('"');
+  }
+
+  public ResponseWriter number(long value) {
+    ensureCapacity(20);
+    size = putLong(size, value);
+    return this;
+  }
+
+  public ResponseWriter bool(boolean value) {
+    return ascii(value ? "true" : "false");
+  }
+
+  /**
+   * Дописывает число так же, как {@link Double#toString}. Значения от 0.001 до 10^7 с не более чем
+   * 15 значащими цифрами пишутся прямо в буфер: ищется наименьшее число знаков после точки, при
+   * котором десятичная запись разбирается обратно в то же значение. Остальные - через
+   * Double.toString.
+   */
+  public ResponseWriter number(double value) {
+    if (value == 0) {
+      return ascii(Double.doubleToRawLongBits(value) == 0 ? "0.0" : "-0.0");
+    }
+    double abs = Math.abs(value);
+    if (abs >= 1e-3 && abs < 1e7) {
+      for (int scale = 0; scale < POWERS_OF_TEN.length; scale++) {
+        long mantissa = Math.round(abs * POWERS_OF_TEN[scale]);
+        if (mantissa >= MAX_FAST_MANTISSA) {
+          break;
+        }
+        if (mantissa / POWERS_OF_TEN[scale] == abs) {
+          if (value < 0) {
+            ascii('-');
+          }
+          putDecimal(mantissa, scale);
+          return this;
+        }
+      }
+    }
+    return ascii(Double.toString(value));
+  }
+
+  /** Время в формате yyyy-MM-dd HH:mm:ss в кавычках */
+  public ResponseWriter jsonTime(long timestampMillis) {
+    return ascii('"').time(timestampMillis).ascii('"');
+  }
+
+  /** Время в формате yyyy-MM-dd HH:mm:ss */
+  public ResponseWriter time(long timestampMillis) {
+    long second = Math.floorDiv(timestampMillis, 1000);
+    if (second != cachedSecond) {
+      cachedTime = encode(SessionManager.formatTime(timestampMillis));
+      cachedSecond = second;
+    }
+    return raw(cachedTime);
+  }
+
+  /** mantissa / 10^scale с хотя бы одной цифрой после точки */
+  private void putDecimal(long mantissa, int scale) {
+    int length = digits(mantissa);
+    ensureCapacity(Math.max(length, scale + 1) + 3);
+    if (scale == 0) {
+      size = putLong(size, mantissa);
+      buffer[size++] = '.';
+      buffer[size++] = '0';
+      return;
+    }
+    if (length <= scale) {
+      buffer[size++] = '0';
+      buffer[size++] = '.';
+      for (int i = length; i < scale; i++) {
+        buffer[size++] = '0';
+      }
+      size = putLong(size, mantissa);
+      return;
+    }
+    // Цифры пишутся с конца, точка - после целой части
+    int end = size + length + 1;
+    int pos = end;
+    for (int i = 0; i < length; i++) {
+      if (i == scale) {
+        buffer[--pos] = '.';
+      }
+      buffer[--pos] = (byte) ('0' + mantissa % 10);
+      mantissa /= 10;
+    }
+    size = end;
+  }
+
+  /** Пишет десятичную запись value с позиции pos и возвращает позицию за ней */
+  private int putLong(int pos, long value) {
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        byte[] text = encode(Long.toString(value));
+        System.arraycopy(text, 0, buffer, pos, text.length);
+        return pos + text.length;
+      }
+      buffer[pos++] = '-';
+      value = -value;
+    }
+    int end = pos + digits(value);
+    int digit = end;
+    do {
+      buffer[--digit] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    return end;
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (size + extra > buffer.length) {
+      byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+      System.arraycopy(buffer, 0, grown, 0, size);
+      buffer = grown;
+    }
+  }
+
+  private static byte[] encode(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,312 @@
+package com.example;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Сводка по результатам проверок: число точек и попаданий по ячейкам (x, R), гистограмма y и время
+ * выполнения. Каждая точка учитывается за O(1), поэтому сводку можно поддерживать при добавлении, а
+ * не пересчитывать по истории.
+ *
+ * <p>Сводка не потокобезопасна: сессия обновляет свою под своим монитором, а общая по всем сессиям
+ * собирается в {@link Striped}.
+ */
+public final class ResultStats {
+
+  private static final double[] X_VALUES = CoordinatesValidator.validXValues();
+  private static final double[] R_VALUES = CoordinatesValidator.validRValues();
+
+  /** Ячейки (x, R) допустимых значений и одна общая для прочих (старые записи) */
+  private static final int CELLS = X_VALUES.length * R_VALUES.length + 1;
+
+  /** Гистограмма y: корзины шириной 1 на допустимом отрезке; y за его краями - в крайних */
+  private static final double Y_MIN = CoordinatesValidator.Y_MIN;
+
+  private static final int Y_BINS = (int) (CoordinatesValidator.Y_MAX - Y_MIN);
+
+  private long count;
+  private long hits;
+  private final long[] cellCounts = new long[CELLS];
+  private final long[] cellHits = new long[CELLS];
+  private final long[] yCounts = new long[Y_BINS];
+  private final long[] yHits = new long[Y_BINS];
+  private double executionTimeSum;
+  private double minExecutionTime = Double.POSITIVE_INFINITY;
+  private double maxExecutionTime = Double.NEGATIVE_INFINITY;
+
+  /** Допустимые значения x в порядке ячеек */
+  public static double[] xValues() {
+    return X_VALUES.clone();
+  }
+
+  /** Допустимые значения R в порядке ячеек */
+  public static double[] rValues() {
+    return R_VALUES.clone();
+  }
+
+  /** Левая граница корзины гистограммы y; корзин {@link #yBins()} */
+  public static double yBinStart(int bin) {
+    return Y_MIN + bin;
+  }
+
+  public static int yBins() {
+    return Y_BINS;
+  }
+
+  /** Учитывает точку */
+  public void add(SessionManager.CalculationResult result) {
+    int cell = cellOf(result.x(), result.r());
+    int bin = binOf(result.y());
+    count++;
+    cellCounts[cell]++;
+    yCounts[bin]++;
+    if (result.isInArea()) {
+      hits++;
+      cellHits[cell]++;
+      yHits[bin]++;
+    }
+    double time = result.executionTime();
+    executionTimeSum += time;
+    minExecutionTime = Math.min(minExecutionTime, time);
+    maxExecutionTime = Math.max(maxExecutionTime, time);
+  }
+
+  /** Прибавляет другую сводку */
+  public void add(ResultStats other) {
+    merge(other, 1);
+    minExecutionTime = Math.min(minExecutionTime, other.minExecutionTime);
+    maxExecutionTime = Math.max(maxExecutionTime, other.maxExecutionTime);
+  }
+
+  /**
+   * Вычитает сводку точек, которые удалены. Минимум и максимум времени выполнения по оставшимся
+   * точкам за O(1) не восстановить, поэтому они остаются прежними
+   */
+  public void subtract(ResultStats other) {
+    merge(other, -1);
+  }
+
+  private void merge(ResultStats other, int sign) {
+    count += sign * other.count;
+    hits += sign * other.hits;
+    for (int i = 0; i < CELLS; i++) {
+      cellCounts[i] += sign * other.cellCounts[i];
+      cellHits[i] += sign * other.cellHits[i];
+    }
+    for (int i = 0; i < Y_BINS; i++) {
+      yCounts[i] += sign * other.yCounts[i];
+      yHits[i] += sign * other.yHits[i];
+    }
+    executionTimeSum += sign * other.executionTimeSum;
+  }
+
+  private void clear() {
+    count = 0;
+    hits = 0;
+    Arrays.fill(cellCounts, 0);
+    Arrays.fill(cellHits, 0);
+    Arrays.fill(yCounts, 0);
+    Arrays.fill(yHits, 0);
+    executionTimeSum = 0;
+    minExecutionTime = Double.POSITIVE_INFINITY;
+    maxExecutionTime = Double.NEGATIVE_INFINITY;
+  }
+
+  /** Пишет сводку вместе с размерами ячеек и гистограммы */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(CELLS);
+    out.writeInt(Y_BINS);
+    out.writeLong(count);
+    out.writeLong(hits);
+    for (int i = 0; i < CELLS; i++) {
+      out.writeLong(cellCounts[i]);
+      out.writeLong(cellHits[i]);
+    }
+    for (int i = 0; i < Y_BINS; i++) {
+      out.writeLong(yCounts[i]);
+      out.writeLong(yHits[i]);
+    }
+    out.writeDouble(executionTimeSum);
+    out.writeDouble(minExecutionTime);
+    out.writeDouble(maxExecutionTime);
+  }
+
+  /**
+   * Читает сводку, записанную {@link #writeTo(DataOutput)}; если с тех пор изменились допустимые
+   * значения, ячейки не совпадут, и это ошибка
+   */
+  public static ResultStats readFrom(DataInput in) throws IOException {
+    if (in.readInt() != CELLS || in.readInt() != Y_BINS) {
+      throw new IOException("Statistics layout changed");
+    }
+    ResultStats stats = new ResultStats();
+    stats.count = in.readLong();
+    stats.hits = in.readLong();
+    for (int i = 0; i < CELLS; i++) {
+      stats.cellCounts[i] = in.readLong();
+      stats.cellHits[i] = in.readLong();
+    }
+    for (int i = 0; i < Y_BINS; i++) {
+      stats.yCounts[i] = in.readLong();
+      stats.yHits[i] = in.readLong();
+    }
+    stats.executionTimeSum = in.readDouble();
+    stats.minExecutionTime = in.readDouble();
+    stats.maxExecutionTime = in.readDouble();
+    return stats;
+  }
+
+  public ResultStats copy() {
+    ResultStats copy = new ResultStats();
+    copy.add(this);
+    return copy;
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long hits() {
+    return hits;
+  }
+
+  /** Доля попаданий; 0 без точек */
+  public double hitRate() {
+    return count == 0 ? 0 : (double) hits / count;
+  }
+
+  /** Точек с x = xValues()[xIndex] и R = rValues()[rIndex] */
+  public long count(int xIndex, int rIndex) {
+    return cellCounts[xIndex * R_VALUES.length + rIndex];
+  }
+
+  /** Попаданий с x = xValues()[xIndex] и R = rValues()[rIndex] */
+  public long hits(int xIndex, int rIndex) {
+    return cellHits[xIndex * R_VALUES.length + rIndex];
+  }
+
+  /** Точек с R = rValues()[rIndex] */
+  public long countByR(int rIndex) {
+    long sum = 0;
+    for (int x = 0; x < X_VALUES.length; x++) {
+      sum += count(x, rIndex);
+    }
+    return sum;
+  }
+
+  /** Попаданий с R = rValues()[rIndex] */
+  public long hitsByR(int rIndex) {
+    long sum = 0;
+    for (int x = 0; x < X_VALUES.length; x++) {
+      sum += hits(x, rIndex);
+    }
+    return sum;
+  }
+
+  public long yCount(int bin) {
+    return yCounts[bin];
+  }
+
+  public long yHits(int bin) {
+    return yHits[bin];
+  }
+
+  /** Минимальное время выполнения или NaN без точек */
+  public double minExecutionTime() {
+    return count == 0 ? Double.NaN : minExecutionTime;
+  }
+
+  /** Максимальное время выполнения или NaN без точек */
+  public double maxExecutionTime() {
+    return count == 0 ? Double.NaN : maxExecutionTime;
+  }
+
+  /** Среднее время выполнения или NaN без точек */
+  public double meanExecutionTime() {
+    return count == 0 ? Double.NaN : executionTimeSum / count;
+  }
+
+  private static int cellOf(double x, double r) {
+    int xIndex = indexOf(X_VALUES, x);
+    int rIndex = indexOf(R_VALUES, r);
+    return xIndex < 0 || rIndex < 0 ? CELLS - 1 : xIndex * R_VALUES.length + rIndex;
+  }
+
+  private static int indexOf(double[] values, double value) {
+    for (int i = 0; i < values.length; i++) {
+      if (Math.abs(value - values[i]) < 1e-9) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int binOf(double y) {
+    // NaN тоже попадает в первую корзину
+    return y < Y_MIN + 1 || Double.isNaN(y) ? 0 : Math.min((int) (y - Y_MIN), Y_BINS - 1);
+  }
+
+  /**
+   * Сводка, которую обновляют параллельно: разбита на полосы, и поток пишет в свою полосу по id,
+   * поэтому запросы из разных потоков почти не ждут друг друга. Чтение складывает все полосы.
+   */
+  public static final class Striped {
+    private final ResultStats[] stripes;
+
+    public Striped() {
+      int stripeCount =
+          Integer.highestOneBit(Math.min(63, Runtime.getRuntime().availableProcessors() * 2 - 1))
+              << 1;
+      stripes = new ResultStats[stripeCount];
+      Arrays.setAll(stripes, i -> new ResultStats());
+    }
+
+    public void add(SessionManager.CalculationResult result) {
+      ResultStats stripe = stripe();
+      synchronized (stripe) {
+        stripe.add(result);
+      }
+    }
+
+    public void add(ResultStats stats) {
+      ResultStats stripe = stripe();
+      synchronized (stripe) {
+        stripe.add(stats);
+      }
+    }
+
+    public void subtract(ResultStats stats) {
+      ResultStats stripe = stripe();
+      synchronized (stripe) {
+        stripe.subtract(stats);
+      }
+    }
+
+    /** Обнуляет сводку */
+    public void reset() {
+      for (ResultStats stripe : stripes) {
+        synchronized (stripe) {
+          stripe.clear();
+        }
+      }
+    }
+
+    /** Сумма полос */
+    public ResultStats sum() {
+      ResultStats sum = new ResultStats();
+      for (ResultStats stripe : stripes) {
+        synchronized (stripe) {
+          sum.add(stripe);
+        }
+      }
+      return sum;
+    }
+
+    private ResultStats stripe() {
+      long id = Thread.currentThread().getId();
+      return stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (stripes.length - 1)];
+    }
+  }
+}
@@ -0,0 +1,1264 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Хранилище сессий в нескольких файлах-сегментах, в которые записи только дописываются. Все сессии
+ * лежат в общих сегментах {@code segment-<номер>.log}, а в памяти держится индекс: для каждой
+ * сессии - где лежат ее записи. Пачка записей разных сессий пишется одним вызовом write и одним
+ * fsync.
+ *
+ * <p>Запись сегмента: длина всей записи, CRC32C остатка, тип, время записи, длина id, id и данные
+ * (строки файла сессии). Тип APPEND дописывает данные к сессии, FULL заменяет все прежние записи
+ * сессии, DELETE (tombstone) удаляет сессию. При открытии сегменты читаются по порядку, и индекс
+ * строится заново; оборванная последняя запись последнего сегмента отрезается. Испорченная запись с
+ * целой длиной пропускается, а нечитаемый хвост заполненного сегмента не отрезается: файл
+ * копируется рядом для разбора.
+ *
+ * <p>Когда сегмент заполнен, начинается новый. Сжатие ({@link #compact()}) переписывает живые
+ * сессии из сегментов, где живых данных меньше sessions.compaction.liveRatio, одной записью FULL в
+ * текущий сегмент и удаляет старый файл.
+ *
+ * <p>Каталог могут одновременно использовать несколько процессов. Пишут они по очереди под файловой
+ * блокировкой {@code segments.ctl}, а номер текущего сегмента и конец зафиксированных в нем данных
+ * публикуют в этом же файле, отображенном в память всех процессов. Каждый процесс проверяет его раз
+ * в sessions.shared.pollMs и дочитывает чужие записи в свой индекс, сообщая о них {@link Listener}.
+ *
+ * <p>Каждую примененную к индексу запись - свою, чужую и прочитанную при открытии - получает {@link
+ * Tracker}, который ведет сводку по всему содержимому хранилища. {@link #checkpoint()} сохраняет
+ * его состояние вместе с позицией в {@code segments.checkpoint}, и при открытии ему передаются
+ * только записи после этой позиции.
+ */
+public class SegmentStore {
+
+  private static final byte TYPE_APPEND = 1;
+  private static final byte TYPE_FULL = 2;
+  private static final byte TYPE_DELETE = 3;
+
+  /** Длина, CRC, тип, время, длина id */
+  private static final int HEADER_BYTES = 4 + 4 + 1 + 8 + 2;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CONTROL_FILE = "segments.ctl";
+  private static final String CHECKPOINT_FILE = "segments.checkpoint";
+  private static final int CHECKPOINT_FORMAT = 1;
+
+  /** Смещение в ссылке на запись: младшие 40 бит, выше - номер сегмента */
+  private static final int OFFSET_BITS = 40;
+
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  /** Сколько данных переписывать при сжатии за одно взятие блокировки записи */
+  private static final int COMPACTION_CHUNK_BYTES = 1 << 20;
+
+  /**
+   * Поля управляющего блока: признак формата, счетчик версий (нечетный, пока поля меняются), номер
+   * текущего сегмента и конец зафиксированных в нем данных
+   */
+  private static final int CONTROL_MAGIC = 0;
+
+  private static final int CONTROL_SEQ = 8;
+  private static final int CONTROL_ACTIVE = 16;
+  private static final int CONTROL_COMMITTED = 24;
+  private static final int CONTROL_BYTES = 4096;
+  private static final long MAGIC = 0x5345474d454e5431L;
+
+  private static final VarHandle CONTROL_LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  /** Сессия в хранилище: объем данных и время последней записи */
+  public record StoredSession(String sessionId, long bytes, long lastWrite) {}
+
+  /** Статистика: сегменты, их общий объем, объем живых записей и число сессий */
+  public record Stats(int segments, long bytes, long liveBytes, int sessions) {}
+
+  /** Получает изменения сессий, записанные другими процессами */
+  public interface Listener {
+
+    /**
+     * Другой процесс дописал данные к сессии. Вызывается под блокировкой записи хранилища, пока
+     * записи этого процесса не могут вклиниться; false - копию сессии в памяти надо сбросить. Если
+     * копию уже решено сбросить, update = false, и данные нужны только для учета
+     */
+    boolean appended(String sessionId, byte[] data, boolean update);
+
+    /**
+     * Другой процесс удалил сессию; data - ее содержимое до удаления. Вызывается под блокировкой
+     * записи хранилища
+     */
+    void deleted(String sessionId, byte[] data);
+
+    /**
+     * Вызывается из потока чтения чужих записей без блокировок: сессии, измененные другими
+     * процессами, и те из них, чьи копии в памяти надо сбросить
+     */
+    void changed(Set<String> changed, Set<String> invalidated);
+  }
+
+  /**
+   * Сводка по содержимому хранилища, которую оно поддерживает само. Все методы вызываются под
+   * блокировкой записи хранилища
+   */
+  public interface Tracker {
+
+    /**
+     * Индекс строится заново. state - состояние из {@link #checkpoint()}, если записи до его
+     * позиции с тех пор не менялись, и тогда передаются только записи после нее; иначе null, и
+     * заново передаются все записи
+     */
+    void recovering(byte[] state) throws IOException;
+
+    /**
+     * Запись применена к индексу: removed - прежнее содержимое сессии, которое она заменила или
+     * удалила (null, если запись только дописывает), added - новые данные сессии
+     */
+    void applied(String sessionId, byte[] removed, byte[] added);
+
+    /** Состояние для {@link #checkpoint()} */
+    byte[] state();
+  }
+
+  /** Действие под блокировкой записи всех процессов */
+  public interface ExclusiveAction<T> {
+    T run() throws IOException;
+  }
+
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    long size;
+
+    /** Объем записей, на которые ссылается индекс */
+    long liveBytes;
+
+    Segment(int id, Path path, FileChannel channel, long size) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+      this.size = size;
+    }
+  }
+
+  /** Записи одной сессии по порядку: ссылки (сегмент и смещение) и длины */
+  private static final class Extents {
+    long[] refs = new long[1];
+    int[] lengths = new int[1];
+    int count;
+    long payloadBytes;
+    long lastWrite;
+
+    /** Ссылка на первую запись версии сессии; сжатие переписывает данные и ее не меняет */
+    long origin;
+  }
+
+  private final Path directory;
+  private final long maxSegmentBytes;
+  private final double compactionLiveRatio;
+
+  private final FileChannel controlChannel;
+  private final MappedByteBuffer control;
+  private final Tracker tracker;
+
+  /** Порядок записей в сегменты: сброс журнала, удаление, сжатие и чтение чужих записей */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /** Индекс и список сегментов; чтение держит его, пока читает файлы, чтобы сегмент не удалили */
+  private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+  private final Map<String, Extents> index = new HashMap<>();
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+  private Segment active;
+
+  /** Файловая блокировка, пока процесс пишет; под writeLock */
+  private FileLock fileLock;
+
+  /** Версия управляющего блока, до которой прочитаны чужие записи */
+  private volatile long seenSeq = -1;
+
+  private volatile Listener listener;
+
+  /** Сессии, измененные другими процессами, о которых слушатель еще не знает; под writeLock */
+  private Set<String> changedSessions = new HashSet<>();
+
+  private Set<String> invalidatedSessions = new HashSet<>();
+
+  /**
+   * Прочитанные изменения ждут потока чтения чужих записей: слушатель может ждать загрузки сессии,
+   * а она - сброса журнала, который как раз держит блокировку хранилища
+   */
+  private final List<Notification> notifications = new ArrayList<>();
+
+  private record Notification(Set<String> changed, Set<String> invalidated) {}
+
+  private SegmentStore(
+      Path directory, long maxSegmentBytes, double compactionLiveRatio, Tracker tracker)
+      throws IOException {
+    this.directory = directory;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.compactionLiveRatio = compactionLiveRatio;
+    this.tracker = tracker;
+    this.controlChannel =
+        FileChannel.open(
+            directory.resolve(CONTROL_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    FileLock lock = controlChannel.lock();
+    try {
+      if (controlChannel.size() < CONTROL_BYTES) {
+        controlChannel.write(ByteBuffer.allocate(1), CONTROL_BYTES - 1);
+      }
+    } finally {
+      lock.release();
+    }
+    this.control = controlChannel.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_BYTES);
+  }
+
+  /**
+   * Открывает хранилище в каталоге: читает все сегменты и строит индекс. Размер сегмента -
+   * sessions.segment.maxBytes, порог сжатия - sessions.compaction.liveRatio
+   */
+  public static SegmentStore open(Path directory) throws IOException {
+    return open(directory, null);
+  }
+
+  /** Открывает хранилище, содержимое которого сводит tracker (может быть null) */
+  public static SegmentStore open(Path directory, Tracker tracker) throws IOException {
+    return open(
+        directory,
+        Long.getLong("sessions.segment.maxBytes", 64L << 20),
+        Double.parseDouble(System.getProperty("sessions.compaction.liveRatio", "0.5")),
+        tracker);
+  }
+
+  public static SegmentStore open(
+      Path directory, long maxSegmentBytes, double compactionLiveRatio, Tracker tracker)
+      throws IOException {
+    Files.createDirectories(directory);
+    SegmentStore store = new SegmentStore(directory, maxSegmentBytes, compactionLiveRatio, tracker);
+    store.writeLock.lock();
+    try {
+      store.fileLock = store.controlChannel.lock();
+      store.recover();
+    } finally {
+      store.unlock();
+    }
+
+    Thread tailer = new Thread(store::runTailer, "segment-tailer");
+    tailer.setDaemon(true);
+    tailer.start();
+    return store;
+  }
+
+  /** Слушатель записей других процессов */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Дописывает данные к сессиям одной пачкой и синхронизирует сегмент с диском */
+  public void append(Map<String, byte[]> batch) throws IOException {
+    write(batch, TYPE_APPEND);
+  }
+
+  /** Заменяет содержимое сессий целиком; используется при импорте файлов сессий */
+  public void replace(Map<String, byte[]> batch) throws IOException {
+    write(batch, TYPE_FULL);
+  }
+
+  /**
+   * Удаляет сессию записью-tombstone; возвращает ее прежнее содержимое или null, если ее не было
+   */
+  public byte[] delete(String sessionId) throws IOException {
+    lockExclusive();
+    try {
+      byte[] data = read(sessionId);
+      if (data == null) {
+        return null;
+      }
+      Map<String, byte[]> tombstone = new HashMap<>();
+      tombstone.put(sessionId, new byte[0]);
+      write(tombstone, TYPE_DELETE);
+      return data;
+    } finally {
+      unlock();
+    }
+  }
+
+  /** Выполняет действие так, что ни этот, ни другие процессы тем временем ничего не пишут */
+  public <T> T exclusive(ExclusiveAction<T> action) throws IOException {
+    lockExclusive();
+    try {
+      return action.run();
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Сохраняет состояние {@link Tracker} с позицией конца примененных записей и списком сегментов до
+   * нее. Файл заменяется целиком, так что его всегда можно прочитать
+   */
+  public void checkpoint() throws IOException {
+    if (tracker == null) {
+      return;
+    }
+    lockExclusive();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(CHECKPOINT_FORMAT);
+      out.writeLong(ref(active.id, active.size));
+      out.writeInt(segments.size());
+      for (int id : segments.keySet()) {
+        out.writeInt(id);
+      }
+      byte[] state = tracker.state();
+      out.writeInt(state.length);
+      out.write(state);
+
+      Path file = directory.resolve(CHECKPOINT_FILE);
+      Path temporary = Files.createTempFile(directory, CHECKPOINT_FILE, ".tmp");
+      try {
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(
+            temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  /** Все данные сессии по порядку или null, если сессии нет */
+  public byte[] read(String sessionId) throws IOException {
+    indexLock.readLock().lock();
+    try {
+      Extents extents = index.get(sessionId);
+      if (extents == null) {
+        return null;
+      }
+      int skip = HEADER_BYTES + sessionId.getBytes(StandardCharsets.UTF_8).length;
+      byte[] data = new byte[Math.toIntExact(extents.payloadBytes)];
+      int pos = 0;
+      for (int i = 0; i < extents.count; i++) {
+        Segment segment = segments.get(segmentOf(extents.refs[i]));
+        int length = extents.lengths[i] - skip;
+        readFully(
+            segment.channel, ByteBuffer.wrap(data, pos, length), offsetOf(extents.refs[i]) + skip);
+        pos += length;
+      }
+      return data;
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Чтение данных сессии частями, см. {@link Reader}; null, если сессии нет. Читается то, что было
+   * в сессии при вызове
+   */
+  public Reader reader(String sessionId) {
+    indexLock.readLock().lock();
+    try {
+      Extents extents = index.get(sessionId);
+      return extents == null ? null : new Reader(sessionId, extents.origin, extents.payloadBytes);
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Данные одной сессии по частям. Блокировка индекса держится только на время чтения части, так
+   * что между частями сессию можно дописывать и сжимать: сжатие переписывает данные без изменений,
+   * и смещения в них остаются прежними. Если сессию очистили, чтение заканчивается
+   */
+  public final class Reader {
+    private final String sessionId;
+    private final int skip;
+    private final long origin;
+    private final long limit;
+    private long position;
+
+    /** Записи, с которой продолжать, пока индекс сессии тот же, и начало ее данных */
+    private Extents extents;
+
+    private int next;
+    private long nextStart;
+
+    private Reader(String sessionId, long origin, long limit) {
+      this.sessionId = sessionId;
+      this.skip = HEADER_BYTES + sessionId.getBytes(StandardCharsets.UTF_8).length;
+      this.origin = origin;
+      this.limit = limit;
+    }
+
+    /**
+     * Читает следующую часть в buffer с offset до конца buffer; возвращает число байтов или -1,
+     * если данные кончились
+     */
+    public int read(byte[] buffer, int offset) throws IOException {
+      indexLock.readLock().lock();
+      try {
+        Extents current = index.get(sessionId);
+        if (current == null || current.origin != origin || position >= limit) {
+          return -1;
+        }
+        if (current != extents) {
+          extents = current;
+          next = 0;
+          nextStart = 0;
+        }
+        int wanted = (int) Math.min(buffer.length - offset, limit - position);
+        int filled = 0;
+        while (filled < wanted) {
+          int length = extents.lengths[next] - skip;
+          long from = position + filled - nextStart;
+          if (from >= length) {
+            nextStart += length;
+            next++;
+            continue;
+          }
+          int n = (int) Math.min(wanted - filled, length - from);
+          Segment segment = segments.get(segmentOf(extents.refs[next]));
+          readFully(
+              segment.channel,
+              ByteBuffer.wrap(buffer, offset + filled, n),
+              offsetOf(extents.refs[next]) + skip + from);
+          filled += n;
+        }
+        position += filled;
+        return filled;
+      } finally {
+        indexLock.readLock().unlock();
+      }
+    }
+  }
+
+  public boolean contains(String sessionId) {
+    indexLock.readLock().lock();
+    try {
+      return index.containsKey(sessionId);
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  /** Все сессии с объемом данных и временем последней записи */
+  public List<StoredSession> sessions() {
+    indexLock.readLock().lock();
+    try {
+      List<StoredSession> sessions = new ArrayList<>(index.size());
+      for (Map.Entry<String, Extents> entry : index.entrySet()) {
+        sessions.add(
+            new StoredSession(
+                entry.getKey(), entry.getValue().payloadBytes, entry.getValue().lastWrite));
+      }
+      return sessions;
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  public Stats stats() {
+    indexLock.readLock().lock();
+    try {
+      long bytes = 0;
+      long live = 0;
+      for (Segment segment : segments.values()) {
+        bytes += segment.size;
+        live += segment.liveBytes;
+      }
+      return new Stats(segments.size(), bytes, live, index.size());
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Сжимает заполненные сегменты, где живых записей меньше порога: живые сессии переписываются в
+   * текущий сегмент, старый файл удаляется. Возвращает число удаленных сегментов.
+   */
+  public int compact() throws IOException {
+    List<Segment> victims = new ArrayList<>();
+    lockExclusive();
+    try {
+      for (Segment segment : segments.values()) {
+        if (segment != active && segment.liveBytes < segment.size * compactionLiveRatio) {
+          victims.add(segment);
+        }
+      }
+    } finally {
+      unlock();
+    }
+    int compacted = 0;
+    for (Segment victim : victims) {
+      if (compact(victim)) {
+        compacted++;
+      }
+    }
+    return compacted;
+  }
+
+  /** Сжимает сегмент; false, если его уже удалил другой процесс */
+  private boolean compact(Segment victim) throws IOException {
+    // Живые сессии, чьи записи лежат в сегменте: каждая переписывается одной записью FULL
+    List<String> live = new ArrayList<>();
+    lockExclusive();
+    try {
+      if (segments.get(victim.id) != victim) {
+        return false;
+      }
+      for (Map.Entry<String, Extents> entry : index.entrySet()) {
+        if (hasRecordIn(entry.getValue(), victim.id)) {
+          live.add(entry.getKey());
+        }
+      }
+    } finally {
+      unlock();
+    }
+    int next = 0;
+    while (next < live.size()) {
+      lockExclusive();
+      try {
+        next = rewrite(live, next, victim.id);
+      } finally {
+        unlock();
+      }
+    }
+
+    lockExclusive();
+    try {
+      if (segments.get(victim.id) != victim) {
+        return false;
+      }
+      keepTombstones(victim);
+      indexLock.writeLock().lock();
+      try {
+        segments.remove(victim.id);
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+      victim.channel.close();
+      Files.deleteIfExists(victim.path);
+    } finally {
+      unlock();
+    }
+    Log.info("Compacted segment", "segment", victim.path.getFileName(), "sessions", live.size());
+    return true;
+  }
+
+  /**
+   * Переписывает сессии начиная с from, пока не наберется порция; возвращает следующий номер.
+   * Сессии, которые уже переписал другой процесс, пропускаются.
+   */
+  private int rewrite(List<String> sessionIds, int from, int segmentId) throws IOException {
+    Map<String, byte[]> batch = new HashMap<>();
+    int bytes = 0;
+    int i = from;
+    while (i < sessionIds.size() && bytes < COMPACTION_CHUNK_BYTES) {
+      String sessionId = sessionIds.get(i++);
+      indexLock.readLock().lock();
+      try {
+        Extents extents = index.get(sessionId);
+        if (extents == null || !hasRecordIn(extents, segmentId)) {
+          continue;
+        }
+      } finally {
+        indexLock.readLock().unlock();
+      }
+      // Под блокировкой записи сессию никто не дополняет, так что прочитанное - все ее данные
+      byte[] data = read(sessionId);
+      if (data != null) {
+        batch.put(sessionId, data);
+        bytes += data.length;
+      }
+    }
+    write(batch, TYPE_FULL);
+    return i;
+  }
+
+  private static boolean hasRecordIn(Extents extents, int segmentId) {
+    for (int i = 0; i < extents.count; i++) {
+      if (segmentOf(extents.refs[i]) == segmentId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tombstone'ы сегмента нужны, пока есть более старые сегменты с данными удаленной сессии. Если
+   * сессия с тех пор создана заново, она переписывается записью FULL, которая и так заменяет все
+   * старое; иначе tombstone копируется в текущий сегмент.
+   */
+  private void keepTombstones(Segment victim) throws IOException {
+    if (segments.firstKey() >= victim.id) {
+      return;
+    }
+
+    Set<String> deleted = new HashSet<>();
+    scanAll(
+        victim,
+        (type, sessionId, lastWrite, offset, length, body) -> {
+          if (type == TYPE_DELETE) {
+            deleted.add(sessionId);
+          }
+        });
+    Map<String, byte[]> recreated = new HashMap<>();
+    Map<String, byte[]> tombstones = new HashMap<>();
+    for (String sessionId : deleted) {
+      byte[] data = read(sessionId);
+      if (data != null) {
+        recreated.put(sessionId, data);
+      } else {
+        tombstones.put(sessionId, new byte[0]);
+      }
+    }
+    write(recreated, TYPE_FULL);
+    write(tombstones, TYPE_DELETE);
+  }
+
+  /** Пишет записи одного типа в текущий сегмент, синхронизирует его и обновляет индекс */
+  private void write(Map<String, byte[]> batch, byte type) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    lockExclusive();
+    try {
+      long now = System.currentTimeMillis();
+      List<byte[]> ids = new ArrayList<>(batch.size());
+      int total = 0;
+      for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+        byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        ids.add(id);
+        total += HEADER_BYTES + id.length + entry.getValue().length;
+      }
+      if (active.size > 0 && active.size + total > maxSegmentBytes) {
+        rotate();
+      }
+
+      // Прежнее содержимое заменяемых и удаляемых сессий для сводки
+      byte[][] removed = new byte[batch.size()][];
+      if (tracker != null && type != TYPE_APPEND) {
+        int i = 0;
+        for (String sessionId : batch.keySet()) {
+          removed[i++] = read(sessionId);
+        }
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(total);
+      CRC32C crc = new CRC32C();
+      int[] lengths = new int[batch.size()];
+      int n = 0;
+      for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+        byte[] id = ids.get(n);
+        byte[] payload = entry.getValue();
+        int start = buffer.position();
+        int length = HEADER_BYTES + id.length + payload.length;
+        buffer.putInt(length).putInt(0).put(type).putLong(now).putShort((short) id.length);
+        buffer.put(id).put(payload);
+        crc.reset();
+        crc.update(buffer.array(), start + 8, length - 8);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        lengths[n++] = length;
+      }
+      buffer.flip();
+
+      long base = active.size;
+      long position = base;
+      while (buffer.hasRemaining()) {
+        position += active.channel.write(buffer, position);
+      }
+      active.channel.force(false);
+      publish(active.id, position);
+
+      indexLock.writeLock().lock();
+      try {
+        active.size = position;
+        long offset = base;
+        n = 0;
+        for (String sessionId : batch.keySet()) {
+          apply(type, sessionId, now, ref(active.id, offset), lengths[n]);
+          offset += lengths[n++];
+        }
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+      if (tracker != null) {
+        n = 0;
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+          tracker.applied(entry.getKey(), removed[n++], entry.getValue());
+        }
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  /** Применяет запись к индексу; вызывается под блокировкой индекса на запись или при открытии */
+  private void apply(byte type, String sessionId, long lastWrite, long ref, int length) {
+    Segment segment = segments.get(segmentOf(ref));
+    if (type == TYPE_DELETE) {
+      release(index.remove(sessionId));
+      return;
+    }
+    long origin = ref;
+    if (type == TYPE_FULL) {
+      Extents replaced = index.remove(sessionId);
+      release(replaced);
+      // Сжатие переписывает те же данные: для чтения частями это та же версия сессии
+      if (replaced != null) {
+        origin = replaced.origin;
+      }
+    }
+    Extents extents = index.computeIfAbsent(sessionId, k -> new Extents());
+    if (extents.count == 0) {
+      extents.origin = origin;
+    }
+    if (extents.count == extents.refs.length) {
+      extents.refs = Arrays.copyOf(extents.refs, extents.count * 2);
+      extents.lengths = Arrays.copyOf(extents.lengths, extents.count * 2);
+    }
+    extents.refs[extents.count] = ref;
+    extents.lengths[extents.count] = length;
+    extents.count++;
+    extents.payloadBytes +=
+        length - HEADER_BYTES - sessionId.getBytes(StandardCharsets.UTF_8).length;
+    extents.lastWrite = lastWrite;
+    segment.liveBytes += length;
+  }
+
+  /** Записи сессии больше не живые */
+  private void release(Extents extents) {
+    if (extents == null) {
+      return;
+    }
+    for (int i = 0; i < extents.count; i++) {
+      Segment segment = segments.get(segmentOf(extents.refs[i]));
+      if (segment != null) {
+        segment.liveBytes -= extents.lengths[i];
+      }
+    }
+  }
+
+  /** Начинает новый сегмент; вызывается под файловой блокировкой */
+  private void rotate() throws IOException {
+    Segment next = openSegment(active == null ? 1 : active.id + 1, true);
+    indexLock.writeLock().lock();
+    try {
+      segments.put(next.id, next);
+      active = next;
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+    publish(next.id, next.size);
+  }
+
+  private Path segmentPath(int id) {
+    return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+
+  /** Открывает сегмент; чужой сегмент (create = false) может быть уже удален - тогда null */
+  private Segment openSegment(int id, boolean create) throws IOException {
+    Path path = segmentPath(id);
+    try {
+      FileChannel channel =
+          create
+              ? FileChannel.open(
+                  path,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.READ,
+                  StandardOpenOption.WRITE)
+              : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      return new Segment(id, path, channel, channel.size());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Читает сегменты по порядку и строит индекс; оборванный хвост последнего сегмента отрезается.
+   * Вызывается под файловой блокировкой, поэтому недописанных чужих записей быть не может.
+   */
+  private void recover() throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : files) {
+        String name = path.getFileName().toString();
+        try {
+          ids.add(
+              Integer.parseInt(
+                  name.substring(
+                      SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          Log.warn("Ignoring unexpected file", "file", path);
+        }
+      }
+    }
+    ids.sort(null);
+
+    indexLock.writeLock().lock();
+    try {
+      for (Segment segment : segments.values()) {
+        segment.channel.close();
+      }
+      segments.clear();
+      index.clear();
+      active = null;
+      for (int id : ids) {
+        segments.put(id, openSegment(id, true));
+      }
+      long tracked = recoverTracker();
+      for (int id : ids) {
+        Segment segment = segments.get(id);
+        long valid =
+            scanAll(
+                segment,
+                (type, sessionId, lastWrite, offset, length, body) -> {
+                  long ref = ref(id, offset);
+                  if (ref < tracked) {
+                    apply(type, sessionId, lastWrite, ref, length);
+                  } else {
+                    applyTracked(type, sessionId, lastWrite, ref, length, body);
+                  }
+                });
+        if (valid < segment.size) {
+          if (id == ids.get(ids.size() - 1)) {
+            // Оборвана последняя запись: писатель упал до публикации, ее никто не прочитал
+            Log.warn("Truncating damaged segment tail", "file", segment.path, "offset", valid);
+            segment.channel.truncate(valid);
+            segment.size = valid;
+          } else {
+            quarantine(segment, valid);
+          }
+        }
+        active = segment;
+      }
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+    if (active == null || active.size >= maxSegmentBytes) {
+      rotate();
+    } else {
+      publish(active.id, active.size);
+    }
+  }
+
+  /**
+   * Заполненный сегмент не может быть оборван: его хвост после offset не читается из-за порчи
+   * файла. Файл не обрезается - записи до порчи остаются в работе, а копия файла для разбора
+   * сохраняется рядом с суффиксом .damaged
+   */
+  private static void quarantine(Segment segment, long offset) throws IOException {
+    Path copy = segment.path.resolveSibling(segment.path.getFileName() + ".damaged");
+    if (!Files.exists(copy)) {
+      Files.copy(segment.path, copy);
+    }
+    Log.error("Ignoring unreadable tail of sealed segment", "copy", copy, "offset", offset);
+  }
+
+  /**
+   * Передает {@link Tracker} сохраненное состояние, если записи до его позиции с тех пор не
+   * менялись: сегменты до нее те же и не стали короче. Возвращает позицию, с которой записи нужно
+   * передать сводке, - Long.MAX_VALUE без сводки
+   */
+  private long recoverTracker() throws IOException {
+    if (tracker == null) {
+      return Long.MAX_VALUE;
+    }
+    Path file = directory.resolve(CHECKPOINT_FILE);
+    if (Files.exists(file)) {
+      try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+        if (in.readInt() == CHECKPOINT_FORMAT) {
+          long position = in.readLong();
+          Set<Integer> saved = new HashSet<>();
+          for (int i = in.readInt(); i > 0; i--) {
+            saved.add(in.readInt());
+          }
+          byte[] state = new byte[in.readInt()];
+          in.readFully(state);
+
+          Segment last = segments.get(segmentOf(position));
+          if (last != null
+              && last.size >= offsetOf(position)
+              && saved.equals(segments.headMap(last.id, true).keySet())) {
+            tracker.recovering(state);
+            return position;
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        Log.warn("Ignoring unreadable checkpoint", "file", file, "error", e.getMessage());
+      }
+    }
+    tracker.recovering(null);
+    return 0;
+  }
+
+  /**
+   * Применяет запись к индексу и передает ее {@link Tracker}; вызывается под блокировкой индекса на
+   * запись или при открытии
+   */
+  private void applyTracked(
+      byte type, String sessionId, long lastWrite, long ref, int length, byte[] body)
+      throws IOException {
+    byte[] removed = type == TYPE_APPEND ? null : read(sessionId);
+    apply(type, sessionId, lastWrite, ref, length);
+    tracker.applied(sessionId, removed, payloadOf(sessionId, body));
+  }
+
+  /** Данные записи без id сессии */
+  private static byte[] payloadOf(String sessionId, byte[] body) {
+    return Arrays.copyOfRange(body, sessionId.getBytes(StandardCharsets.UTF_8).length, body.length);
+  }
+
+  /**
+   * Дочитывает записи, которые другие процессы зафиксировали в управляющем блоке. Под файловой
+   * блокировкой (locked) блок читается напрямую, иначе - пока он не перестанет меняться.
+   */
+  private void catchUp(boolean locked) throws IOException {
+    long seq;
+    int activeId;
+    long committed;
+    while (true) {
+      seq = (long) CONTROL_LONGS.getVolatile(control, CONTROL_SEQ);
+      activeId = (int) (long) CONTROL_LONGS.getVolatile(control, CONTROL_ACTIVE);
+      committed = (long) CONTROL_LONGS.getVolatile(control, CONTROL_COMMITTED);
+      if (locked) {
+        break;
+      }
+      if ((seq & 1) == 0 && (long) CONTROL_LONGS.getVolatile(control, CONTROL_SEQ) == seq) {
+        break;
+      }
+      // Другой процесс меняет блок прямо сейчас; если он упал на середине, попробуем позже
+      if ((seq & 1) != 0) {
+        return;
+      }
+    }
+    if ((long) CONTROL_LONGS.getVolatile(control, CONTROL_MAGIC) != MAGIC
+        || activeId < active.id
+        || (activeId == active.id && committed == active.size)) {
+      seenSeq = seq;
+      return;
+    }
+
+    for (int id = active.id; id <= activeId; id++) {
+      Segment segment = segments.get(id);
+      if (segment == null) {
+        segment = openSegment(id, false);
+        if (segment == null) {
+          // Сегмент успели сжать и удалить раньше, чем мы его прочитали: о его tombstone'ах
+          // можно не узнать, поэтому индекс строится заново под файловой блокировкой
+          if (fileLock == null) {
+            fileLock = controlChannel.lock();
+          }
+          rebuild();
+          seenSeq = seq;
+          return;
+        }
+        segment.size = 0;
+        indexLock.writeLock().lock();
+        try {
+          segments.put(id, segment);
+        } finally {
+          indexLock.writeLock().unlock();
+        }
+      }
+      long end = id == activeId ? committed : segment.channel.size();
+      if (end > segment.size) {
+        readForeign(segment, end);
+      }
+    }
+    indexLock.writeLock().lock();
+    try {
+      active = segments.get(activeId);
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+    closeDeletedSegments();
+    seenSeq = seq;
+  }
+
+  /** Применяет чужие записи сегмента от прочитанного конца до end */
+  private void readForeign(Segment segment, long end) throws IOException {
+    segment.size =
+        scan(
+            segment,
+            segment.size,
+            end,
+            (type, sessionId, lastWrite, offset, length, body) -> {
+              Listener current = listener;
+              byte[] removed =
+                  type != TYPE_APPEND && (current != null || tracker != null)
+                      ? read(sessionId)
+                      : null;
+              byte[] payload = payloadOf(sessionId, body);
+              indexLock.writeLock().lock();
+              try {
+                apply(type, sessionId, lastWrite, ref(segment.id, offset), length);
+              } finally {
+                indexLock.writeLock().unlock();
+              }
+              if (tracker != null) {
+                tracker.applied(sessionId, removed, payload);
+              }
+              changedSessions.add(sessionId);
+              if (type == TYPE_DELETE && removed != null && current != null) {
+                current.deleted(sessionId, removed);
+              }
+              boolean update = !invalidatedSessions.contains(sessionId);
+              if (type != TYPE_APPEND
+                  || current == null
+                  || !current.appended(sessionId, payload, update)
+                  || !update) {
+                invalidatedSessions.add(sessionId);
+              }
+            });
+  }
+
+  /** Строит индекс заново по всем сегментам; все сессии считаются измененными */
+  private void rebuild() throws IOException {
+    Log.warn("Rebuilding segment index", "directory", directory);
+    changedSessions.addAll(index.keySet());
+    invalidatedSessions.addAll(index.keySet());
+    recover();
+    changedSessions.addAll(index.keySet());
+    invalidatedSessions.addAll(index.keySet());
+  }
+
+  /** Закрывает сегменты без живых записей, которые удалил другой процесс */
+  private void closeDeletedSegments() throws IOException {
+    List<Segment> deleted = new ArrayList<>();
+    for (Segment segment : segments.values()) {
+      if (segment != active && segment.liveBytes <= 0 && !Files.exists(segment.path)) {
+        deleted.add(segment);
+      }
+    }
+    if (deleted.isEmpty()) {
+      return;
+    }
+    indexLock.writeLock().lock();
+    try {
+      for (Segment segment : deleted) {
+        segments.remove(segment.id);
+      }
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+    for (Segment segment : deleted) {
+      segment.channel.close();
+    }
+  }
+
+  /** Публикует конец зафиксированных данных для других процессов; под файловой блокировкой */
+  private void publish(int activeId, long committed) {
+    long seq = (long) CONTROL_LONGS.getVolatile(control, CONTROL_SEQ);
+    // Нечетный счетчик - признак изменения; после упавшего процесса он может остаться нечетным
+    long odd = seq | 1;
+    CONTROL_LONGS.setVolatile(control, CONTROL_SEQ, odd);
+    CONTROL_LONGS.setVolatile(control, CONTROL_MAGIC, MAGIC);
+    CONTROL_LONGS.setVolatile(control, CONTROL_ACTIVE, (long) activeId);
+    CONTROL_LONGS.setVolatile(control, CONTROL_COMMITTED, committed);
+    CONTROL_LONGS.setVolatile(control, CONTROL_SEQ, odd + 1);
+    seenSeq = odd + 1;
+  }
+
+  /** Блокировка записи этого процесса и файловая блокировка остальных; чужие записи дочитываются */
+  private void lockExclusive() throws IOException {
+    writeLock.lock();
+    if (writeLock.getHoldCount() > 1) {
+      return;
+    }
+    try {
+      fileLock = controlChannel.lock();
+      catchUp(true);
+    } catch (IOException | RuntimeException e) {
+      unlock();
+      throw e;
+    }
+  }
+
+  /** Снимает блокировки; чужие изменения, прочитанные под ними, ставятся в очередь слушателю */
+  private void unlock() {
+    if (writeLock.getHoldCount() == 1) {
+      if (fileLock != null) {
+        try {
+          fileLock.release();
+        } catch (IOException e) {
+          Log.warn("Could not release segment lock", "error", e.getMessage());
+        }
+        fileLock = null;
+      }
+      if (!changedSessions.isEmpty()) {
+        synchronized (notifications) {
+          notifications.add(new Notification(changedSessions, invalidatedSessions));
+        }
+        changedSessions = new HashSet<>();
+        invalidatedSessions = new HashSet<>();
+      }
+    }
+    writeLock.unlock();
+  }
+
+  /** Передает слушателю накопленные изменения; вызывается без блокировок */
+  private void notifyListener() {
+    List<Notification> ready;
+    synchronized (notifications) {
+      if (notifications.isEmpty()) {
+        return;
+      }
+      ready = new ArrayList<>(notifications);
+      notifications.clear();
+    }
+    Listener current = listener;
+    if (current != null) {
+      for (Notification notification : ready) {
+        current.changed(notification.changed(), notification.invalidated());
+      }
+    }
+  }
+
+  /** Следит за управляющим блоком и дочитывает чужие записи */
+  private void runTailer() {
+    long interval = Long.getLong("sessions.shared.pollMs", 10L);
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if ((long) CONTROL_LONGS.getVolatile(control, CONTROL_SEQ) != seenSeq) {
+        writeLock.lock();
+        try {
+          catchUp(false);
+        } catch (IOException | RuntimeException e) {
+          Log.error("Error reading shared segments", "error", e);
+        } finally {
+          unlock();
+        }
+      }
+      try {
+        notifyListener();
+      } catch (RuntimeException e) {
+        Log.error("Error applying shared changes", "error", e);
+      }
+    }
+  }
+
+  /** Обработчик записи при чтении сегмента; body - id и данные */
+  private interface RecordVisitor {
+    void visit(byte type, String sessionId, long lastWrite, long offset, int length, byte[] body)
+        throws IOException;
+  }
+
+  /** Читает записи сегмента в [from, end) по порядку; возвращает конец последней целой записи */
+  private static long scan(Segment segment, long from, long end, RecordVisitor visitor)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    CRC32C crc = new CRC32C();
+    long offset = from;
+    while (offset + HEADER_BYTES <= end) {
+      header.clear();
+      readFully(segment.channel, header, offset);
+      int length = header.getInt(0);
+      int idLength = header.getShort(HEADER_BYTES - 2) & 0xffff;
+      if (length < HEADER_BYTES + idLength || offset + length > end) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length - HEADER_BYTES);
+      readFully(segment.channel, body, offset + HEADER_BYTES);
+
+      crc.reset();
+      crc.update(header.array(), 8, HEADER_BYTES - 8);
+      crc.update(body.array(), 0, body.capacity());
+      if ((int) crc.getValue() != header.getInt(4)) {
+        break;
+      }
+      byte type = header.get(8);
+      String sessionId = new String(body.array(), 0, idLength, StandardCharsets.UTF_8);
+      visitor.visit(type, sessionId, header.getLong(9), offset, length, body.array());
+      offset += length;
+    }
+    return offset;
+  }
+
+  /**
+   * Читает все записи сегмента. Запись с неверной CRC, длина которой не выходит за конец файла,
+   * пропускается: по длине видно, где начинается следующая. Возвращает начало хвоста, который
+   * прочитать нельзя, или размер сегмента
+   */
+  private static long scanAll(Segment segment, RecordVisitor visitor) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    long offset = 0;
+    while (true) {
+      offset = scan(segment, offset, segment.size, visitor);
+      if (offset + HEADER_BYTES > segment.size) {
+        return offset;
+      }
+      header.clear();
+      readFully(segment.channel, header, offset);
+      int length = header.getInt(0);
+      int idLength = header.getShort(HEADER_BYTES - 2) & 0xffff;
+      if (length < HEADER_BYTES + idLength || offset + length > segment.size) {
+        return offset;
+      }
+      Log.error("Skipping damaged segment record", "file", segment.path, "offset", offset);
+      offset += length;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position() - start);
+      if (read < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+    }
+  }
+
+  private static long ref(int segment, long offset) {
+    return (long) segment << OFFSET_BITS | offset;
+  }
+
+  private static int segmentOf(long ref) {
+    return (int) (ref >>> OFFSET_BITS);
+  }
+
+  private static long offsetOf(long ref) {
+    return ref & OFFSET_MASK;
+  }
+}
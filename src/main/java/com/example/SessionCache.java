@@ -0,0 +1,284 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Ограниченный кэш сессий в памяти с вытеснением давно не использованных (приближенный LRU) по
+ * числу сессий, суммарному числу записей и времени простоя. Вытесненная сессия помечается как
+ * выведенная из оборота, после чего сообщается слушателю, который отвечает за сброс ее журнала на
+ * диск.
+ *
+ * <p>Попадание в кэш не берет блокировок: это чтение из {@link ConcurrentHashMap} и запись времени
+ * последнего доступа. Жертва вытеснения выбирается как самая давно использованная из небольшой
+ * выборки, которую дает итератор, циклически обходящий кэш.
+ */
+public class SessionCache {
+
+  /** Сколько сессий просматривается при выборе жертвы */
+  private static final int EVICTION_SAMPLE = 16;
+
+  private final int maxSessions;
+  private final long maxEntries;
+  private final long idleTtlMillis;
+  private final Consumer<String> evictionListener;
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final LongAdder cachedEntries = new LongAdder();
+
+  /** Блокировка выбора жертвы; нужна только вытесняющим потокам */
+  private final Object evictionLock = new Object();
+
+  private Iterator<Map.Entry<String, Entry>> clockHand;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /** Статистика кэша */
+  public record Stats(
+      long hits, long misses, long evictions, int sessions, long entries, long footprintBytes) {}
+
+  /** Сессия в кэше: число записей и время последнего доступа */
+  public record CachedSession(String sessionId, int size, long lastAccess) {}
+
+  private static class Entry {
+    final ColumnarSession session;
+    volatile long lastAccess;
+
+    Entry(ColumnarSession session, long lastAccess) {
+      this.session = session;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  public SessionCache(
+      int maxSessions, long maxEntries, long idleTtlMillis, Consumer<String> evictionListener) {
+    this.maxSessions = maxSessions;
+    this.maxEntries = maxEntries;
+    this.idleTtlMillis = idleTtlMillis;
+    this.evictionListener = evictionListener;
+
+    Thread sweeper = new Thread(this::runSweeper, "session-cache-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Возвращает сессию из кэша, а при промахе - загруженную loader'ом. Если loader вернул null,
+   * сессия создается пустой только при create = true, иначе возвращается null и запись в кэше не
+   * появляется. Загрузка и вставка атомарны для каждого sessionId, поэтому в кэш не может попасть
+   * копия, устаревшая относительно уже вытесненной.
+   */
+  public ColumnarSession get(
+      String sessionId, Function<String, ColumnarSession> loader, boolean create) {
+    Entry entry = entries.get(sessionId);
+    if (entry != null) {
+      touch(entry);
+      hits.increment();
+      return entry.session;
+    }
+    misses.increment();
+
+    entry =
+        entries.computeIfAbsent(
+            sessionId,
+            k -> {
+              ColumnarSession loaded = loader.apply(k);
+              if (loaded == null) {
+                if (!create) {
+                  return null;
+                }
+                loaded = new ColumnarSession();
+              }
+              cachedEntries.add(loaded.size());
+              return new Entry(loaded, System.currentTimeMillis());
+            });
+    if (entry == null) {
+      return null;
+    }
+    evictIfNeeded();
+    return entry.session;
+  }
+
+  /**
+   * Сессия из кэша или null; ничего не загружает, не учитывается в статистике и не ждет загрузки,
+   * которая идет прямо сейчас
+   */
+  public ColumnarSession peek(String sessionId) {
+    Entry entry = entries.get(sessionId);
+    return entry == null ? null : entry.session;
+  }
+
+  /**
+   * Загружает сессию заранее, если ее еще нет в кэше и в нем есть место. Не считается ни
+   * попаданием, ни промахом и никого не вытесняет. Возвращает true, если сессия загружена.
+   */
+  public boolean preload(String sessionId, Function<String, ColumnarSession> loader) {
+    if (entries.containsKey(sessionId)
+        || entries.size() >= maxSessions
+        || cachedEntries.sum() >= maxEntries) {
+      return false;
+    }
+    boolean[] loaded = new boolean[1];
+    entries.computeIfAbsent(
+        sessionId,
+        k -> {
+          ColumnarSession session = loader.apply(k);
+          if (session == null) {
+            return null;
+          }
+          cachedEntries.add(session.size());
+          loaded[0] = true;
+          return new Entry(session, System.currentTimeMillis());
+        });
+    return loaded[0];
+  }
+
+  /** Сессии в кэше с размером и временем последнего доступа; для индекса сессий */
+  public List<CachedSession> sessions() {
+    List<CachedSession> sessions = new ArrayList<>(entries.size());
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      sessions.add(
+          new CachedSession(
+              entry.getKey(), entry.getValue().session.size(), entry.getValue().lastAccess));
+    }
+    return sessions;
+  }
+
+  /** Учитывает записи, добавленные в закэшированную сессию, и вытесняет лишнее */
+  public void onAppend(int count) {
+    cachedEntries.add(count);
+    evictIfNeeded();
+  }
+
+  /** Удаляет сессию из кэша без уведомления слушателя; возвращает true, если она там была */
+  public boolean remove(String sessionId) {
+    while (true) {
+      Entry entry = entries.get(sessionId);
+      if (entry == null) {
+        return false;
+      }
+      // Как при вытеснении: сначала выводим из оборота, чтобы в копию ничего не дописали после
+      // того, как следующий запрос загрузит сессию заново
+      retire(entry);
+      if (entries.remove(sessionId, entry)) {
+        return true;
+      }
+    }
+  }
+
+  /** Снимок статистики; проходит по всем сессиям, поэтому не предназначен для горячего пути */
+  public Stats stats() {
+    long footprint = 0;
+    int sessions = 0;
+    for (Entry entry : entries.values()) {
+      footprint += entry.session.footprintBytes();
+      sessions++;
+    }
+    return new Stats(
+        hits.sum(), misses.sum(), evictions.sum(), sessions, cachedEntries.sum(), footprint);
+  }
+
+  private static void touch(Entry entry) {
+    long now = System.currentTimeMillis();
+    // Не пишем в общую строку кэша лишний раз, если время не изменилось
+    if (entry.lastAccess != now) {
+      entry.lastAccess = now;
+    }
+  }
+
+  private boolean overBudget() {
+    int size = entries.size();
+    return size > 1 && (size > maxSessions || cachedEntries.sum() > maxEntries);
+  }
+
+  /** Вытесняет давно использованные сессии, пока кэш не уложится в ограничения */
+  private void evictIfNeeded() {
+    while (overBudget()) {
+      String evicted;
+      synchronized (evictionLock) {
+        if (!overBudget()) {
+          return;
+        }
+        evicted = evictOldestOfSample();
+      }
+      if (evicted != null) {
+        evictionListener.accept(evicted);
+      }
+    }
+  }
+
+  /** Выбирает из выборки самую давно использованную сессию и вытесняет ее */
+  private String evictOldestOfSample() {
+    Map.Entry<String, Entry> victim = null;
+    for (int i = 0; i < EVICTION_SAMPLE; i++) {
+      if (clockHand == null || !clockHand.hasNext()) {
+        clockHand = entries.entrySet().iterator();
+        if (!clockHand.hasNext()) {
+          break;
+        }
+      }
+      Map.Entry<String, Entry> candidate = clockHand.next();
+      if (victim == null || candidate.getValue().lastAccess < victim.getValue().lastAccess) {
+        victim = candidate;
+      }
+    }
+    if (victim == null) {
+      return null;
+    }
+    return evict(victim.getKey(), victim.getValue()) ? victim.getKey() : null;
+  }
+
+  /**
+   * Выводит сессию из оборота, затем удаляет ее из кэша. Пока сессия выведена, но еще лежит в кэше,
+   * писатели повторяют попытку и затем загружают ее заново из файла.
+   */
+  private boolean evict(String sessionId, Entry entry) {
+    retire(entry);
+    if (!entries.remove(sessionId, entry)) {
+      return false;
+    }
+    evictions.increment();
+    return true;
+  }
+
+  private void retire(Entry entry) {
+    synchronized (entry.session) {
+      if (entry.session.isRetired()) {
+        return;
+      }
+      entry.session.retire();
+      cachedEntries.add(-entry.session.size());
+    }
+  }
+
+  /** Вытесняет сессии, простаивающие дольше idleTtlMillis */
+  private void evictIdle() {
+    long deadline = System.currentTimeMillis() - idleTtlMillis;
+    for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+      if (candidate.getValue().lastAccess <= deadline
+          && evict(candidate.getKey(), candidate.getValue())) {
+        evictionListener.accept(candidate.getKey());
+      }
+    }
+  }
+
+  private void runSweeper() {
+    long period = Math.max(1000, idleTtlMillis / 4);
+    while (true) {
+      try {
+        Thread.sleep(period);
+      } catch (InterruptedException e) {
+        return;
+      }
+      evictIdle();
+    }
+  }
+}
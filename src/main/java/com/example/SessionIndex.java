@@ -0,0 +1,144 @@
+package com.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Индекс сессий на диске: число записей и время последнего доступа для каждой сессии. По нему при
+ * запуске выбираются самые востребованные сессии для прогрева. Строка файла: {@code
+ * id|записей|последний доступ в мс эпохи}.
+ *
+ * <p>Индекс приблизительный: он обновляется сведениями о сессиях в памяти раз в несколько секунд и
+ * при остановке, а сессии, которых больше нет в хранилище, из него удаляются.
+ */
+public class SessionIndex {
+
+  /** Средняя длина строки сессии; по ней оценивается число записей, если индекса нет */
+  private static final int BYTES_PER_LINE = 64;
+
+  /** Сессия в индексе */
+  public record Item(String sessionId, int size, long lastAccess) {}
+
+  private final Path file;
+  private final SegmentStore store;
+
+  private final Map<String, Item> items = new HashMap<>();
+  private boolean loaded;
+
+  public SessionIndex(Path directory, String fileName, SegmentStore store) {
+    this.file = directory.resolve(fileName);
+    this.store = store;
+  }
+
+  /**
+   * Самые недавно использованные сессии, не больше limit штук и maxEntries записей в сумме. Без
+   * файла индекса порядок берется по времени последней записи сессий в хранилище.
+   */
+  public synchronized List<Item> hottest(int limit, long maxEntries) {
+    loadIfNeeded();
+    List<Item> sorted = new ArrayList<>(items.values());
+    sorted.sort(Comparator.comparingLong(Item::lastAccess).reversed());
+
+    List<Item> hot = new ArrayList<>();
+    long entries = 0;
+    for (Item item : sorted) {
+      if (hot.size() >= limit) {
+        break;
+      }
+      if (entries + item.size() > maxEntries) {
+        continue;
+      }
+      entries += item.size();
+      hot.add(item);
+    }
+    return hot;
+  }
+
+  /** Обновляет индекс сведениями о сессиях в памяти, удаляет очищенные сессии и пишет файл */
+  public synchronized void save(Collection<SessionCache.CachedSession> cached) throws IOException {
+    loadIfNeeded();
+    for (SessionCache.CachedSession session : cached) {
+      if (isValidId(session.sessionId())) {
+        items.put(
+            session.sessionId(),
+            new Item(session.sessionId(), session.size(), session.lastAccess()));
+      }
+    }
+    items.values().removeIf(item -> !store.contains(item.sessionId()));
+
+    // Файл заменяется целиком, чтобы остановка на середине записи не испортила индекс; у каждого
+    // процесса свой временный файл
+    Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+      for (Item item : items.values()) {
+        writer.write(item.sessionId() + "|" + item.size() + "|" + item.lastAccess() + "\n");
+      }
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void loadIfNeeded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    try {
+      if (Files.exists(file)) {
+        readIndex();
+      } else {
+        scanStore();
+      }
+    } catch (IOException e) {
+      Log.warn("Could not read session index", "file", file, "error", e.getMessage());
+    }
+  }
+
+  private void readIndex() throws IOException {
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      String[] parts = line.split("\\|");
+      if (parts.length != 3) {
+        continue;
+      }
+      try {
+        items.put(
+            parts[0], new Item(parts[0], Integer.parseInt(parts[1]), Long.parseLong(parts[2])));
+      } catch (NumberFormatException e) {
+        Log.warn("Invalid session index line", "line", line);
+      }
+    }
+  }
+
+  /** Индекса еще нет: время доступа - время последней записи, число записей - по объему данных */
+  private void scanStore() {
+    for (SegmentStore.StoredSession session : store.sessions()) {
+      items.put(
+          session.sessionId(),
+          new Item(
+              session.sessionId(),
+              (int) Math.min(Integer.MAX_VALUE, session.bytes() / BYTES_PER_LINE),
+              session.lastWrite()));
+    }
+  }
+
+  /** Идентификатор, который можно записать в строку индекса */
+  private static boolean isValidId(String sessionId) {
+    for (int i = 0; i < sessionId.length(); i++) {
+      char c = sessionId.charAt(i);
+      if (c == '|' || c < ' ') {
+        return false;
+      }
+    }
+    return !sessionId.isEmpty();
+  }
+}
@@ -0,0 +1,225 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Журнал сессий: новые результаты дописываются к сессии в {@link SegmentStore}. Записи копятся в
+ * памяти и сбрасываются фоновым потоком пачкой по таймеру или по превышению порога; пачка всех
+ * затронутых сессий пишется в сегмент одним fsync (group commit).
+ */
+public class SessionJournal {
+
+  private static final long FLUSH_INTERVAL_MS = Long.getLong("sessions.flushIntervalMs", 50L);
+  private static final int FLUSH_THRESHOLD_BYTES =
+      Integer.getInteger("sessions.flushThresholdBytes", 64 * 1024);
+
+  private final SegmentStore store;
+
+  /** Записи, ожидающие сброса, по sessionId */
+  private Map<String, ByteArrayOutputStream> pending = new HashMap<>();
+
+  /** Пачка, которая сейчас пишется на диск, или null */
+  private Map<String, ByteArrayOutputStream> writing;
+
+  private int pendingBytes;
+
+  private boolean flushRequested;
+
+  /** Номер последней поставленной в очередь записи */
+  private long appendedSeq;
+
+  /** Номер последней записи, гарантированно сброшенной на диск */
+  private long durableSeq;
+
+  /** Блокировка файловых операций: сброс пачки и удаление файла не должны пересекаться */
+  private final Object ioLock = new Object();
+
+  public SessionJournal(SegmentStore store) {
+    this.store = store;
+
+    Thread flusher = new Thread(this::runFlusher, "session-journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "session-journal-shutdown"));
+  }
+
+  /**
+   * Ставит строки в очередь на дозапись к сессии. Возвращает номер записи, который можно передать в
+   * {@link #awaitDurable(long)}.
+   */
+  public long append(String sessionId, String lines) {
+    byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+    return append(sessionId, bytes);
+  }
+
+  private synchronized long append(String sessionId, byte[] bytes) {
+    pending.computeIfAbsent(sessionId, k -> new ByteArrayOutputStream()).writeBytes(bytes);
+    pendingBytes += bytes.length;
+    appendedSeq++;
+
+    if (pendingBytes >= FLUSH_THRESHOLD_BYTES) {
+      notifyAll();
+    }
+    return appendedSeq;
+  }
+
+  /** Ждет, пока запись с указанным номером не окажется на диске */
+  public synchronized void awaitDurable(long seq) throws InterruptedException {
+    while (durableSeq < seq) {
+      wait();
+    }
+  }
+
+  /** Просит фоновый поток сбросить записи, не дожидаясь таймера */
+  public synchronized void requestFlush() {
+    flushRequested = true;
+    notifyAll();
+  }
+
+  /** Есть ли для сессии записи, еще не сброшенные на диск */
+  public synchronized boolean hasPending(String sessionId) {
+    return pending.containsKey(sessionId);
+  }
+
+  /** Есть ли у сессии записи, которые еще ждут сброса или пишутся прямо сейчас */
+  public synchronized boolean hasUnflushed(String sessionId) {
+    return pending.containsKey(sessionId) || (writing != null && writing.containsKey(sessionId));
+  }
+
+  /**
+   * Гарантирует, что все записи сессии уже в хранилище: дожидается сброса, который идет прямо
+   * сейчас, и сбрасывает оставшиеся, если они есть. Если у сессии нет ни ожидающих, ни пишущихся
+   * записей, возвращается сразу, не дожидаясь чужого сброса.
+   */
+  public void flushSession(String sessionId) {
+    if (!hasUnflushed(sessionId)) {
+      return;
+    }
+    synchronized (ioLock) {
+      if (hasPending(sessionId)) {
+        flush();
+      }
+    }
+  }
+
+  /** Сбрасывает на диск все накопленные записи */
+  public void flush() {
+    flushBatch();
+  }
+
+  /**
+   * Сбрасывает накопленные записи и возвращает false, если хранилище их не приняло. Тогда пачка
+   * возвращается в начало очереди, а ждущие в {@link #awaitDurable(long)} продолжают ждать: запись
+   * в хранилище без публикации не сдвигает конец сегмента, поэтому повтор не дублирует записи
+   */
+  private boolean flushBatch() {
+    synchronized (ioLock) {
+      Map<String, ByteArrayOutputStream> batch;
+      long batchSeq;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          durableSeq = appendedSeq;
+          notifyAll();
+          return true;
+        }
+        batch = pending;
+        batchSeq = appendedSeq;
+        pending = new HashMap<>();
+        pendingBytes = 0;
+        writing = batch;
+      }
+
+      Map<String, byte[]> data = new HashMap<>(batch.size() * 2);
+      for (Map.Entry<String, ByteArrayOutputStream> entry : batch.entrySet()) {
+        data.put(entry.getKey(), entry.getValue().toByteArray());
+      }
+      try {
+        store.append(data);
+      } catch (IOException e) {
+        Log.warn("Could not append sessions", "sessions", batch.size(), "error", e.getMessage());
+        requeue(batch);
+        return false;
+      }
+
+      synchronized (this) {
+        writing = null;
+        durableSeq = batchSeq;
+        notifyAll();
+      }
+      return true;
+    }
+  }
+
+  /** Возвращает несохраненную пачку перед записями, добавленными за время попытки */
+  private synchronized void requeue(Map<String, ByteArrayOutputStream> batch) {
+    for (Map.Entry<String, ByteArrayOutputStream> entry : pending.entrySet()) {
+      ByteArrayOutputStream earlier = batch.get(entry.getKey());
+      if (earlier != null) {
+        earlier.writeBytes(entry.getValue().toByteArray());
+      } else {
+        batch.put(entry.getKey(), entry.getValue());
+      }
+    }
+    pending = batch;
+    pendingBytes = 0;
+    for (ByteArrayOutputStream data : batch.values()) {
+      pendingBytes += data.size();
+    }
+    writing = null;
+  }
+
+  /**
+   * Удаляет сессию из хранилища вместе с еще не сброшенными записями и возвращает удаленные записи
+   * (сначала из хранилища, затем несброшенные) или null, если сессии не было
+   */
+  public byte[] delete(String sessionId) throws IOException {
+    synchronized (ioLock) {
+      ByteArrayOutputStream dropped;
+      synchronized (this) {
+        dropped = pending.remove(sessionId);
+        if (dropped != null) {
+          pendingBytes -= dropped.size();
+        }
+      }
+      byte[] stored = store.delete(sessionId);
+      if (dropped == null) {
+        return stored;
+      }
+      ByteArrayOutputStream deleted = new ByteArrayOutputStream();
+      if (stored != null) {
+        deleted.writeBytes(stored);
+      }
+      dropped.writeTo(deleted);
+      return deleted.toByteArray();
+    }
+  }
+
+  private void runFlusher() {
+    while (true) {
+      try {
+        synchronized (this) {
+          long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+          long remaining = FLUSH_INTERVAL_MS;
+          while (pendingBytes < FLUSH_THRESHOLD_BYTES && !flushRequested && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+          }
+          flushRequested = false;
+        }
+        if (!flushBatch()) {
+          // Хранилище не принимает записи (например, диск заполнен): повторяем по таймеру, а не
+          // сразу, даже если очередь выше порога
+          Thread.sleep(FLUSH_INTERVAL_MS);
+        }
+      } catch (InterruptedException e) {
+        flush();
+        return;
+      }
+    }
+  }
+}
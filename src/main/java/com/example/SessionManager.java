@@ -1,127 +1,677 @@
 package com.example;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /** Класс, реализующий управление и хранение сессий */
 public class SessionManager {
 
-  private static final Map<String, List<CalculationResult>> sessions = new ConcurrentHashMap<>();
-  private static final String SESSIONS_DIR = "sessions";
+  /** Каталог хранилища сессий */
+  private static final String SESSIONS_DIR = System.getProperty("sessions.dir", "sessions");
+
   private static final String SESSION_FILE_EXT = ".session";
 
+  /** Формат времени в журнале и в ответах */
+  private static final DateTimeFormatter TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  /** Ждать ли физической записи на диск перед ответом клиенту */
+  private static final boolean SYNC_COMMIT = Boolean.getBoolean("sessions.syncCommit");
+
+  /** Предел записей в кэше сессий */
+  private static final long MAX_CACHED_ENTRIES =
+      Long.getLong("sessions.cache.maxEntries", 5_000_000L);
+
+  /** Как часто сохранять индекс сессий и сводку хранилища */
+  private static final long INDEX_SAVE_INTERVAL_MS =
+      Long.getLong("sessions.index.saveIntervalMs", 60_000L);
+
+  /** Сводка по всем записям хранилища, которую ведет и сохраняет само хранилище */
+  private static final StoredStats storedStats = new StoredStats();
+
+  /** Сегменты с записями всех сессий */
+  private static final SegmentStore store = openStore();
+
+  private static final SessionJournal journal = new SessionJournal(store);
+
+  /** Сессии в памяти; вытесненные подгружаются из файла при следующем обращении */
+  private static final SessionCache sessions =
+      new SessionCache(
+          Integer.getInteger("sessions.cache.maxSessions", 10_000),
+          MAX_CACHED_ENTRIES,
+          Long.getLong("sessions.cache.idleTtlMs", 30 * 60 * 1000L),
+          // Записи вытесненной сессии уже в журнале: сбрасываем их, не дожидаясь таймера
+          sessionId -> journal.requestFlush());
+
+  /** Запросы, ожидающие новых записей */
+  private static final HistoryWatch watchers = new HistoryWatch();
+
+  /** Размеры и время доступа сессий, по которым при запуске выбираются сессии для прогрева */
+  private static final SessionIndex index =
+      new SessionIndex(Paths.get(SESSIONS_DIR), "sessions.index", store);
+
+  /** Записи других процессов, уже добавленные в сессии в памяти, но еще не учтенные кэшем */
+  private static final AtomicInteger foreignEntries = new AtomicInteger();
+
+  /** Сводка по всем сессиям; обновляется при добавлении и очистке, см. {@link #loadStats()} */
+  private static final ResultStats.Striped totals = new ResultStats.Striped();
+
   static {
-    try {
-      Path sessionsPath = Paths.get(SESSIONS_DIR);
-      if (!Files.exists(sessionsPath)) {
-        Files.createDirectories(sessionsPath);
-      }
+    store.setListener(
+        new SegmentStore.Listener() {
+          @Override
+          public boolean appended(String sessionId, byte[] data, boolean update) {
+            return appendForeign(sessionId, data, update);
+          }
 
-      //      loadAllSessions();
-    } catch (IOException e) {
-      System.err.println("Warning: Could not create sessions directory: " + e.getMessage());
-    }
+          @Override
+          public void deleted(String sessionId, byte[] data) {
+            totals.subtract(statsOf(data));
+          }
+
+          @Override
+          public void changed(Set<String> changed, Set<String> invalidated) {
+            applyForeignChanges(changed, invalidated);
+          }
+        });
+
+    Thread compactor = new Thread(SessionManager::runCompactor, "segment-compactor");
+    compactor.setDaemon(true);
+    compactor.start();
+
+    Thread indexWriter = new Thread(SessionManager::runIndexWriter, "session-index-writer");
+    indexWriter.setDaemon(true);
+    indexWriter.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(SessionManager::saveIndex, "session-index"));
+    Runtime.getRuntime()
+        .addShutdownHook(new Thread(SessionManager::saveCheckpoint, "segments-checkpoint"));
   }
 
+  /** Результат вычисления; timestamp - время проверки в миллисекундах эпохи */
   public record CalculationResult(
-      double x, double y, double r, boolean isInArea, String currentTime, double executionTime) {}
+      double x, double y, double r, boolean isInArea, long timestamp, double executionTime) {
+
+    /** Время проверки в формате yyyy-MM-dd HH:mm:ss, форматируется только при выводе */
+    public String currentTime() {
+      return formatTime(timestamp);
+    }
+  }
+
+  /**
+   * Страница истории: результаты от новых к старым, cursor - число записей в сессии (номер
+   * следующей записи), nextCursor - граница для запроса следующей, более старой страницы или -1
+   */
+  public record ResultPage(List<CalculationResult> results, int cursor, int nextCursor) {}
 
-  /** Получаем или создаем сессию */
-  public static List<CalculationResult> getSession(String sessionId) {
-    return sessions.computeIfAbsent(sessionId, k -> new ArrayList<>());
+  /** Получаем или создаем сессию; если ее нет в памяти - загружаем из файла */
+  public static ColumnarSession getSession(String sessionId) {
+    return sessions.get(sessionId, SessionManager::loadSessionFromFile, true);
   }
 
-  /** Добавляет новый результат вычисления в сессию */
-  public static void addResult(String sessionId, CalculationResult result) {
-    List<CalculationResult> session = getSession(sessionId);
-    session.add(result);
-    // Сохраняет в файл
-    saveSession(sessionId, session);
+  /** Получаем сессию из памяти или файла; несуществующая сессия не создается */
+  private static ColumnarSession findSession(String sessionId) {
+    return sessions.get(sessionId, SessionManager::loadSessionFromFile, false);
+  }
+
+  /** Добавляет новый результат вычисления в сессию и возвращает его номер */
+  public static int addResult(String sessionId, CalculationResult result) {
+    String line = formatResult(result);
+    while (true) {
+      ColumnarSession session = getSession(sessionId);
+      int index;
+      long seq;
+      // Запросы обрабатываются параллельно: порядок в памяти и в журнале должен совпадать
+      synchronized (session) {
+        // Сессию успели вытеснить из кэша или очистить - берем актуальную копию
+        if (session.isRetired()) {
+          Thread.onSpinWait();
+          continue;
+        }
+        index = session.append(result);
+        totals.add(result);
+        // Дописывает результат в журнал сессии
+        seq = journal.append(sessionId, line);
+      }
+      sessions.onAppend(1);
+      awaitCommit(seq);
+      watchers.changed(sessionId);
+      return index;
+    }
+  }
+
+  /**
+   * Добавляет пачку результатов в сессию одной записью журнала и возвращает номер первого из них
+   */
+  public static int addResults(String sessionId, List<CalculationResult> results) {
+    StringBuilder lines = new StringBuilder();
+    for (CalculationResult result : results) {
+      lines.append(formatResult(result));
+    }
+
+    while (true) {
+      ColumnarSession session = getSession(sessionId);
+      int index;
+      long seq;
+      synchronized (session) {
+        if (session.isRetired()) {
+          Thread.onSpinWait();
+          continue;
+        }
+        index = session.size();
+        if (results.isEmpty()) {
+          return index;
+        }
+        for (CalculationResult result : results) {
+          session.append(result);
+          totals.add(result);
+        }
+        seq = journal.append(sessionId, lines.toString());
+      }
+      sessions.onAppend(results.size());
+      awaitCommit(seq);
+      watchers.changed(sessionId);
+      return index;
+    }
   }
 
   /** Получает все результаты для сессии в обратном порядке (сначала самые новые) */
   public static List<CalculationResult> getResults(String sessionId) {
-    List<CalculationResult> session = sessions.get(sessionId);
+    return getResultsPage(sessionId, 0, Integer.MAX_VALUE, Integer.MAX_VALUE).results();
+  }
 
-    // Если нет в памяти - загружаем из файла
-    if (session == null) {
-      session = loadSessionFromFile(sessionId);
-      if (session != null) {
-        sessions.put(sessionId, session);
-      } else {
-        // если нет файла - создаем пустую сессию
-        session = new ArrayList<>();
-        sessions.put(sessionId, session);
+  /**
+   * Получает страницу результатов в обратном порядке: записи с номерами из [since, before), не
+   * более limit, начиная с самой новой. Копируется только сама страница.
+   */
+  public static ResultPage getResultsPage(String sessionId, int since, int before, int limit) {
+    ColumnarSession.Snapshot snapshot = getSnapshot(sessionId);
+    if (snapshot == null) {
+      return new ResultPage(List.of(), 0, -1);
+    }
+    return getResultsPage(snapshot, since, before, limit);
+  }
+
+  /**
+   * Снимок истории сессии или null, если сессии нет. Читается без блокировки и не мешает
+   * параллельным добавлениям; по нему можно узнать версию истории, ничего не копируя.
+   */
+  public static ColumnarSession.Snapshot getSnapshot(String sessionId) {
+    ColumnarSession session = findSession(sessionId);
+    return session == null ? null : session.snapshot();
+  }
+
+  /** Снимок сессии, если она уже в кэше; сессию из хранилища не загружает */
+  public static ColumnarSession.Snapshot cachedSnapshot(String sessionId) {
+    ColumnarSession session = sessions.peek(sessionId);
+    return session == null ? null : session.snapshot();
+  }
+
+  /**
+   * Передает записи сессии из хранилища по порядку, не загружая ее в кэш: данные читаются частями
+   * по bufferBytes, и в памяти держится только текущая часть. Если consumer вернул false, чтение
+   * прекращается и возвращается false
+   */
+  static boolean forEachStored(
+      String sessionId, int bufferBytes, Predicate<CalculationResult> consumer) throws IOException {
+    journal.flushSession(sessionId);
+    SegmentStore.Reader reader = store.reader(sessionId);
+    if (reader == null) {
+      return true;
+    }
+    LineParser parser = new LineParser();
+    byte[] buffer = new byte[bufferBytes];
+    int filled = 0;
+    while (true) {
+      int read = reader.read(buffer, filled);
+      if (read < 0) {
+        // Последняя строка без перевода строки
+        CalculationResult result = parser.parse(buffer, 0, filled);
+        return result == null || consumer.test(result);
       }
+      int end = filled + read;
+      int start = 0;
+      for (int i = filled; i < end; i++) {
+        if (buffer[i] == '\n') {
+          CalculationResult result = parser.parse(buffer, start, i);
+          if (result != null && !consumer.test(result)) {
+            return false;
+          }
+          start = i + 1;
+        }
+      }
+      // Начало строки, которая не поместилась, переносится в начало буфера
+      filled = end - start;
+      System.arraycopy(buffer, start, buffer, 0, filled);
+      if (filled == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+  }
+
+  /** Страница снимка истории, см. {@link #getResultsPage(String, int, int, int)} */
+  public static ResultPage getResultsPage(
+      ColumnarSession.Snapshot snapshot, int since, int before, int limit) {
+    int size = snapshot.size();
+    int high = Math.min(before, size);
+    int low = Math.max(since, high - Math.min(limit, high));
+    if (low >= high) {
+      return new ResultPage(List.of(), size, -1);
+    }
+
+    List<CalculationResult> page = new ArrayList<>(high - low);
+    for (int i = high - 1; i >= low; i--) {
+      page.add(snapshot.get(i));
+    }
+    return new ResultPage(page, size, low > Math.max(since, 0) ? low : -1);
+  }
+
+  /**
+   * Ставит запрос в ожидание изменений сессии: waiter будит добавление записей или очистка, а не
+   * позже чем через timeoutMillis - таймаут
+   */
+  public static void watch(String sessionId, HistoryWatch.Waiter waiter, long timeoutMillis) {
+    watchers.watch(sessionId, waiter, timeoutMillis);
+  }
+
+  /**
+   * Сводка по записям сессии или null, если сессии нет. Сводка сессии в памяти поддерживается при
+   * добавлении; у сессии, которой в памяти нет, записи читаются из хранилища и сводятся, не
+   * загружаясь в кэш, - это холодный путь, такой же по объему чтения, как загрузка истории
+   */
+  public static ResultStats sessionStats(String sessionId) {
+    ColumnarSession session = sessions.peek(sessionId);
+    if (session != null) {
+      return session.stats();
+    }
+    try {
+      byte[] data = readStored(sessionId);
+      return data == null ? null : statsOf(data);
+    } catch (IOException e) {
+      Log.warn("Could not read session", "sessionId", sessionId, "error", e.getMessage());
+      return null;
     }
+  }
+
+  /** Сводка по записям всех сессий */
+  public static ResultStats globalStats() {
+    return totals.sum();
+  }
+
+  /**
+   * Берет общую сводку у хранилища: оно ведет ее при каждой записи и сохраняет с позицией, так что
+   * при открытии разбирает только записи после последнего сохранения. Берется под блокировкой
+   * хранилища, поэтому каждая запись учитывается ровно один раз: либо здесь, либо при добавлении.
+   * Вызывается при запуске до обслуживания запросов
+   */
+  public static void loadStats() throws IOException {
+    store.exclusive(
+        () -> {
+          totals.reset();
+          totals.add(storedStats.snapshot());
+          return null;
+        });
+  }
+
+  /** Статистика сегментов хранилища */
+  public static SegmentStore.Stats storeStats() {
+    return store.stats();
+  }
+
+  /** Число запросов, ожидающих изменений */
+  public static int watcherCount() {
+    return watchers.size();
+  }
+
+  /** Средний объем памяти на одну запись по всем сессиям в памяти, в байтах */
+  public static double bytesPerEntry() {
+    SessionCache.Stats stats = sessions.stats();
+    return stats.entries() == 0
+        ? ColumnarSession.BYTES_PER_ENTRY
+        : (double) stats.footprintBytes() / stats.entries();
+  }
+
+  /** Статистика кэша сессий: попадания, промахи, вытеснения и объем */
+  public static SessionCache.Stats cacheStats() {
+    return sessions.stats();
+  }
+
+  /** Форматирует время в миллисекундах эпохи */
+  public static String formatTime(long timestamp) {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())
+        .format(TIME_FORMAT);
+  }
 
-    List<CalculationResult> reversed = new ArrayList<>(session);
-    Collections.reverse(reversed);
-    return reversed;
+  /** Разбирает время из журнала в миллисекунды эпохи */
+  private static long parseTime(String time) {
+    return LocalDateTime.parse(time, TIME_FORMAT)
+        .atZone(ZoneId.systemDefault())
+        .toInstant()
+        .toEpochMilli();
   }
 
-  /** Загружает сессию из файла по sessionId */
-  private static List<CalculationResult> loadSessionFromFile(String sessionId) {
+  /** Загружает сессию из хранилища по sessionId */
+  private static ColumnarSession loadSessionFromFile(String sessionId) {
     try {
-      Path sessionFile = Paths.get(SESSIONS_DIR, sessionId + SESSION_FILE_EXT);
-      return loadSession(sessionFile);
+      byte[] data = readStored(sessionId);
+      return data == null ? null : parseSession(data);
     } catch (Exception e) {
-      System.err.println("Warning: Could not load session " + sessionId + ": " + e.getMessage());
+      Log.warn("Could not load session", "sessionId", sessionId, "error", e.getMessage());
       return null;
     }
   }
 
-  /** Загружает все сессии из файлов */
-  private static void loadAllSessions() {
+  /** Записи сессии в хранилище, включая еще не сброшенные из журнала; null, если их нет */
+  static byte[] readStored(String sessionId) throws IOException {
+    // Несброшенные записи должны попасть в хранилище до чтения
+    journal.flushSession(sessionId);
+    return store.read(sessionId);
+  }
+
+  /**
+   * Прогревает в фоне самые востребованные по индексу сессии: не больше sessions.preload.count (0 -
+   * прогрев выключен) и не больше половины лимита записей кэша. Файлы читаются параллельно в
+   * отдельном {@link ForkJoinPool} на sessions.preload.threads потоков, а запросы обслуживаются
+   * сразу: сессию, до которой прогрев еще не дошел, загрузит первый запрос к ней.
+   */
+  public static void startPreload() {
+    int count = Integer.getInteger("sessions.preload.count", 0);
+    if (count <= 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    List<SessionIndex.Item> hot = index.hottest(count, MAX_CACHED_ENTRIES / 2);
+    ForkJoinPool pool =
+        new ForkJoinPool(
+            Integer.getInteger(
+                "sessions.preload.threads", Runtime.getRuntime().availableProcessors()));
+    pool.execute(
+        () -> {
+          LongAdder loaded = new LongAdder();
+          hot.parallelStream()
+              .forEach(
+                  item -> {
+                    if (sessions.preload(item.sessionId(), SessionManager::loadSessionFromFile)) {
+                      loaded.increment();
+                    }
+                  });
+          Log.info(
+              "Preloaded sessions",
+              "sessions",
+              loaded.sum(),
+              "ms",
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        });
+    pool.shutdown();
+  }
+
+  /** Сохраняет сводку хранилища вместе с его позицией */
+  private static void saveCheckpoint() {
     try {
-      Path sessionsPath = Paths.get(SESSIONS_DIR);
-      if (!Files.exists(sessionsPath)) {
-        return;
-      }
+      store.checkpoint();
+    } catch (IOException e) {
+      Log.warn("Could not save segments checkpoint", "error", e.getMessage());
+    }
+  }
 
-      Files.list(sessionsPath)
-          .filter(path -> path.toString().endsWith(SESSION_FILE_EXT))
-          .forEach(SessionManager::loadSession);
+  /** Сохраняет индекс сессий по содержимому кэша */
+  private static void saveIndex() {
+    try {
+      index.save(sessions.sessions());
     } catch (IOException e) {
-      System.err.println("Warning: Could not load sessions: " + e.getMessage());
+      Log.warn("Could not save session index", "error", e.getMessage());
     }
   }
 
-  /** Загружает сессию из файла по пути */
-  private static List<CalculationResult> loadSession(Path sessionFile) {
+  /**
+   * Открывает хранилище сессий и переносит в него файлы сессий прежнего формата, если они есть. Без
+   * хранилища сервер работать не может, поэтому ошибка здесь останавливает запуск.
+   */
+  private static SegmentStore openStore() {
     try {
-      if (!Files.exists(sessionFile)) {
-        return null;
+      Path directory = Paths.get(SESSIONS_DIR);
+      SegmentStore opened = SegmentStore.open(directory, storedStats);
+      SessionMigrator.migrate(directory, SESSION_FILE_EXT, opened);
+      return opened;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open session store", e);
+    }
+  }
+
+  /**
+   * Добавляет в сессию в памяти записи, которые дописал другой процесс. Вызывается под блокировкой
+   * записи хранилища, поэтому свои записи не могут оказаться в файле раньше этих. Если у сессии
+   * есть еще не сброшенные свои записи, порядок в памяти и в файле разошелся бы - тогда копия
+   * сбрасывается и при следующем обращении загружается заново в порядке файла. Общая сводка
+   * учитывает записи в любом случае.
+   */
+  private static boolean appendForeign(String sessionId, byte[] data, boolean update) {
+    ColumnarSession parsed = parseSession(data);
+    totals.add(parsed.stats());
+
+    // Сессии нет в памяти или ее как раз загружают: такую копию тоже надо сбросить
+    ColumnarSession session = update ? sessions.peek(sessionId) : null;
+    if (session == null) {
+      return false;
+    }
+    ColumnarSession.Snapshot added = parsed.snapshot();
+    synchronized (session) {
+      if (session.isRetired() || journal.hasUnflushed(sessionId)) {
+        return false;
+      }
+      for (int i = 0; i < added.size(); i++) {
+        session.append(added.get(i));
+      }
+    }
+    foreignEntries.addAndGet(added.size());
+    return true;
+  }
+
+  /** Сбрасывает устаревшие копии сессий и будит запросы, ждущие их изменений */
+  private static void applyForeignChanges(Set<String> changed, Set<String> invalidated) {
+    for (String sessionId : invalidated) {
+      sessions.remove(sessionId);
+    }
+    sessions.onAppend(foreignEntries.getAndSet(0));
+    for (String sessionId : changed) {
+      watchers.changed(sessionId);
+    }
+  }
+
+  private static void runCompactor() {
+    long interval = Long.getLong("sessions.compaction.intervalMs", 10_000L);
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        store.compact();
+      } catch (IOException | RuntimeException e) {
+        Log.error("Error compacting segments", "error", e);
+      }
+    }
+  }
+
+  private static void runIndexWriter() {
+    while (true) {
+      try {
+        Thread.sleep(INDEX_SAVE_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      saveIndex();
+      saveCheckpoint();
+    }
+  }
+
+  /**
+   * Разбирает содержимое файла сессии прямо из байтов, без строки на каждую строку файла и split.
+   * Строки, которые быстрый разбор не понимает (например, запятая в числах), разбираются как раньше
+   * через {@link #parseResultFromLine(String)}.
+   */
+  static ColumnarSession parseSession(byte[] data) {
+    ColumnarSession session = new ColumnarSession();
+    forEachResult(data, session::append);
+    return session;
+  }
+
+  /** Сводка по содержимому файла сессии без построения самой сессии */
+  static ResultStats statsOf(byte[] data) {
+    ResultStats stats = new ResultStats();
+    forEachResult(data, stats::add);
+    return stats;
+  }
+
+  private static void forEachResult(byte[] data, Consumer<CalculationResult> consumer) {
+    LineParser parser = new LineParser();
+    int start = 0;
+    while (start < data.length) {
+      int end = start;
+      while (end < data.length && data[end] != '\n') {
+        end++;
+      }
+      CalculationResult result = parser.parse(data, start, end);
+      if (result != null) {
+        consumer.accept(result);
       }
+      start = end + 1;
+    }
+  }
+
+  /** Разбор строк файла сессии из байтов; помнит начало последней минуты, чтобы не считать пояс */
+  private static final class LineParser {
+    private static final int FIELDS = 6;
 
-      List<CalculationResult> results = new ArrayList<>();
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final int[] separators = new int[FIELDS - 1];
 
-      try (BufferedReader reader = Files.newBufferedReader(sessionFile)) {
-        String line;
-        while ((line = reader.readLine()) != null) {
-          if (!line.trim().isEmpty()) {
-            CalculationResult result = parseResultFromLine(line);
-            if (result != null) {
-              results.add(result);
-            }
+    private long cachedMinute = -1;
+    private long cachedMinuteMillis;
+
+    /** Результат из строки data[start, end) или null для пустой и некорректной строки */
+    CalculationResult parse(byte[] data, int start, int end) {
+      int to = end;
+      while (to > start && (data[to - 1] & 0xff) <= ' ') {
+        to--;
+      }
+      if (to == start) {
+        return null;
+      }
+      try {
+        CalculationResult result = parseFast(data, start, to);
+        if (result != null) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // Разбираем строку прежним способом; он же сообщит об ошибке
+      }
+      return parseResultFromLine(new String(data, start, to - start, StandardCharsets.UTF_8));
+    }
+
+    /** null - строку нужно разобрать прежним способом */
+    private CalculationResult parseFast(byte[] data, int start, int end) {
+      int count = 0;
+      int fieldEnd = end;
+      for (int i = start; i < end; i++) {
+        byte b = data[i];
+        if (b == ',') {
+          return null;
+        }
+        if (b == '|') {
+          if (count == separators.length) {
+            fieldEnd = i;
+            break;
           }
+          separators[count++] = i;
         }
       }
+      if (count < separators.length) {
+        return null;
+      }
 
-      return results;
-    } catch (IOException e) {
-      System.err.println(
-          "Warning: Could not load session from " + sessionFile + ": " + e.getMessage());
-      return null;
+      double x = FormFields.parseDouble(data, start, separators[0]);
+      double y = FormFields.parseDouble(data, separators[0] + 1, separators[1]);
+      double r = FormFields.parseDouble(data, separators[1] + 1, separators[2]);
+      boolean isInArea = isTrue(data, separators[2] + 1, separators[3]);
+      long timestamp = parseTime(data, separators[3] + 1, separators[4]);
+      double executionTime = FormFields.parseDouble(data, separators[4] + 1, fieldEnd);
+      if (timestamp == Long.MIN_VALUE) {
+        return null;
+      }
+      return new CalculationResult(x, y, r, isInArea, timestamp, executionTime);
+    }
+
+    /** Как {@link Boolean#parseBoolean}: "true" без учета регистра */
+    private static boolean isTrue(byte[] data, int start, int end) {
+      return end - start == 4
+          && (data[start] | 0x20) == 't'
+          && (data[start + 1] | 0x20) == 'r'
+          && (data[start + 2] | 0x20) == 'u'
+          && (data[start + 3] | 0x20) == 'e';
+    }
+
+    /** Время yyyy-MM-dd HH:mm:ss в мс эпохи или Long.MIN_VALUE, если формат другой */
+    private long parseTime(byte[] data, int start, int end) {
+      if (end - start != 19
+          || data[start + 4] != '-'
+          || data[start + 7] != '-'
+          || data[start + 10] != ' '
+          || data[start + 13] != ':'
+          || data[start + 16] != ':') {
+        return Long.MIN_VALUE;
+      }
+      int year = digits(data, start, 4);
+      int month = digits(data, start + 5, 2);
+      int day = digits(data, start + 8, 2);
+      int hour = digits(data, start + 11, 2);
+      int minute = digits(data, start + 14, 2);
+      int second = digits(data, start + 17, 2);
+      if ((year | month | day | hour | minute | second) < 0 || second > 59) {
+        return Long.MIN_VALUE;
+      }
+
+      long key = ((((year * 13L + month) * 32 + day) * 24 + hour) * 60) + minute;
+      if (key != cachedMinute) {
+        cachedMinuteMillis =
+            LocalDateTime.of(year, month, day, hour, minute)
+                .atZone(zone)
+                .toInstant()
+                .toEpochMilli();
+        cachedMinute = key;
+      }
+      return cachedMinuteMillis + second * 1000L;
+    }
+
+    /** Число из count цифр или -1 */
+    private static int digits(byte[] data, int start, int count) {
+      int value = 0;
+      for (int i = start; i < start + count; i++) {
+        int digit = data[i] - '0';
+        if (digit < 0 || digit > 9) {
+          return -1;
+        }
+        value = value * 10 + digit;
+      }
+      return value;
     }
   }
 
   /** Парсит строку в результат вычисления */
-  private static CalculationResult parseResultFromLine(String line) {
+  static CalculationResult parseResultFromLine(String line) {
     try {
       String[] parts = line.split("\\|");
       if (parts.length >= 6) {
@@ -129,55 +679,60 @@ public class SessionManager {
         double y = Double.parseDouble(parts[1].replace(',', '.'));
         double r = Double.parseDouble(parts[2].replace(',', '.'));
         boolean isInArea = Boolean.parseBoolean(parts[3]);
-        String currentTime = parts[4];
+        long timestamp = parseTime(parts[4]);
         double executionTime = Double.parseDouble(parts[5].replace(',', '.'));
 
-        return new CalculationResult(x, y, r, isInArea, currentTime, executionTime);
+        return new CalculationResult(x, y, r, isInArea, timestamp, executionTime);
       }
     } catch (Exception e) {
-      System.err.println("Warning: Could not parse result line: " + line);
+      Log.warn("Could not parse result line", "line", line);
     }
     return null;
   }
 
-  /** Сохраняет сессию в файл */
-  private static void saveSession(String sessionId, List<CalculationResult> results) {
-    try {
-      Path sessionFile = Paths.get(SESSIONS_DIR, sessionId + SESSION_FILE_EXT);
-
-      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(sessionFile))) {
-        for (CalculationResult result : results) {
-          writer.println(
-              String.format(
-                  // В данной локали используется запятая как разделитель
-                  Locale.US,
-                  "%.6f|%.6f|%.6f|%s|%s|%.6f",
-                  result.x(),
-                  result.y(),
-                  result.r(),
-                  result.isInArea(),
-                  result.currentTime(),
-                  result.executionTime()));
-        }
+  /** В режиме синхронной фиксации ждет, пока запись журнала не окажется на диске */
+  private static void awaitCommit(long seq) {
+    if (SYNC_COMMIT) {
+      try {
+        journal.awaitDurable(seq);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-    } catch (IOException e) {
-      System.err.println("Warning: Could not save session " + sessionId + ": " + e.getMessage());
     }
   }
 
+  /** Форматирует результат в строку журнала */
+  static String formatResult(CalculationResult result) {
+    return String.format(
+        // В данной локали используется запятая как разделитель
+        Locale.US,
+        "%.6f|%.6f|%.6f|%s|%s|%.6f%n",
+        result.x(),
+        result.y(),
+        result.r(),
+        result.isInArea(),
+        result.currentTime(),
+        result.executionTime());
+  }
+
   public static boolean clearSession(String sessionId) {
     try {
+      // Удаляем сессию из хранилища вместе с несброшенными записями; хранилище очищается первым,
+      // чтобы параллельный запрос не загрузил из него уже очищенную историю
+      byte[] deleted = journal.delete(sessionId);
+
       // Удаляем из памяти
-      List<CalculationResult> removed = sessions.remove(sessionId);
+      boolean removed = sessions.remove(sessionId);
 
-      // Удаляем файл сессии
-      Path sessionFile = Paths.get(SESSIONS_DIR, sessionId + SESSION_FILE_EXT);
-      boolean fileDeleted = Files.deleteIfExists(sessionFile);
+      // Из сводки вычитаются ровно удаленные записи: добавленные тем временем переживут очистку
+      if (deleted != null) {
+        totals.subtract(statsOf(deleted));
+      }
 
-      return removed != null || fileDeleted;
+      watchers.changed(sessionId);
+      return removed || deleted != null;
     } catch (IOException e) {
-      System.err.println(
-          "Warning: Could not delete session file " + sessionId + ": " + e.getMessage());
+      Log.warn("Could not delete session", "sessionId", sessionId, "error", e.getMessage());
       return false;
     }
   }
@@ -0,0 +1,95 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Однократный перенос файлов сессий прежнего формата (один файл на сессию) в {@link SegmentStore}.
+ * Файлы импортируются пачками записями FULL, и только после fsync пачки удаляются. Если перенос
+ * прервется, оставшиеся файлы импортируются при следующем запуске: запись FULL заменяет сессию
+ * целиком, поэтому повторный импорт того же файла ничего не портит.
+ *
+ * <p>Вызывается при запуске сервера; можно запустить и отдельно: {@code java -cp app.jar
+ * com.example.SessionMigrator [каталог]}.
+ */
+public class SessionMigrator {
+
+  /** Объем файлов в одной пачке */
+  private static final int BATCH_BYTES = 4 << 20;
+
+  private SessionMigrator() {}
+
+  /**
+   * Переносит файлы {@code *<extension>} каталога в хранилище; возвращает число сессий. Другие
+   * процессы тем временем ничего не пишут, поэтому импорт не затрет их новые записи.
+   */
+  public static int migrate(Path directory, String extension, SegmentStore store)
+      throws IOException {
+    return store.exclusive(() -> migrateLocked(directory, extension, store));
+  }
+
+  private static int migrateLocked(Path directory, String extension, SegmentStore store)
+      throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + extension)) {
+      stream.forEach(files::add);
+    }
+    if (files.isEmpty()) {
+      return 0;
+    }
+
+    long start = System.nanoTime();
+    Map<String, byte[]> batch = new HashMap<>();
+    List<Path> imported = new ArrayList<>();
+    int bytes = 0;
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      byte[] data = Files.readAllBytes(file);
+      // Последняя строка могла оборваться; следующая запись должна начаться с новой строки
+      if (data.length > 0 && data[data.length - 1] != '\n') {
+        data = Arrays.copyOf(data, data.length + 1);
+        data[data.length - 1] = '\n';
+      }
+      batch.put(name.substring(0, name.length() - extension.length()), data);
+      imported.add(file);
+      bytes += data.length;
+      if (bytes >= BATCH_BYTES) {
+        commit(store, batch, imported);
+        bytes = 0;
+      }
+    }
+    commit(store, batch, imported);
+
+    Log.info(
+        "Migrated session files",
+        "sessions",
+        files.size(),
+        "ms",
+        (System.nanoTime() - start) / 1_000_000);
+    return files.size();
+  }
+
+  private static void commit(SegmentStore store, Map<String, byte[]> batch, List<Path> imported)
+      throws IOException {
+    store.replace(batch);
+    for (Path file : imported) {
+      Files.delete(file);
+    }
+    batch.clear();
+    imported.clear();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path directory = Paths.get(args.length > 0 ? args[0] : "sessions");
+    int migrated = migrate(directory, ".session", SegmentStore.open(directory));
+    System.out.println("Migrated " + migrated + " sessions");
+  }
+}
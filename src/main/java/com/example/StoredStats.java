@@ -0,0 +1,51 @@
+package com.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Сводка по всем записям хранилища сессий, которую ведет само хранилище ({@link
+ * SegmentStore.Tracker}). Она сохраняется вместе с позицией хранилища, поэтому при запуске
+ * разбираются только записи, сделанные после сохранения, а не вся история.
+ */
+final class StoredStats implements SegmentStore.Tracker {
+
+  private ResultStats stats = new ResultStats();
+
+  @Override
+  public synchronized void recovering(byte[] state) throws IOException {
+    stats =
+        state == null
+            ? new ResultStats()
+            : ResultStats.readFrom(new DataInputStream(new ByteArrayInputStream(state)));
+  }
+
+  @Override
+  public synchronized void applied(String sessionId, byte[] removed, byte[] added) {
+    if (removed != null) {
+      stats.subtract(SessionManager.statsOf(removed));
+    }
+    stats.add(SessionManager.statsOf(added));
+  }
+
+  @Override
+  public synchronized byte[] state() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      stats.writeTo(new DataOutputStream(bytes));
+    } catch (IOException e) {
+      // В массив запись не падает
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Копия сводки; согласована с хранилищем, если взята под его блокировкой */
+  synchronized ResultStats snapshot() {
+    return stats.copy();
+  }
+}
@@ -0,0 +1,216 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Учебный прогон для быстрого старта воркера ({@code java -jar app.jar --train}): поднимает сервер
+ * на свободном порту loopback с сессиями и файлом пользователей во временном каталоге и отправляет
+ * ему по FastCGI запросы всех видов, чтобы загрузились и проинициализировались классы обычной
+ * работы, после чего завершает процесс. С {@code -XX:ArchiveClassesAtExit} по нему строится архив
+ * CDS, с агентом native-image - конфигурация для GraalVM.
+ */
+final class Training {
+
+  /** Сколько раз повторить набор запросов; каждый повтор - в новой сессии */
+  private static final int ROUNDS = Integer.getInteger("training.rounds", 20);
+
+  private static final String SCRIPT_NAME = "/fcgi-bin/app.jar";
+
+  /** Пользователь учебного прогона, записываемый во временный файл auth.credentials */
+  private static final String USERNAME = "training";
+
+  private static final String PASSWORD = "training";
+
+  /** Итераций PBKDF2 мало: прогону нужен путь проверки по файлу, а не стойкость хеша */
+  private static final int ITERATIONS = 1000;
+
+  private static final String AUTHORIZATION =
+      "Basic "
+          + Base64.getEncoder()
+              .encodeToString((USERNAME + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+  private static final String BATCH_CSV = "1,1,3\n-2,0.5,2\n4,-4.9,5\n0,0,1\n-3,2.2,4\n";
+
+  private static final String BATCH_JSON = "[{\"x\": 1, \"y\": -1, \"r\": 2}, [2, 0.25, 3]]";
+
+  private Training() {}
+
+  static void run() throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    // До первого обращения к SessionManager: хранилище открывается при инициализации класса
+    Path directory = Files.createTempDirectory("app-training");
+    System.setProperty("sessions.dir", directory.toString());
+    // До первой проверки авторизации: пользователи читаются при первом обращении к ним
+    Path credentials = directory.resolve("training.credentials");
+    Files.writeString(
+        credentials, FileCredentialStore.entry(USERNAME, PASSWORD, ITERATIONS) + "\n");
+    System.setProperty("auth.credentials", credentials.toString());
+
+    AreaChecker.init();
+    SessionManager.startPreload();
+    SessionManager.loadStats();
+
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    FcgiServer server = new FcgiServer(channel, FastCGIServer::handleRequest);
+    Thread serving =
+        new Thread(
+            () -> {
+              try {
+                server.serve();
+              } catch (IOException e) {
+                Log.error("Training server failed", "error", e);
+              }
+            },
+            "training-server");
+    serving.setDaemon(true);
+    serving.start();
+
+    int requests = 0;
+    try (Client client = new Client(((InetSocketAddress) channel.getLocalAddress()).getPort())) {
+      for (int round = 0; round < ROUNDS; round++) {
+        requests += round(client, "training_" + round);
+      }
+    }
+    Log.info(
+        "Training finished", "requests", requests, "ms", (System.nanoTime() - start) / 1_000_000);
+
+    deleteOnExit(directory);
+    System.exit(0);
+  }
+
+  /** Набор запросов одной сессии, повторяющий работу страницы; возвращает их число */
+  private static int round(Client client, String sessionId) throws IOException {
+    String cookie = "sessionId=" + sessionId;
+    String form = "application/x-www-form-urlencoded";
+    client.exchange("GET", "", null, null, null);
+    client.exchange("POST", "", cookie, form, "xVal=1&yVal=1.5&rVal=3");
+    client.exchange("POST", "delta=1", cookie, form, "xVal=-2&yVal=-0.75&rVal=2");
+    client.exchange("POST", "", cookie, form, "xVal=9&yVal=0&rVal=1");
+    client.exchange("POST", "action=batch", cookie, "text/csv", BATCH_CSV);
+    client.exchange("POST", "action=batch", cookie, "application/json", BATCH_JSON);
+    client.exchange("GET", "", cookie, null, null, "HTTP_ACCEPT_ENCODING", "gzip, deflate");
+    client.exchange("GET", "format=columns&limit=5", cookie, null, null);
+    client.exchange("GET", "", cookie, null, null, "HTTP_IF_NONE_MATCH", "*");
+    client.exchange("GET", "action=watch&since=0", cookie, null, null);
+    client.exchange("GET", "action=stats", cookie, null, null);
+    client.exchange("GET", "action=export&format=csv", cookie, null, null);
+    client.exchange("GET", "action=export&format=ndjson&inArea=true", cookie, null, null);
+    client.exchange("GET", "action=metrics", null, null, null);
+    client.exchange("DELETE", "action=clear", cookie, null, null);
+    client.exchange("PUT", "", cookie, null, null);
+    return 16;
+  }
+
+  /**
+   * Удаляет временное хранилище при выходе: хуки остановки еще сбрасывают в него журнал, индекс и
+   * сводку, а {@link File#deleteOnExit()} срабатывает после них. Файлы удаляются в обратном порядке
+   * регистрации, поэтому каталог - последним
+   */
+  private static void deleteOnExit(Path directory) throws IOException {
+    directory.toFile().deleteOnExit();
+    directory.resolve("sessions.index").toFile().deleteOnExit();
+    directory.resolve("segments.checkpoint").toFile().deleteOnExit();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(file -> file.toFile().deleteOnExit());
+    }
+  }
+
+  /** FastCGI клиент на одном соединении: запросы по одному, как их передает nginx */
+  private static final class Client implements Closeable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private int requestId;
+
+    Client(int port) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket.setTcpNoDelay(true);
+      out = socket.getOutputStream();
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Отправляет запрос и читает ответ до FCGI_END_REQUEST; cookie null - без авторизации и cookie,
+     * extra - пары имя-значение дополнительных параметров
+     */
+    void exchange(
+        String method,
+        String query,
+        String cookie,
+        String contentType,
+        String body,
+        String... extra)
+        throws IOException {
+      Map<String, String> params = new LinkedHashMap<>();
+      params.put("REQUEST_METHOD", method);
+      params.put("SCRIPT_NAME", SCRIPT_NAME);
+      params.put("QUERY_STRING", query);
+      if (cookie != null) {
+        params.put("HTTP_AUTHORIZATION", AUTHORIZATION);
+        params.put("HTTP_COOKIE", cookie);
+      }
+      byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+      if (contentType != null) {
+        params.put("CONTENT_TYPE", contentType);
+        params.put("CONTENT_LENGTH", String.valueOf(content.length));
+      }
+      for (int i = 0; i + 1 < extra.length; i += 2) {
+        params.put(extra[i], extra[i + 1]);
+      }
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      params.forEach((name, value) -> FcgiServer.encodeParam(encoded, name, value));
+
+      // Тела учебных запросов меньше одной записи
+      int id = requestId = requestId % 0xFFFF + 1;
+      ByteBuffer buffer =
+          ByteBuffer.allocate(FcgiServer.FCGI_HEADER_LEN * 6 + encoded.size() + content.length);
+      FcgiServer.putHeader(buffer, FcgiServer.FCGI_BEGIN_REQUEST, id, 8);
+      buffer.putShort((short) FcgiServer.FCGI_RESPONDER);
+      buffer.put((byte) FcgiServer.FCGI_KEEP_CONN);
+      buffer.put(new byte[5]);
+      FcgiServer.putHeader(buffer, FcgiServer.FCGI_PARAMS, id, encoded.size());
+      buffer.put(encoded.toByteArray());
+      FcgiServer.putHeader(buffer, FcgiServer.FCGI_PARAMS, id, 0);
+      if (content.length > 0) {
+        FcgiServer.putHeader(buffer, FcgiServer.FCGI_STDIN, id, content.length);
+        buffer.put(content);
+      }
+      FcgiServer.putHeader(buffer, FcgiServer.FCGI_STDIN, id, 0);
+      out.write(buffer.array(), 0, buffer.position());
+      out.flush();
+
+      byte[] header = new byte[FcgiServer.FCGI_HEADER_LEN];
+      int type;
+      do {
+        in.readFully(header);
+        type = header[1] & 0xFF;
+        int length = ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+        in.skipNBytes(length + (header[6] & 0xFF));
+      } while (type != FcgiServer.FCGI_END_REQUEST);
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
@@ -62,7 +62,14 @@ let lastSubmissionTime = 0;
 let tabId = null;
 let currentR = 1; // При запуске приложения R = 1
 let points = []; // Массив для хранения всех точек
+let results = []; // История результатов (сначала самые новые)
+let historyCursor = 0; // Число записей истории, уже полученных с сервера
+let historyEtag = null; // Версия истории на сервере (ETag), совпадающая с локальной копией
 let previewPoint = null; // Точка для предпросмотра
+let watching = false; // Запущено ли ожидание изменений истории
+
+// Пауза перед повтором ожидания изменений после ошибки, мс
+const WATCH_RETRY_MS = 5000;
 
 document.addEventListener("DOMContentLoaded", () => {
     // Генерируем уникальный ID для этой вкладки
@@ -428,8 +435,8 @@ function handleFormSubmit(e) {
     formData.append('yVal', yVal);
     formData.append('rVal', rVal);
 
-    // Отправляем запрос
-    fetch(getServerURL(), {
+    // Отправляем запрос; сервер вернет только записи, которых еще нет у клиента
+    fetch(`${getServerURL()}?since=${historyCursor}`, {
         method: 'POST',
         headers: {
             'Content-Type': 'application/x-www-form-urlencoded',
@@ -441,31 +448,12 @@ function handleFormSubmit(e) {
             if (!response.ok) {
                 throw new Error(`Ошибка сервера: ${response.status}`);
             }
-            return response.json();
+            return response.json().then(jsonData => ({response, jsonData}));
         })
-        .then(jsonData => {
-            localStorage.setItem("session", JSON.stringify(jsonData));
-            updateResultsTable(jsonData.results);
-
-            const lastResultMap = new Map();
-            jsonData.results.forEach(result => {
-                const key = `${result.x},${result.y}`;
-                if (!lastResultMap.has(key)) {
-                    lastResultMap.set(key, {
-                        x: result.x,
-                        y: result.y,
-                        r: result.r,
-                        isInArea: result.isInArea
-                    });
-                }
-            });
-            points = Array.from(lastResultMap.values());
-
+        .then(({response, jsonData}) => {
             // Очищаем точку предпросмотра
             previewPoint = null;
-
-            // Перерисовываем график
-            redrawGraph();
+            applyHistoryDelta(jsonData, response.headers.get('ETag'));
         })
         .catch(error => {
             console.error('Ошибка:', error);
@@ -673,47 +661,153 @@ function updateResultsTable(results) {
     tbody.innerHTML = html;
 }
 
+// Функция для обновления точек графика по истории результатов
+function updatePointsFromResults(results) {
+    // Сохраняем только последние результаты для каждой уникальной координаты (x, y)
+    const lastResultMap = new Map();
+    results.forEach(result => {
+        const key = `${result.x},${result.y}`;
+        if (!lastResultMap.has(key)) {
+            lastResultMap.set(key, {
+                x: result.x,
+                y: result.y,
+                r: result.r,
+                isInArea: result.isInArea
+            });
+        }
+    });
+
+    points = Array.from(lastResultMap.values())
+        .filter(point => point.x !== undefined && point.y !== undefined);
+}
+
+// Сохраняет локальную копию истории вместе с ее версией
+function saveSession() {
+    localStorage.setItem("session", JSON.stringify({results: results, cursor: historyCursor, etag: historyEtag}));
+}
+
+// Читает локальную копию истории; null, если ее нет или она повреждена
+function readSavedSession() {
+    try {
+        const saved = JSON.parse(localStorage.getItem("session"));
+        return saved && Array.isArray(saved.results) && saved.etag ? saved : null;
+    } catch (e) {
+        return null;
+    }
+}
+
+// Дописывает к локальной истории записи, которых у нее не было, и перерисовывает график
+function applyHistoryDelta(jsonData, etag) {
+    // Если история на сервере разошлась с локальной (например, сессию очистили
+    // в другой вкладке), загружаем ее целиком
+    if (jsonData.cursor - historyCursor !== jsonData.results.length) {
+        loadSavedResults();
+        return;
+    }
+
+    results = jsonData.results.concat(results);
+    historyCursor = jsonData.cursor;
+    historyEtag = historyCursor === results.length ? etag : null;
+    saveSession();
+    updateResultsTable(results);
+    updatePointsFromResults(results);
+    redrawGraph();
+}
+
+// Ожидание изменений истории (long-poll): сервер держит запрос, пока не появятся новые записи,
+// например добавленные в другой вкладке, и отвечает только ими; по таймауту - 304 или пустым ответом
+function watchHistory() {
+    const since = historyCursor;
+    const headers = {'Authorization': getAuthHeader()};
+    if (historyEtag) {
+        headers['If-None-Match'] = historyEtag;
+    }
+    fetch(`${getServerURL()}?action=watch&since=${since}`, {
+        method: 'GET',
+        cache: 'no-store',
+        headers: headers
+    })
+        .then(response => {
+            if (response.status === 304) {
+                return null;
+            }
+            if (!response.ok) {
+                throw new Error(`Ошибка сервера: ${response.status}`);
+            }
+            return response.json().then(jsonData => ({response, jsonData}));
+        })
+        .then(update => {
+            // Пока запрос ждал, историю могли обновить ответом на POST: тогда ответ устарел
+            if (update && since === historyCursor) {
+                applyHistoryDelta(update.jsonData, update.response.headers.get('ETag'));
+            }
+            watchHistory();
+        })
+        .catch(error => {
+            console.error('Ошибка ожидания изменений:', error);
+            setTimeout(watchHistory, WATCH_RETRY_MS);
+        });
+}
+
+// Переводит историю из вида по столбцам (format=columns) в обычный список записей
+function rowsFromColumns(jsonData) {
+    const columns = (jsonData && jsonData.columns) || {};
+    const count = Array.isArray(columns.x) ? columns.x.length : 0;
+    const rows = [];
+    for (let i = 0; i < count; i++) {
+        rows.push({
+            x: columns.x[i],
+            y: columns.y[i],
+            r: columns.r[i],
+            isInArea: columns.isInArea[i],
+            currentTime: columns.currentTime[i],
+            executionTime: columns.executionTime[i]
+        });
+    }
+    return {results: rows, cursor: jsonData ? jsonData.cursor : 0};
+}
+
 // Функция для загрузки сохраненных результатов
 function loadSavedResults() {
-    fetch(getServerURL(), {
+    // Условный запрос: если история на сервере не менялась, он ответит 304 без тела,
+    // и используется локальная копия
+    const saved = readSavedSession();
+    const headers = {'Authorization': getAuthHeader()};
+    if (saved) {
+        headers['If-None-Match'] = saved.etag;
+    }
+    // Вся история приходит по столбцам: имена полей не повторяются в каждой записи
+    fetch(`${getServerURL()}?format=columns`, {
         method: 'GET',
-        headers: {
-            'Authorization': getAuthHeader()
-        }
+        cache: 'no-store',
+        headers: headers
     })
         .then(response => {
+            if (response.status === 304 && saved) {
+                return {results: saved.results, cursor: saved.cursor, etag: saved.etag};
+            }
             if (response.ok) {
-                return response.json();
+                return response.json().then(jsonData => {
+                    const page = rowsFromColumns(jsonData);
+                    page.etag = response.headers.get('ETag');
+                    return page;
+                });
             }
             throw new Error(`Ошибка сервера: ${response.status}`);
         })
         .then(jsonData => {
-            if (jsonData && jsonData.results && jsonData.results.length > 0) {
-                updateResultsTable(jsonData.results);
-
-                // Сохраняем только последние результаты для каждой уникальной координаты (x, y)
-                if (jsonData.results && Array.isArray(jsonData.results)) {
-                    const lastResultMap = new Map();
-                    jsonData.results.forEach(result => {
-                        const key = `${result.x},${result.y}`;
-                        if (!lastResultMap.has(key)) {
-                            lastResultMap.set(key, {
-                                x: result.x,
-                                y: result.y,
-                                r: result.r,
-                                isInArea: result.isInArea
-                            });
-                        }
-                    });
-
-                    points = Array.from(lastResultMap.values())
-                        .filter(point => point.x !== undefined && point.y !== undefined);
-                } else {
-                    points = [];
-                }
+            results = (jsonData && Array.isArray(jsonData.results)) ? jsonData.results : [];
+            historyCursor = (jsonData && jsonData.cursor) || results.length;
+            // Копия неполная, если сервер отдал не всю историю
+            historyEtag = historyCursor === results.length ? jsonData.etag : null;
+            saveSession();
+
+            if (results.length > 0) {
+                updateResultsTable(results);
+                updatePointsFromResults(results);
 
                 // Устанавливаем текущее R из последнего результата
-                const lastResult = jsonData.results[0];
+                const lastResult = results[0];
                 currentR = lastResult.r;
 
                 // Устанавливаем соответствующую радиокнопку R
@@ -724,10 +818,22 @@ function loadSavedResults() {
 
                 // Перерисовываем график и точки
                 redrawGraph();
+            } else {
+                // Историю очистили, например в другой вкладке
+                updateResultsTable([]);
+                points = [];
+                redrawGraph();
             }
         })
         .catch(error => {
             console.error('Ошибка загрузки результатов:', error);
+        })
+        .finally(() => {
+            // Дальше новые записи приходят через ожидание изменений, без повторной загрузки
+            if (!watching) {
+                watching = true;
+                watchHistory();
+            }
         });
 }
 
@@ -749,6 +855,10 @@ function clearSession() {
         .then(response => {
             if (response.ok) {
                 // Очищаем таблицу результатов
+                results = [];
+                historyCursor = 0;
+                historyEtag = null;
+                localStorage.removeItem("session");
                 updateResultsTable([]);
 
                 // Очищаем точки на графике
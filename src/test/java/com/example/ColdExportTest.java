@@ -0,0 +1,68 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Выгрузка сессии, которой нет в кэше ({@link SessionManager#forEachStored}): записи читаются из
+ * хранилища частями, строки на границах частей не теряются, а сессия в кэш не попадает
+ */
+class ColdExportTest {
+
+  private static final String RUN = "export_" + System.nanoTime() + "_";
+
+  @Test
+  void coldSessionStreamsWithoutCaching() throws Exception {
+    String sessionId = RUN + "cold";
+    for (int i = 0; i < 2000; i++) {
+      SessionManager.addResult(sessionId, result(i));
+    }
+    List<SessionManager.CalculationResult> expected =
+        new ArrayList<>(SessionManager.getResults(sessionId));
+    Collections.reverse(expected);
+    evict(sessionId);
+
+    // Буфер меньше строки: он растет, и каждая строка пересекает границу части
+    for (int bufferBytes : new int[] {16, 100, 4096}) {
+      List<SessionManager.CalculationResult> streamed = new ArrayList<>();
+      assertTrue(SessionManager.forEachStored(sessionId, bufferBytes, streamed::add));
+      assertEquals(expected, streamed, "buffer " + bufferBytes);
+      assertNull(SessionManager.cachedSnapshot(sessionId));
+    }
+  }
+
+  @Test
+  void consumerStopsReading() throws Exception {
+    String sessionId = RUN + "stop";
+    for (int i = 0; i < 100; i++) {
+      SessionManager.addResult(sessionId, result(i));
+    }
+    evict(sessionId);
+
+    List<SessionManager.CalculationResult> streamed = new ArrayList<>();
+    assertFalse(
+        SessionManager.forEachStored(sessionId, 256, r -> streamed.add(r) && streamed.size() < 10));
+    assertEquals(10, streamed.size());
+    assertTrue(SessionManager.forEachStored(RUN + "missing", 256, r -> false));
+  }
+
+  /** Вытесняет сессию из кэша, заполняя его другими (лимит в тестах - 8 сессий, см. pom.xml) */
+  private static void evict(String sessionId) {
+    for (int i = 0; i < 64 && SessionManager.cachedSnapshot(sessionId) != null; i++) {
+      SessionManager.addResult(RUN + "filler_" + i, result(i));
+    }
+    assertNull(SessionManager.cachedSnapshot(sessionId));
+  }
+
+  private static SessionManager.CalculationResult result(int seq) {
+    return new SessionManager.CalculationResult(
+        seq % 5 - 2, seq % 7 - 3, 1 + seq % 4, seq % 2 == 0, 1_700_000_000_000L + seq * 1000L, seq);
+  }
+}
@@ -0,0 +1,73 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Пакетная проверка, таблицы и общий путь {@link CompiledArea} дают один ответ */
+class CompiledAreaTest {
+
+  private static final int POINTS = 100_000;
+
+  private final double[] validX = CoordinatesValidator.validXValues();
+  private final double[] validR = CoordinatesValidator.validRValues();
+  private final CompiledArea area =
+      AreaDefinition.parse(AreaDefinition.DEFAULT).compile(validX, validR);
+
+  @Test
+  void batchMatchesScalarOnTables() {
+    Random random = new Random(8);
+    double[] xs = new double[POINTS];
+    double[] ys = new double[POINTS];
+    double[] rs = new double[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      xs[i] = validX[random.nextInt(validX.length)];
+      rs[i] = validR[random.nextInt(validR.length)];
+      // Половина точек - в нескольких ulp от границ на оси и у краев фигур
+      ys[i] = random.nextBoolean() ? random.nextDouble() * 12 - 6 : nearEdge(random, xs[i], rs[i]);
+    }
+    assertBatchMatches(xs, ys, rs);
+  }
+
+  @Test
+  void batchMatchesScalarOffTables() {
+    Random random = new Random(9);
+    double[] xs = new double[POINTS];
+    double[] ys = new double[POINTS];
+    double[] rs = new double[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      // Точки вне таблиц вперемешку с табличными, в том числе -0.0, NaN и большие значения
+      xs[i] =
+          switch (random.nextInt(5)) {
+            case 0 -> validX[random.nextInt(validX.length)];
+            case 1 -> -0.0;
+            case 2 -> 1e12 * (random.nextDouble() - 0.5);
+            default -> random.nextDouble() * 10 - 5;
+          };
+      rs[i] = random.nextInt(4) == 0 ? random.nextDouble() * 6 : validR[random.nextInt(5)];
+      ys[i] = random.nextInt(100) == 0 ? Double.NaN : random.nextDouble() * 12 - 6;
+    }
+    assertBatchMatches(xs, ys, rs);
+  }
+
+  private void assertBatchMatches(double[] xs, double[] ys, double[] rs) {
+    boolean[] out = new boolean[POINTS];
+    area.contains(xs, ys, rs, out, POINTS);
+    for (int i = 0; i < POINTS; i++) {
+      String point = "(" + xs[i] + ", " + ys[i] + ", " + rs[i] + ")";
+      assertEquals(area.evaluate(xs[i], ys[i], rs[i]), out[i], point);
+      assertEquals(area.contains(xs[i], ys[i], rs[i]), out[i], point);
+    }
+  }
+
+  /** y в нескольких ulp от 0, ±R, R/2 или -x-R */
+  private static double nearEdge(Random random, double x, double r) {
+    double[] edges = {0, r, -r, r / 2, -r / 2, -x - r, Math.sqrt(Math.max(r * r / 4 - x * x, 0))};
+    double y = edges[random.nextInt(edges.length)];
+    for (int steps = random.nextInt(7) - 3; steps != 0; steps += steps > 0 ? -1 : 1) {
+      y = steps > 0 ? Math.nextUp(y) : Math.nextDown(y);
+    }
+    return y;
+  }
+}
@@ -0,0 +1,241 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Сверяет {@link FormFields} и разбор cookie с прежним разбором через split и {@link URLDecoder}
+ * ({@link #parseQueryString}) на случайных данных с постоянным зерном, чтобы расхождение
+ * воспроизводилось
+ */
+class FormFieldsTest {
+
+  private static final int CASES = 20_000;
+
+  /** Ключи, которые ищутся в каждой форме; среди них пустой */
+  private static final List<String> KEYS = List.of("xVal", "yVal", "rVal", "delta", "a", "");
+
+  /** Куски, из которых собираются ключи и значения */
+  private static final List<String> PIECES =
+      List.of(
+          "xVal",
+          "yVal",
+          "rVal",
+          "delta",
+          "a",
+          "1",
+          "-2.5",
+          "0.125",
+          "+",
+          "%20",
+          "%2B",
+          "%3D",
+          "%26",
+          "%78",
+          "%41%42",
+          "%d0%bf",
+          "%D1%80",
+          "%e2%82%ac",
+          "%C3",
+          "%",
+          "%4",
+          "%zz",
+          "%g1",
+          "п",
+          "€",
+          "😀",
+          " ",
+          ".",
+          "e3",
+          "NaN",
+          "=");
+
+  private static final List<String> NUMBERS =
+      List.of(
+          "0",
+          "-0",
+          "1",
+          "-3",
+          "2.5",
+          "-1.75",
+          "0.1",
+          "3.14159265358979",
+          "1e2",
+          "1E-3",
+          ".5",
+          "5.",
+          "+2",
+          " 4 ",
+          "NaN",
+          "-Infinity",
+          "0x1p3",
+          "1d",
+          "2f",
+          "",
+          "-",
+          ".",
+          "1..2",
+          "12345678901234567890",
+          "0.0000000000000000000001",
+          "9007199254740993",
+          "abc");
+
+  @Test
+  void formsMatchUrlDecoder() {
+    Random random = new Random(13);
+    for (int i = 0; i < CASES; i++) {
+      String form = randomForm(random);
+      // Единственное намеренное отличие: URLDecoder принимал знак в %-коде ("%+1", "%-0")
+      if (form.contains("%+") || form.contains("%-")) {
+        continue;
+      }
+      Map<String, String> expected = parseQueryString(form);
+      FormFields fields = FormFields.of(form);
+      for (String key : KEYS) {
+        assertEquals(expected.get(key), fields.get(key), () -> "key '" + key + "' in " + form);
+        assertEquals(expected.containsKey(key), fields.contains(key), form);
+      }
+    }
+  }
+
+  @Test
+  void numbersMatchParseDouble() {
+    Random random = new Random(31);
+    for (int i = 0; i < CASES; i++) {
+      String value =
+          random.nextBoolean()
+              ? NUMBERS.get(random.nextInt(NUMBERS.size()))
+              : randomDecimal(random);
+      String form = "xVal=" + value.replace("+", "%2B").replace(" ", "+");
+      Double expected = parseOrNull(parseQueryString(form).get("xVal"));
+      Double actual;
+      try {
+        actual = FormFields.of(form).getDouble("xVal");
+      } catch (NumberFormatException e) {
+        actual = null;
+      }
+      assertEquals(expected, actual, form);
+    }
+  }
+
+  @Test
+  void signInEscapeIsMalformed() {
+    assertEquals("\u0001", parseQueryString("a=%+1").get("a"));
+    assertNull(FormFields.of("a=%+1").get("a"));
+    assertNull(FormFields.of("a=%-0").get("a"));
+  }
+
+  @Test
+  void cookiesMatchSplit() {
+    List<String> parts =
+        List.of("sessionId", "sessionid", "other", "=", ";", " ", "\t", "abc", "s=1", "", "é");
+    Random random = new Random(7);
+    for (int i = 0; i < CASES; i++) {
+      StringBuilder header = new StringBuilder();
+      int length = random.nextInt(8);
+      for (int j = 0; j < length; j++) {
+        header.append(parts.get(random.nextInt(parts.size())));
+      }
+      String cookie = header.toString();
+      FcgiRequest request = new FcgiRequest(null, 1, Map.of("HTTP_COOKIE", cookie), new byte[0]);
+      assertEquals(
+          sessionIdBySplit(cookie),
+          FastCGIServer.getSessionIdFromCookies(request),
+          () -> "cookie '" + cookie + "'");
+    }
+    assertNull(
+        FastCGIServer.getSessionIdFromCookies(new FcgiRequest(null, 1, Map.of(), new byte[0])));
+  }
+
+  /** Форма из 0-5 пар: пустые ключи и значения, пары без '=', повторы ключей и лишние '&' */
+  private static String randomForm(Random random) {
+    StringBuilder form = new StringBuilder();
+    int pairs = random.nextInt(6);
+    for (int i = 0; i < pairs; i++) {
+      if (i > 0 || random.nextInt(10) == 0) {
+        form.append('&');
+      }
+      form.append(randomText(random, 3));
+      if (random.nextInt(8) != 0) {
+        form.append('=').append(randomText(random, 4));
+      }
+    }
+    return form.toString();
+  }
+
+  private static String randomText(Random random, int maxPieces) {
+    StringBuilder text = new StringBuilder();
+    int count = random.nextInt(maxPieces + 1);
+    for (int i = 0; i < count; i++) {
+      text.append(PIECES.get(random.nextInt(PIECES.size())));
+    }
+    return text.toString();
+  }
+
+  private static String randomDecimal(Random random) {
+    StringBuilder number = new StringBuilder();
+    if (random.nextBoolean()) {
+      number.append('-');
+    }
+    int digits = 1 + random.nextInt(18);
+    int point = random.nextInt(digits + 1);
+    for (int i = 0; i < digits; i++) {
+      if (i == point) {
+        number.append('.');
+      }
+      number.append((char) ('0' + random.nextInt(10)));
+    }
+    return number.toString();
+  }
+
+  private static Double parseOrNull(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Прежний разбор query string: split по '&' и '=', декодирование через URLDecoder */
+  static Map<String, String> parseQueryString(String queryString) {
+    Map<String, String> params = new HashMap<>();
+    if (queryString == null || queryString.isEmpty()) {
+      return params;
+    }
+    for (String pair : queryString.split("&")) {
+      String[] keyValue = pair.split("=", 2);
+      if (keyValue.length == 2) {
+        try {
+          params.put(
+              URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+              URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+          // Пара с некорректным %-кодом пропускалась
+        }
+      }
+    }
+    return params;
+  }
+
+  /** Прежний разбор cookie: split по ';', затем по первому '=' с trim */
+  private static String sessionIdBySplit(String cookieHeader) {
+    for (String cookie : cookieHeader.split(";")) {
+      String[] parts = cookie.trim().split("=", 2);
+      if (parts.length == 2 && "sessionId".equals(parts[0].trim())) {
+        return parts[1].trim();
+      }
+    }
+    return null;
+  }
+}
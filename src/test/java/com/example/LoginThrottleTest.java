@@ -0,0 +1,94 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ограничение неудачных входов ({@link FastCGIServer#login}): подбор пароля тормозит того, кто
+ * подбирает, но не настоящего пользователя с другого адреса или с уже подтвержденным заголовком
+ */
+class LoginThrottleTest {
+
+  private static final String VALID = basic("admin", "password");
+  private static final String WRONG = basic("admin", "guess");
+
+  private final Authenticator authenticator =
+      new Authenticator(
+          null,
+          (username, password) -> "admin".equals(username) && "password".equals(password),
+          100,
+          60_000);
+
+  /** Как по умолчанию: 1 в секунду и 10 подряд для пары и адреса, 10 и 100 - для логина */
+  private final AdmissionControl admission =
+      new AdmissionControl(
+          0,
+          new RateLimiter(0, 0),
+          new RateLimiter(0, 0),
+          new RateLimiter(1, 10),
+          new RateLimiter(10, 100));
+
+  @Test
+  void guessingLocksOnlyTheGuessingAddress() {
+    failTimes(WRONG, "10.0.0.5", 10);
+    assertTrue(login(WRONG, "10.0.0.5") > 0);
+    assertTrue(login(VALID, "10.0.0.5") > 0);
+    assertEquals(0, login(VALID, "10.0.0.9"));
+  }
+
+  @Test
+  void verifiedHeaderBypassesLimiter() {
+    assertEquals(0, login(VALID, "10.0.0.9"));
+    failTimes(WRONG, "10.0.0.9", 10);
+    assertTrue(login(WRONG, "10.0.0.9") > 0);
+    assertEquals(0, login(VALID, "10.0.0.9"));
+  }
+
+  @Test
+  void requestsWithoutCredentialsAreNotCharged() {
+    for (int i = 0; i < 50; i++) {
+      assertEquals(FastCGIServer.LOGIN_DENIED, login(null, "192.168.1.1"));
+      assertEquals(FastCGIServer.LOGIN_DENIED, login("Bearer token", "192.168.1.1"));
+      assertEquals(FastCGIServer.LOGIN_DENIED, login("Basic !!!", "192.168.1.1"));
+    }
+    assertEquals(0, login(VALID, "192.168.1.1"));
+  }
+
+  @Test
+  void distributedGuessingHitsTheLooserUserCap() {
+    for (int client = 0; client < 100; client++) {
+      assertEquals(FastCGIServer.LOGIN_DENIED, login(WRONG, "10.1.0." + client));
+    }
+    assertTrue(login(VALID, "10.2.0.1") > 0);
+    assertEquals(FastCGIServer.LOGIN_DENIED, login(basic("alice", "guess"), "10.2.0.1"));
+  }
+
+  @Test
+  void verifiedHeaderPassesTheUserCap() {
+    assertEquals(0, login(VALID, "10.3.0.1"));
+    for (int client = 0; client < 110; client++) {
+      login(WRONG, "10.4.0." + client);
+    }
+    assertEquals(0, login(VALID, "10.3.0.1"));
+  }
+
+  private void failTimes(String header, String client, int times) {
+    for (int i = 0; i < times; i++) {
+      assertEquals(FastCGIServer.LOGIN_DENIED, login(header, client));
+    }
+  }
+
+  private long login(String header, String client) {
+    return FastCGIServer.login(authenticator, admission, header, client);
+  }
+
+  private static String basic(String username, String password) {
+    return "Basic "
+        + Base64.getEncoder()
+            .encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+  }
+}
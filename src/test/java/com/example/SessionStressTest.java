@@ -0,0 +1,167 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Нагрузочная проверка сессий: много потоков пишут в одну и во много сессий сразу, после чего число
+ * записей в памяти, порядок каждого потока и содержимое хранилища должны совпасть до записи. Кэш в
+ * тестах маленький (см. pom.xml), поэтому сессии по ходу вытесняются и перечитываются
+ */
+class SessionStressTest {
+
+  private static final int THREADS = 16;
+
+  /** Уникальный префикс: каталог хранилища переживает запуски тестов */
+  private static final String RUN = "stress_" + System.nanoTime() + "_";
+
+  @Test
+  void oneSessionFromManyThreads() throws Exception {
+    String sessionId = RUN + "hot";
+    int perThread = 500;
+    long before = SessionManager.globalStats().count();
+
+    runThreads(
+        thread -> {
+          int seq = 0;
+          for (int i = 0; i < perThread; i++) {
+            if (i % 5 == 4) {
+              SessionManager.addResults(
+                  sessionId, List.of(result(thread, seq++), result(thread, seq++)));
+            } else {
+              SessionManager.addResult(sessionId, result(thread, seq++));
+            }
+          }
+        });
+
+    int expected = THREADS * (perThread + perThread / 5);
+    List<SessionManager.CalculationResult> results = chronological(sessionId);
+    assertEquals(expected, results.size());
+    assertEquals(expected, SessionManager.sessionStats(sessionId).count());
+    assertEquals(expected, SessionManager.globalStats().count() - before);
+    assertThreadOrder(results);
+    assertStored(sessionId, results);
+  }
+
+  @Test
+  void manySessionsFromManyThreads() throws Exception {
+    int sessionCount = 64;
+    int rounds = 40;
+    long before = SessionManager.globalStats().count();
+
+    // Каждый поток обходит все сессии со своего места, так что в одну сессию пишут одновременно
+    runThreads(
+        thread -> {
+          int seq = 0;
+          for (int round = 0; round < rounds; round++) {
+            for (int s = 0; s < sessionCount; s++) {
+              String sessionId = RUN + "many_" + (s + thread) % sessionCount;
+              if (s % 3 == 0) {
+                SessionManager.addResults(
+                    sessionId, List.of(result(thread, seq++), result(thread, seq++)));
+              } else {
+                SessionManager.addResult(sessionId, result(thread, seq++));
+              }
+            }
+          }
+        });
+
+    long total = 0;
+    for (int s = 0; s < sessionCount; s++) {
+      String sessionId = RUN + "many_" + s;
+      // Из THREADS потоков в сессию s пачкой пишут те, у кого (s - thread) mod n делится на 3
+      int batched = 0;
+      for (int thread = 0; thread < THREADS; thread++) {
+        if (Math.floorMod(s - thread, sessionCount) % 3 == 0) {
+          batched++;
+        }
+      }
+      int expected = rounds * (THREADS + batched);
+      List<SessionManager.CalculationResult> results = chronological(sessionId);
+      assertEquals(expected, results.size(), sessionId);
+      assertThreadOrder(results);
+      assertStored(sessionId, results);
+      total += expected;
+    }
+    assertEquals(total, SessionManager.globalStats().count() - before);
+  }
+
+  /** Работа одного потока; номер потока от 0 до THREADS - 1 */
+  private interface Worker {
+    void run(int thread) throws Exception;
+  }
+
+  /** Запускает worker в THREADS потоках одновременно и ждет их всех, пробрасывая ошибки */
+  private static void runThreads(Worker worker) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        int id = thread;
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  worker.run(id);
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Точка потока thread с его порядковым номером seq: x - поток, время выполнения - номер */
+  private static SessionManager.CalculationResult result(int thread, int seq) {
+    return new SessionManager.CalculationResult(
+        thread, seq % 7 - 3, 1 + seq % 4, seq % 2 == 0, 1_700_000_000_000L + seq * 1000L, seq);
+  }
+
+  /** История сессии от старых записей к новым */
+  private static List<SessionManager.CalculationResult> chronological(String sessionId) {
+    List<SessionManager.CalculationResult> results =
+        new ArrayList<>(SessionManager.getResults(sessionId));
+    Collections.reverse(results);
+    return results;
+  }
+
+  /** Записи каждого потока идут в том порядке, в каком он их добавлял, без потерь и повторов */
+  private static void assertThreadOrder(List<SessionManager.CalculationResult> results) {
+    double[] last = new double[THREADS];
+    Arrays.fill(last, -1);
+    for (SessionManager.CalculationResult result : results) {
+      int thread = (int) result.x();
+      assertTrue(result.executionTime() > last[thread], "order of thread " + thread);
+      last[thread] = result.executionTime();
+    }
+  }
+
+  /** В хранилище лежат ровно те же строки и в том же порядке, что в памяти */
+  private static void assertStored(String sessionId, List<SessionManager.CalculationResult> results)
+      throws Exception {
+    StringBuilder expected = new StringBuilder();
+    for (SessionManager.CalculationResult result : results) {
+      expected.append(SessionManager.formatResult(result));
+    }
+    byte[] stored = SessionManager.readStored(sessionId);
+    assertNotNull(stored, sessionId);
+    assertEquals(expected.toString(), new String(stored, StandardCharsets.UTF_8), sessionId);
+  }
+}